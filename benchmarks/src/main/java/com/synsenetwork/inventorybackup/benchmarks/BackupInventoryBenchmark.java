@@ -0,0 +1,61 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import org.bukkit.entity.Player;
+import org.dizitart.no2.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking a backup on the main thread, and mapping it to and from the stored document.
+ * Encoded item stacks are cached on the backup, so every write starts from a fresh snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackupInventoryBenchmark {
+    private Player player;
+    private Document document;
+
+    @Setup
+    public void setup() {
+        StubServer.install();
+
+        player = SampleInventories.player(new Random(42));
+        document = BackupInventory.create(player).write(null);
+    }
+
+    @Benchmark
+    public BackupInventory snapshot() {
+        return BackupInventory.create(player);
+    }
+
+    @Benchmark
+    public Document snapshotAndWrite() {
+        return BackupInventory.create(player).write(null);
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) {
+        // Item stacks are decoded on first access
+        BackupInventory backupInventory = BackupInventory.fromDocument(document);
+        blackhole.consume(backupInventory.getArmorContents());
+        blackhole.consume(backupInventory.getExtraContents());
+        blackhole.consume(backupInventory.getContents());
+    }
+}
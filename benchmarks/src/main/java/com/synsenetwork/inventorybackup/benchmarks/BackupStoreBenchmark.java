@@ -0,0 +1,157 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.storage.BackupStore;
+import com.synsenetwork.inventorybackup.storage.StorageSettings;
+import com.synsenetwork.inventorybackup.storage.jdbc.JdbcBackupStore;
+import com.synsenetwork.inventorybackup.storage.nitrite.NitriteBackupStore;
+import org.bukkit.entity.Player;
+import org.dizitart.no2.NitriteId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Inserting and querying backups in a database already holding many of them, for every storage backend.
+ * Every player has about {@value #BACKUPS_PER_PLAYER} backups, like a long-running server with frequent deaths.
+ * <p>
+ * Filling a database with a million backups takes minutes, narrow the sizes with {@code -p backups=10000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BackupStoreBenchmark {
+    // Average number of backups per player
+    private static final int BACKUPS_PER_PLAYER = 100;
+
+    // Number of backups inserted per commit while filling the database
+    private static final int FILL_BATCH_SIZE = 1000;
+
+    // Number of backup ids kept to look up backups by id
+    private static final int SAMPLE_SIZE = 10_000;
+
+    @Param({"nitrite", "sqlite"})
+    public String store;
+
+    @Param({"10000", "100000", "1000000"})
+    public int backups;
+
+    private Path directory;
+    private BackupStore backupStore;
+    private Player[] players;
+    private NitriteId[] sampleIds;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        StubServer.install();
+        directory = Files.createTempDirectory("inventorybackup-benchmark");
+        backupStore = openStore(directory.toFile());
+
+        // Create the players, with one inventory each to keep the fill fast
+        Random random = new Random(42);
+        players = new Player[Math.max(1, backups / BACKUPS_PER_PLAYER)];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = SampleInventories.player(random);
+        }
+
+        // Fill the database in batches, remembering a sample of ids spread over it
+        List<NitriteId> ids = new ArrayList<>();
+        List<BackupInventory> batch = new ArrayList<>(FILL_BATCH_SIZE);
+        int sampleEvery = Math.max(1, backups / SAMPLE_SIZE);
+        for (int i = 0; i < backups; i++) {
+            batch.add(BackupInventory.create(players[random.nextInt(players.length)]));
+            if (batch.size() == FILL_BATCH_SIZE || i == backups - 1) {
+                backupStore.insert(batch);
+                backupStore.commit();
+                for (BackupInventory backupInventory : batch) {
+                    if (ids.size() < SAMPLE_SIZE && random.nextInt(sampleEvery) == 0) {
+                        ids.add(backupInventory.getIdField());
+                    }
+                }
+                batch.clear();
+            }
+        }
+        sampleIds = ids.toArray(new NitriteId[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        backupStore.close();
+
+        // Delete the database files
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public BackupInventory insert() {
+        // A death: insert one backup and commit it
+        BackupInventory backupInventory = BackupInventory.create(players[ThreadLocalRandom.current().nextInt(players.length)]);
+        backupStore.insert(List.of(backupInventory));
+        backupStore.commit();
+        return backupInventory;
+    }
+
+    @Benchmark
+    public List<BackupMetadata> findByPlayer() {
+        // The list command: every backup of a player, newest first
+        Player player = players[ThreadLocalRandom.current().nextInt(players.length)];
+        return backupStore.findByPlayer(player.getUniqueId(), 0, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public BackupInventory getById() {
+        // A restore: load one backup and decode its item stacks
+        BackupInventory backupInventory = backupStore.getById(sampleIds[ThreadLocalRandom.current().nextInt(sampleIds.length)]);
+        backupInventory.getContents();
+        return backupInventory;
+    }
+
+    /**
+     * Opens the store of the benchmarked backend in a directory.
+     *
+     * @param directory The directory to create the database in.
+     * @return The store.
+     * @throws SQLException If the SQLite database could not be opened.
+     */
+    private BackupStore openStore(File directory) throws SQLException {
+        switch (store) {
+            case "nitrite":
+                // Same options as the plugin
+                return NitriteBackupStore.open(new File(directory, "inventory.db"), StorageSettings.fromConfig(null));
+            case "sqlite":
+                return JdbcBackupStore.openSqlite(new File(directory, "inventory.sqlite"), StorageSettings.fromConfig(null));
+            default:
+                throw new IllegalArgumentException("Unknown storage type " + store + ".");
+        }
+    }
+}
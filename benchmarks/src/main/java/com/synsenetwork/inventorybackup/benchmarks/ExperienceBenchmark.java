@@ -0,0 +1,54 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import com.synsenetwork.inventorybackup.utils.Experience;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and restoring a player's total experience, at levels covering all three leveling formulas.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExperienceBenchmark {
+    @Param({"5", "20", "50"})
+    public int level;
+
+    private Player player;
+    private int totalExperience;
+
+    @Setup
+    public void setup() {
+        StubServer.install();
+
+        player = StubServer.player(new UUID(0, level), new ItemStack[4], new ItemStack[1], new ItemStack[36], level, 0.5F);
+        totalExperience = Experience.getExp(player);
+    }
+
+    @Benchmark
+    public int getExp() {
+        return Experience.getExp(player);
+    }
+
+    @Benchmark
+    public void changeExp() {
+        Experience.changeExp(player, totalExperience);
+    }
+}
@@ -0,0 +1,65 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.gson.ItemStackArrayTypeAdapter;
+import org.bukkit.inventory.ItemStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a player's storage contents, in the legacy Base64 JSON format and in the binary format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemStackSerializationBenchmark {
+    private final ItemStackArrayTypeAdapter typeAdapter = new ItemStackArrayTypeAdapter();
+
+    private ItemStack[] contents;
+    private String json;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        StubServer.install();
+
+        contents = SampleInventories.contents(new Random(42));
+        json = typeAdapter.toJson(contents);
+        bytes = ItemStackArrayCodec.encode(contents);
+    }
+
+    @Benchmark
+    public String legacyWrite() throws IOException {
+        return typeAdapter.toJson(contents);
+    }
+
+    @Benchmark
+    public ItemStack[] legacyRead() throws IOException {
+        return typeAdapter.fromJson(json);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return ItemStackArrayCodec.encode(contents);
+    }
+
+    @Benchmark
+    public ItemStack[] binaryDecode() {
+        return ItemStackArrayCodec.decode(bytes);
+    }
+}
@@ -0,0 +1,82 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates player inventories resembling the ones seen on death: full armor, a shield and a mostly filled storage.
+ */
+public final class SampleInventories {
+    // Number of storage slots of a player inventory
+    private static final int STORAGE_SIZE = 36;
+
+    // Chance of a storage slot holding an item
+    private static final double FILL_RATE = 0.75;
+
+    // Materials the storage is filled with
+    private static final Material[] MATERIALS = {
+            Material.DIAMOND_SWORD, Material.DIAMOND_PICKAXE, Material.BOW, Material.ARROW, Material.COOKED_BEEF,
+            Material.BREAD, Material.TORCH, Material.COBBLESTONE, Material.DIRT, Material.OAK_LOG, Material.OAK_PLANKS,
+            Material.IRON_INGOT, Material.GOLD_INGOT, Material.REDSTONE, Material.COAL, Material.ENDER_PEARL,
+            Material.GOLDEN_APPLE, Material.WATER_BUCKET, Material.STONE, Material.GLASS
+    };
+
+    /**
+     * Generates the armor contents of a player.
+     *
+     * @return The armor contents, from boots to helmet.
+     */
+    public static ItemStack[] armorContents() {
+        return new ItemStack[]{
+                new ItemStack(Material.DIAMOND_BOOTS),
+                new ItemStack(Material.DIAMOND_LEGGINGS),
+                new ItemStack(Material.DIAMOND_CHESTPLATE),
+                new ItemStack(Material.DIAMOND_HELMET)
+        };
+    }
+
+    /**
+     * Generates the extra contents of a player.
+     *
+     * @return The extra contents, holding the off hand.
+     */
+    public static ItemStack[] extraContents() {
+        return new ItemStack[]{new ItemStack(Material.SHIELD)};
+    }
+
+    /**
+     * Generates the storage contents of a player.
+     *
+     * @param random The source of randomness.
+     * @return The storage contents, with empty slots as null.
+     */
+    public static ItemStack[] contents(Random random) {
+        ItemStack[] contents = new ItemStack[STORAGE_SIZE];
+        for (int i = 0; i < contents.length; i++) {
+            if (random.nextDouble() < FILL_RATE) {
+                Material material = MATERIALS[random.nextInt(MATERIALS.length)];
+                contents[i] = new ItemStack(material, 1 + random.nextInt(material.getMaxStackSize()));
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Generates a player with a sample inventory.
+     *
+     * @param random The source of randomness.
+     * @return The player.
+     */
+    public static Player player(Random random) {
+        return StubServer.player(new UUID(random.nextLong(), random.nextLong()), armorContents(), extraContents(), contents(random),
+                random.nextInt(50), random.nextFloat());
+    }
+
+    // Private constructor to prevent instantiation of the utility class.
+    private SampleInventories() {
+    }
+}
@@ -0,0 +1,185 @@
+package com.synsenetwork.inventorybackup.benchmarks;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for a running server, so item stacks can be created, compared and serialized without one.
+ * <p>
+ * Every server interface is a proxy returning defaults. Item stacks are serialized as their material and amount
+ * instead of NBT, so benchmarks measure the plugin's own overhead and not the server's item serializer.
+ */
+public final class StubServer {
+    // Data version reported to item stack serialization, the one of 1.20.1
+    private static final int DATA_VERSION = 3465;
+
+    // Proxies of the interfaces returned by the server, created on first use
+    private static final Map<Class<?>, Object> PROXIES = new ConcurrentHashMap<>();
+
+    /**
+     * Installs the stub server, unless a server is installed already.
+     */
+    public static synchronized void install() {
+        if (Bukkit.getServer() == null) {
+            Bukkit.setServer(proxy(Server.class));
+        }
+    }
+
+    /**
+     * Creates a player with a fixed inventory and experience.
+     *
+     * @param playerId      The UUID of the player.
+     * @param armorContents The armor contents of the player.
+     * @param extraContents The extra contents of the player.
+     * @param contents      The contents of the player.
+     * @param level         The level of the player.
+     * @param exp           The progress of the player to the next level.
+     * @return The player.
+     */
+    public static Player player(UUID playerId, ItemStack[] armorContents, ItemStack[] extraContents, ItemStack[] contents, int level, float exp) {
+        PlayerInventory inventory = (PlayerInventory) Proxy.newProxyInstance(StubServer.class.getClassLoader(), new Class<?>[]{PlayerInventory.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getArmorContents" -> armorContents;
+            case "getExtraContents" -> extraContents;
+            case "getContents", "getStorageContents" -> contents;
+            default -> defaultValue(method, proxy, args);
+        });
+
+        // Level and progress are mutable, like on a real player
+        int[] levelHolder = {level};
+        float[] expHolder = {exp};
+        return (Player) Proxy.newProxyInstance(StubServer.class.getClassLoader(), new Class<?>[]{Player.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getUniqueId" -> playerId;
+            case "getName" -> playerId.toString().substring(0, 16);
+            case "getInventory" -> inventory;
+            case "getLevel" -> levelHolder[0];
+            case "setLevel" -> {
+                levelHolder[0] = (int) args[0];
+                yield null;
+            }
+            case "getExp" -> expHolder[0];
+            case "setExp" -> {
+                expHolder[0] = (float) args[0];
+                yield null;
+            }
+            case "isOnline" -> true;
+            default -> defaultValue(method, proxy, args);
+        });
+    }
+
+    /**
+     * Creates a proxy of a server interface.
+     *
+     * @param type The interface.
+     * @param <T>  The type of the interface.
+     * @return The proxy.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type) {
+        return (T) PROXIES.computeIfAbsent(type, key -> Proxy.newProxyInstance(StubServer.class.getClassLoader(), new Class<?>[]{key}, (proxy, method, args) -> switch (method.getName()) {
+            case "getLogger" -> Logger.getLogger("StubServer");
+            case "getName", "getVersion", "getBukkitVersion" -> "StubServer";
+            case "getDataVersion" -> DATA_VERSION;
+            case "getMaterial" -> Material.matchMaterial((String) args[0]);
+            case "serializeItem" -> serializeItem((ItemStack) args[0]);
+            case "deserializeItem" -> deserializeItem((byte[]) args[0]);
+            default -> {
+                // Item meta comparison, the stub never creates item meta
+                if (method.getName().equals("equals") && method.getParameterCount() == 2) {
+                    yield Objects.equals(args[0], args[1]);
+                }
+                yield defaultValue(method, proxy, args);
+            }
+        }));
+    }
+
+    /**
+     * Gets the value returned by a stubbed method without special handling.
+     * Server interfaces get a stub of their own, so chained calls keep working.
+     *
+     * @param method The method.
+     * @param proxy  The proxy the method was called on.
+     * @param args   The arguments of the call.
+     * @return The value.
+     */
+    private static Object defaultValue(Method method, Object proxy, Object[] args) {
+        Class<?> returnType = method.getReturnType();
+        switch (method.getName()) {
+            case "equals":
+                if (method.getParameterCount() == 1) {
+                    return proxy == args[0];
+                }
+                break;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return returnType == String.class ? proxy.getClass().getInterfaces()[0].getSimpleName() : null;
+            default:
+                break;
+        }
+
+        if (returnType.isPrimitive() && returnType != void.class) {
+            // The element of a new primitive array is the zero value of its type
+            return Array.get(Array.newInstance(returnType, 1), 0);
+        }
+        if (returnType.isInterface() && returnType.getName().startsWith("org.bukkit")) {
+            return proxy(returnType);
+        }
+        return null;
+    }
+
+    /**
+     * Serializes an item stack as its material and amount.
+     *
+     * @param itemStack The item stack.
+     * @return The serialized item stack.
+     */
+    private static byte[] serializeItem(ItemStack itemStack) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(32);
+            DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            dataOutput.writeUTF(itemStack.getType().name());
+            dataOutput.writeByte(itemStack.getAmount());
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deserializes an item stack serialized by {@link #serializeItem(ItemStack)}.
+     *
+     * @param bytes The serialized item stack.
+     * @return The item stack.
+     */
+    private static ItemStack deserializeItem(byte[] bytes) {
+        try {
+            DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(bytes));
+            return new ItemStack(Material.valueOf(dataInput.readUTF()), dataInput.readByte());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Private constructor to prevent instantiation of the utility class.
+    private StubServer() {
+    }
+}
@@ -1,27 +1,72 @@
 package com.synsenetwork.inventorybackup;
 
+import com.synsenetwork.inventorybackup.autobackup.AutoBackupTask;
 import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
 import com.synsenetwork.inventorybackup.listeners.EventListener;
+import com.synsenetwork.inventorybackup.listeners.PlayerJoinListener;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.metrics.MetricsReporter;
+import com.synsenetwork.inventorybackup.restore.RestoreResult;
+import com.synsenetwork.inventorybackup.restore.RestoreTask;
+import com.synsenetwork.inventorybackup.retention.PurgeTask;
+import com.synsenetwork.inventorybackup.retention.RetentionPolicy;
+import com.synsenetwork.inventorybackup.retention.RetentionTask;
+import com.synsenetwork.inventorybackup.scheduler.TaskScheduler;
+import com.synsenetwork.inventorybackup.storage.BackupArchive;
+import com.synsenetwork.inventorybackup.storage.BackupIdGenerator;
+import com.synsenetwork.inventorybackup.storage.BackupJournal;
+import com.synsenetwork.inventorybackup.storage.BackupRepository;
+import com.synsenetwork.inventorybackup.storage.BackupSpool;
+import com.synsenetwork.inventorybackup.storage.BackupStore;
+import com.synsenetwork.inventorybackup.storage.BackupWriter;
+import com.synsenetwork.inventorybackup.storage.CompactionTask;
+import com.synsenetwork.inventorybackup.storage.LegacyFormatMigration;
+import com.synsenetwork.inventorybackup.storage.StorageException;
+import com.synsenetwork.inventorybackup.storage.StorageSettings;
+import com.synsenetwork.inventorybackup.storage.StorageState;
+import com.synsenetwork.inventorybackup.storage.jdbc.JdbcBackupStore;
+import com.synsenetwork.inventorybackup.storage.nitrite.NitriteBackupStore;
+import com.synsenetwork.inventorybackup.tracking.ChangeTracker;
+import com.synsenetwork.inventorybackup.utils.SizeUtils;
 import com.synsenetwork.inventorybackup.utils.TimeUtils;
+import com.zaxxer.hikari.HikariConfig;
 import dev.jorel.commandapi.CommandAPI;
 import dev.jorel.commandapi.CommandAPIBukkitConfig;
 import dev.jorel.commandapi.CommandAPICommand;
+import dev.jorel.commandapi.arguments.Argument;
 import dev.jorel.commandapi.arguments.ArgumentSuggestions;
+import dev.jorel.commandapi.arguments.IntegerArgument;
 import dev.jorel.commandapi.arguments.PlayerArgument;
 import dev.jorel.commandapi.arguments.StringArgument;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.event.HandlerList;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.dizitart.no2.Nitrite;
 import org.dizitart.no2.NitriteId;
-import org.dizitart.no2.objects.ObjectRepository;
-import org.dizitart.no2.objects.filters.ObjectFilters;
 
 import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -31,9 +76,66 @@ public final class InventoryBackup extends JavaPlugin {
     // Logger
     private static final Logger LOGGER = Logger.getLogger(InventoryBackup.class.getName());
 
-    // Database
-    private Nitrite db;
-    private ObjectRepository<BackupInventory> repository;
+    // Number of backups listed per page
+    private static final int PAGE_SIZE = 10;
+
+    // Number of backup ids suggested for the restore and remove commands, newest first
+    private static final int SUGGESTION_LIMIT = 50;
+
+    // File extension of export archives
+    private static final String ARCHIVE_EXTENSION = ".ibak";
+
+    // Ticks between checks whether automatic compaction is due
+    private static final long COMPACTION_CHECK_PERIOD = 10 * 60 * 20;
+
+    // Number of threads running the storage work of commands
+    private static final int COMMAND_THREADS = 2;
+
+    // Seconds to wait for running commands when the plugin is disabled
+    private static final long COMMAND_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    // Seconds to wait for running maintenance when the plugin is disabled
+    private static final long MAINTENANCE_SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    // Seconds to wait for the database to open when the plugin is disabled during startup
+    private static final long STORAGE_OPEN_TIMEOUT_SECONDS = 60;
+
+    // Database, opened on the storage thread and usable once the storage state is READY
+    private volatile BackupStore store;
+    private volatile BackupRepository repository;
+    private BackupWriter writer;
+    private BackupSpool spool;
+    private BackupJournal journal;
+    private volatile LegacyFormatMigration migration;
+    private volatile RetentionTask retentionTask;
+    private volatile PurgeTask purgeTask;
+    private volatile BackupArchive archive;
+    private volatile CompactionTask compactionTask;
+    private volatile StorageState storageState = StorageState.OPENING;
+    private volatile long storageOpenMillis;
+    private Thread storageThread;
+
+    // Set when the plugin starts disabling, Bukkit already reports it as disabled while onDisable runs
+    private volatile boolean disabling;
+
+    // Guards handing the opened database over, set once onDisable stopped waiting for it to open
+    private final Object storageLock = new Object();
+    private boolean storageAbandoned;
+
+    // Metrics
+    private final BackupMetrics metrics = new BackupMetrics();
+    private MetricsReporter metricsReporter;
+
+    // Runs the storage work of commands, so loading, decoding and deleting backups never blocks the main thread
+    private ExecutorService commandExecutor;
+    private TaskScheduler scheduler;
+    private RestoreTask restoreTask;
+
+    // Runs long storage maintenance one job at a time, so it can't starve commands and finishes before the database is closed
+    private ThreadPoolExecutor maintenanceExecutor;
+
+    // Last backup per online player, so death and automatic backups identical to it are skipped
+    private ChangeTracker tracker;
 
     @Override
     public void onLoad() {
@@ -61,66 +163,159 @@ public final class InventoryBackup extends JavaPlugin {
             getDataFolder().mkdir();
         }
 
-        // Get database file
-        File databaseFile = new File(getDataFolder(), "inventory.db");
+        // Save default config if it doesn't exist
+        saveDefaultConfig();
+
+        // Create scheduler, running player work on the region thread owning the player on Folia
+        scheduler = TaskScheduler.create(this);
+
+        // Create spool for backups that can't be written while the database is unavailable or the writer is full
+        spool = new BackupSpool(new File(getDataFolder(), "spool.dat"), getConfig().getInt("writer.batch-size", 64));
+
+        // Open journal of uncommitted death backups, reading what a crash left in it
+        if (getConfig().getBoolean("storage.journal.enabled", true)) {
+            try {
+                journal = BackupJournal.open(new File(getDataFolder(), "journal.dat"),
+                        Math.max(1, getConfig().getInt("storage.journal.size-megabytes", 8)) * 1024 * 1024,
+                        getConfig().getBoolean("storage.journal.sync", false), metrics);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to open the backup journal, death backups are not journaled.", e);
+            }
+        }
+
+        // Log backup writer creation
+        LOGGER.info("Creating backup writer...");
+
+        // Create backup writer, it queues backups until the storage is open
+        writer = new BackupWriter(
+                getConfig().getInt("writer.queue-size", 1024),
+                getConfig().getInt("writer.batch-size", 64),
+                getConfig().getLong("writer.batch-window", 50),
+                metrics,
+                spool);
 
-        // Log database loading
-        LOGGER.info("Loading database at " + databaseFile.getAbsolutePath() + "...");
+        // Create metrics reporter
+        metricsReporter = new MetricsReporter(metrics, writer::getPendingCount, () -> store == null ? -1 : store.getSize(),
+                getConfig().getBoolean("metrics.csv", true) ? new File(getDataFolder(), "metrics.csv") : null);
 
-        // Create database
-        db = Nitrite.builder().compressed().filePath(databaseFile.getAbsolutePath()).openOrCreate();
+        // Schedule periodic metrics report off the main thread
+        if (getConfig().getBoolean("metrics.report", false)) {
+            long interval = Math.max(1, TimeUtils.parseDuration(getConfig().getString("metrics.interval", "5m")) / 50);
+            scheduler.runAsyncTimer(metricsReporter, interval, interval);
+        }
 
-        // Log repository loading
-        LOGGER.info("Loading repository...");
+        // Create change tracker, a skipped backup relies on the previous one still being indexed
+        tracker = new ChangeTracker(id -> {
+            BackupRepository current = repository;
+            return current != null && current.getIndex().get(id) != null;
+        });
+        boolean skipEmpty = getConfig().getBoolean("change-tracking.skip-empty", true);
 
-        // Create repository
-        repository = db.getRepository(BackupInventory.class);
+        // Schedule auto-backup of online players, spread over ticks on the main thread
+        if (getConfig().getBoolean("auto-backup.enabled", false)) {
+            long interval = Math.max(1, TimeUtils.parseDuration(getConfig().getString("auto-backup.interval", "5m")) / 50);
+            long budget = (long) (getConfig().getDouble("auto-backup.tick-budget", 1.0) * 1_000_000);
+            scheduler.runTimer(new AutoBackupTask(getServer(), scheduler, writer, tracker, skipEmpty, interval, budget, metrics), 1, 1);
+        }
 
         // Log event listener registration
         LOGGER.info("Registering event listener...");
 
         // Register event listener
-        getServer().getPluginManager().registerEvents(new EventListener(repository), this);
+        getServer().getPluginManager().registerEvents(new EventListener(writer, metrics, journal, tracker, skipEmpty,
+                getConfig().getBoolean("change-tracking.skip-unchanged", true)), this);
+
+        // Register join listener, picking up backups other servers sharing the database took of the player
+        getServer().getPluginManager().registerEvents(new PlayerJoinListener(this::refreshPlayer), this);
+
+        // Start command executor
+        AtomicInteger commandThreadCount = new AtomicInteger();
+        commandExecutor = Executors.newFixedThreadPool(COMMAND_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "InventoryBackup-Command-" + commandThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Start maintenance executor
+        maintenanceExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "InventoryBackup-Maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Schedule restores, loaded on the command executor and applied on the main thread spread over ticks
+        restoreTask = new RestoreTask(getServer(), scheduler, commandExecutor, (long) (getConfig().getDouble("restore.tick-budget", 2.0) * 1_000_000), metrics);
+        scheduler.runTimer(restoreTask, 1, 1);
 
         // Log command registration
         LOGGER.info("Registering commands...");
 
         // Register commands
-        new CommandAPICommand("inventorybackup").withAliases("invbackup", "backupinventory").withSubcommand(new CommandAPICommand("list").withOptionalArguments(new PlayerArgument("player")).executesPlayer((player, args) -> {
-            // Get player
-            Player target = args.get("player") == null ? player : (Player) args.get("player");
-
-            // Load player's backup inventories
-            Iterable<BackupInventory> playerBackups = repository.find(ObjectFilters.eq("playerId", target.getUniqueId()));
+        new CommandAPICommand("inventorybackup").withAliases("invbackup", "backupinventory").withSubcommand(new CommandAPICommand("list").withOptionalArguments(new PlayerArgument("player")).withOptionalArguments(new IntegerArgument("page", 1)).executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
 
-            List<BackupInventory> backupList = new ArrayList<>();
-            playerBackups.forEach(backupList::add);
+            // Get player and page
+            Player target = args.get("player") == null ? player : (Player) args.get("player");
+            int page = args.get("page") == null ? 1 : (int) args.get("page");
 
-            if (backupList.isEmpty()) {
+            // Count player's backup inventories
+            int count = repository.count(target.getUniqueId());
+            if (count == 0) {
                 player.sendMessage(ChatColor.RED + "No backup inventories found for " + target.getName() + ".");
                 return;
             }
 
+            int pages = (count + PAGE_SIZE - 1) / PAGE_SIZE;
+            if (page > pages) {
+                player.sendMessage(ChatColor.RED + target.getName() + " only has " + pages + " page(s) of backup inventories.");
+                return;
+            }
+
+            // Load only the requested page of the player's backup inventory metadata
+            List<BackupMetadata> backupList = repository.getBackups(target.getUniqueId(), (page - 1) * PAGE_SIZE, PAGE_SIZE);
+
             // Send player's backup inventories
-            player.sendMessage(ChatColor.GOLD + "Backup inventories of " + target.getName() + ":");
-            for (BackupInventory backupInventory : backupList) {
-                player.sendMessage(ChatColor.GOLD + " - ID: " + backupInventory.getIdField().getIdValue().longValue() + " | Time: " + TimeUtils.formatTime(backupInventory.getTimestamp()));
+            player.sendMessage(ChatColor.GOLD + "Backup inventories of " + target.getName() + " (page " + page + "/" + pages + ", " + count + " total):");
+            for (BackupMetadata backupMetadata : backupList) {
+                player.sendMessage(ChatColor.GOLD + " - ID: " + backupMetadata.getIdField().getIdValue().longValue() + " | Time: " + TimeUtils.formatTime(backupMetadata.getTimestamp()));
+            }
+            if (page < pages) {
+                player.sendMessage(ChatColor.GRAY + "Use /inventorybackup list " + target.getName() + " " + (page + 1) + " for older backups.");
             }
         })).withSubcommand(new CommandAPICommand("backup").withOptionalArguments(new PlayerArgument("player")).executesPlayer((player, args) -> {
             // Get player
             Player target = args.get("player") == null ? player : (Player) args.get("player");
 
-            // Create backup inventory
-            BackupInventory backupInventory = BackupInventory.create(target);
+            // Tell the player the backup waits for the storage
+            if (storageState != StorageState.READY) {
+                player.sendMessage(ChatColor.GRAY + "The storage is " + storageState.getDescription() + ", the backup is queued until it is ready.");
+            }
 
-            // Add backup inventory to player's backup inventories
-            repository.insert(backupInventory);
+            // Create backup inventory on the thread owning the target
+            scheduler.runForPlayer(target, () -> {
+                long start = System.nanoTime();
+                BackupInventory backupInventory = BackupInventory.create(target);
+                metrics.record(BackupMetrics.Timer.CAPTURE, start);
 
-            // Log backup inventory creation
-            LOGGER.info("Created backup inventory on demand for " + target.getName() + ". ID: " + backupInventory.getIdField().getIdValue().longValue());
+                // Queue backup inventory to be added to player's backup inventories, always stored but tracked as the newest
+                CompletableFuture<NitriteId> future = writer.submit(backupInventory);
+                tracker.track(backupInventory, future);
+                future.whenComplete((id, throwable) -> scheduler.runForPlayer(player, () -> {
+                    if (throwable != null) {
+                        player.sendMessage(ChatColor.RED + "Failed to back up " + target.getName() + "'s inventory: " + throwable.getMessage());
+                        return;
+                    }
 
-            // Send message
-            player.sendMessage(ChatColor.GOLD + "Successfully backed up " + target.getName() + "'s inventory. ID: " + backupInventory.getIdField());
+                    // Log backup inventory creation
+                    LOGGER.info("Created backup inventory on demand for " + target.getName() + ". ID: " + id.getIdValue().longValue());
+
+                    // Send message
+                    player.sendMessage(ChatColor.GOLD + "Successfully backed up " + target.getName() + "'s inventory. ID: " + id.getIdValue().longValue());
+                }));
+            }, () -> player.sendMessage(ChatColor.RED + target.getName() + " went offline before the backup was taken."));
         })).withSubcommand(new CommandAPICommand("restore").withOptionalArguments(new PlayerArgument("player")).withOptionalArguments(new StringArgument("id").replaceSuggestions(ArgumentSuggestions.stringCollectionAsync(info -> {
             return CompletableFuture.supplyAsync(() -> {
                 List<String> suggestions = new ArrayList<>();
@@ -129,58 +324,123 @@ public final class InventoryBackup extends JavaPlugin {
                 // Get player
                 Player target = info.previousArgs().get("player") == null ? info.sender() instanceof Player ? (Player) info.sender() : null : (Player) info.previousArgs().get("player");
 
-                if (target == null) {
+                if (target == null || storageState != StorageState.READY) {
                     return suggestions;
                 }
 
-                // Load player's backup inventories
-                Iterable<BackupInventory> playerBackups = repository.find(ObjectFilters.eq("playerId", target.getUniqueId()));
+                // Load the newest of player's backup inventory metadata
+                List<BackupMetadata> playerBackups = repository.getBackups(target.getUniqueId(), 0, SUGGESTION_LIMIT);
 
-                for (BackupInventory backupInventory : playerBackups) {
-                    suggestions.add(String.valueOf(backupInventory.getIdField().getIdValue().longValue()));
+                for (BackupMetadata backupMetadata : playerBackups) {
+                    suggestions.add(String.valueOf(backupMetadata.getIdField().getIdValue().longValue()));
                 }
 
                 return suggestions;
-            });
+            }, commandExecutor);
         }))).executesPlayer((player, args) -> {
-            // Get player
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Get player and backup ID
             Player target = args.get("player") == null ? player : (Player) args.get("player");
             String id = args.get("id") == null ? "latest" : (String) args.get("id");
+            if (!isBackupId(id)) {
+                player.sendMessage(ChatColor.RED + "Invalid backup ID: " + id);
+                return;
+            }
 
-            // Get backup inventory
-            BackupInventory backupInventory = getBackupInventory(target, id);
+            // Load and decode backup inventory off the main thread, then restore it on the thread owning the target
+            restoreTask.restore(List.of(target.getUniqueId()), playerId -> getBackupInventory(target, id)).thenAccept(results -> scheduler.runForPlayer(player, () -> {
+                RestoreResult result = results.get(0);
+                switch (result.getStatus()) {
+                    case RESTORED:
+                        // Log backup inventory restoration
+                        LOGGER.info("Restored backup inventory for " + target.getName() + ". ID: " + result.getBackupId().getIdValue().longValue());
 
-            // Check if backup inventory exists
-            if (backupInventory == null) {
-                player.sendMessage(ChatColor.RED + "No backup inventories found for " + target.getName() + ".");
+                        // Send message
+                        player.sendMessage(ChatColor.GOLD + "Successfully restored " + target.getName() + "'s inventory. ID: " + result.getBackupId().getIdValue().longValue());
+                        break;
+                    case NO_BACKUP:
+                        player.sendMessage(ChatColor.RED + "No backup inventories found for " + target.getName() + ".");
+                        break;
+                    case OFFLINE:
+                        player.sendMessage(ChatColor.RED + target.getName() + " went offline before the backup inventory was loaded.");
+                        break;
+                    default:
+                        player.sendMessage(ChatColor.RED + "The command failed, check the console.");
+                        break;
+                }
+            }));
+        })).withSubcommand(new CommandAPICommand("restoreall").withOptionalArguments(new StringArgument("before")).executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
                 return;
             }
 
-            // Restore backup inventory
-            backupInventory.restore(target);
+            // Parse how long before now the restored backups were taken, the newest backup by default
+            long before;
+            try {
+                before = args.get("before") == null ? 0 : TimeUtils.parseDuration((String) args.get("before"));
+            } catch (IllegalArgumentException e) {
+                player.sendMessage(ChatColor.RED + e.getMessage());
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - before;
 
-            // Log backup inventory restoration
-            LOGGER.info("Restored backup inventory for " + target.getName() + ". ID: " + backupInventory.getIdField().getIdValue().longValue());
+            // Get online players
+            List<UUID> playerIds = new ArrayList<>();
+            for (Player onlinePlayer : getServer().getOnlinePlayers()) {
+                playerIds.add(onlinePlayer.getUniqueId());
+            }
 
             // Send message
-            player.sendMessage(ChatColor.GOLD + "Successfully restored " + target.getName() + "'s inventory. ID: " + backupInventory.getTimestamp());
-        })).withSubcommand(new CommandAPICommand("purge").withOptionalArguments(new PlayerArgument("player")).executesPlayer((player, args) -> {
-            // Get player
-            Player target = args.get("player") == null ? player : (Player) args.get("player");
+            player.sendMessage(ChatColor.GOLD + "Restoring the inventories of " + playerIds.size() + " online players"
+                    + (before > 0 ? " from before " + TimeUtils.formatDuration(before) + " ago" : "") + "...");
+
+            // Restore every online player, spread over ticks
+            restoreTask.restore(playerIds, playerId -> getBackupInventoryBefore(playerId, cutoff)).thenAccept(results -> scheduler.runForPlayer(player, () -> {
+                int restored = 0;
+                List<String> failures = new ArrayList<>();
+                for (RestoreResult result : results) {
+                    OfflinePlayer target = getServer().getOfflinePlayer(result.getPlayerId());
+                    String name = target.getName() == null ? result.getPlayerId().toString() : target.getName();
 
-            // Load player's backup inventories
-            Iterable<BackupInventory> playerBackups = repository.find(ObjectFilters.eq("playerId", target.getUniqueId()));
+                    // Log per-player result
+                    LOGGER.info("Mass restore of " + name + ": " + result.getStatus().getDescription()
+                            + (result.getBackupId() == null ? "" : ". ID: " + result.getBackupId().getIdValue().longValue()));
 
-            // Delete player's backup inventories
-            for (BackupInventory backupInventory : playerBackups) {
-                repository.remove(backupInventory);
+                    if (result.getStatus() == RestoreResult.Status.RESTORED) {
+                        restored++;
+                    } else {
+                        failures.add(name + ": " + result.getStatus().getDescription());
+                    }
+                }
+
+                // Send results
+                player.sendMessage(ChatColor.GOLD + "Restored the inventories of " + restored + " of " + results.size() + " players.");
+                for (String failure : failures) {
+                    player.sendMessage(ChatColor.RED + " - " + failure);
+                }
+            }));
+        })).withSubcommand(new CommandAPICommand("purge").withOptionalArguments(new PlayerArgument("player")).executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
             }
 
-            // Log backup inventory purging
-            LOGGER.info("Purged backup inventories for " + target.getName() + ".");
+            // Get player
+            Player target = args.get("player") == null ? player : (Player) args.get("player");
 
-            // Send message
-            player.sendMessage(ChatColor.GOLD + "Successfully purged " + target.getName() + "'s backup inventories.");
+            // Delete player's backup inventories off the main thread
+            runStorageTask(player, () -> repository.removeAll(target.getUniqueId()), removed -> {
+                // Log backup inventory purging
+                LOGGER.info("Purged " + removed + " backup inventories for " + target.getName() + ".");
+
+                // Send message
+                player.sendMessage(ChatColor.GOLD + "Successfully purged " + removed + " of " + target.getName() + "'s backup inventories.");
+            });
         })).withSubcommand(new CommandAPICommand("remove").withOptionalArguments(new PlayerArgument("player")).withOptionalArguments(new StringArgument("id").replaceSuggestions(ArgumentSuggestions.stringCollectionAsync(info -> {
             return CompletableFuture.supplyAsync(() -> {
                 List<String> suggestions = new ArrayList<>();
@@ -189,46 +449,496 @@ public final class InventoryBackup extends JavaPlugin {
                 // Get player
                 Player target = info.previousArgs().get("player") == null ? info.sender() instanceof Player ? (Player) info.sender() : null : (Player) info.previousArgs().get("player");
 
-                if (target == null) {
+                if (target == null || storageState != StorageState.READY) {
                     return suggestions;
                 }
 
-                // Load player's backup inventories
-                Iterable<BackupInventory> playerBackups = repository.find(ObjectFilters.eq("playerId", target.getUniqueId()));
+                // Load the newest of player's backup inventory metadata
+                List<BackupMetadata> playerBackups = repository.getBackups(target.getUniqueId(), 0, SUGGESTION_LIMIT);
 
-                for (BackupInventory backupInventory : playerBackups) {
-                    suggestions.add(String.valueOf(backupInventory.getIdField().getIdValue().longValue()));
+                for (BackupMetadata backupMetadata : playerBackups) {
+                    suggestions.add(String.valueOf(backupMetadata.getIdField().getIdValue().longValue()));
                 }
 
                 return suggestions;
-            });
+            }, commandExecutor);
         }))).executesPlayer((player, args) -> {
-            // Get player
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Get player and backup ID
             Player target = args.get("player") == null ? player : (Player) args.get("player");
             String id = args.get("id") == null ? "latest" : (String) args.get("id");
+            if (!isBackupId(id)) {
+                player.sendMessage(ChatColor.RED + "Invalid backup ID: " + id);
+                return;
+            }
 
-            // Get backup inventory
-            BackupInventory backupInventory = getBackupInventory(target, id);
+            // Delete backup inventory off the main thread, the ID is resolved from the index without loading the backup
+            runStorageTask(player, () -> {
+                NitriteId backupId = getBackupId(target, id);
+                return backupId != null && repository.remove(backupId) ? backupId : null;
+            }, backupId -> {
+                // Check if backup inventory existed
+                if (backupId == null) {
+                    player.sendMessage(ChatColor.RED + "No backup inventories found for " + target.getName() + ".");
+                    return;
+                }
 
-            // Check if backup inventory exists
-            if (backupInventory == null) {
-                player.sendMessage(ChatColor.RED + "No backup inventories found for " + target.getName() + ".");
+                // Log backup inventory deletion
+                LOGGER.info("Deleted backup inventory for " + target.getName() + ". ID: " + backupId.getIdValue().longValue());
+
+                // Send message
+                player.sendMessage(ChatColor.GOLD + "Successfully removed " + target.getName() + "'s inventory. ID: " + backupId.getIdValue().longValue());
+            });
+        })).withSubcommand(new CommandAPICommand("retention").withSubcommand(new CommandAPICommand("dryrun").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Check if retention policy is valid
+            if (retentionTask == null) {
+                player.sendMessage(ChatColor.RED + "Retention policy is invalid, check the console.");
+                return;
+            }
+
+            // Plan retention off the main thread
+            runMaintenance(player, () -> {
+                Map<UUID, List<BackupMetadata>> plan = retentionTask.plan();
+
+                scheduler.runForPlayer(player, () -> {
+                    int total = plan.values().stream().mapToInt(List::size).sum();
+
+                    // Send report
+                    player.sendMessage(ChatColor.GOLD + "Retention policy: " + retentionTask.getPolicy());
+                    player.sendMessage(ChatColor.GOLD + "Would delete " + total + " backup inventories of " + plan.size() + " players.");
+                    plan.entrySet().stream()
+                            .sorted((a, b) -> Integer.compare(b.getValue().size(), a.getValue().size()))
+                            .limit(10)
+                            .forEach(entry -> {
+                                OfflinePlayer offlinePlayer = getServer().getOfflinePlayer(entry.getKey());
+                                String name = offlinePlayer.getName() == null ? entry.getKey().toString() : offlinePlayer.getName();
+                                player.sendMessage(ChatColor.GOLD + " - " + name + ": " + entry.getValue().size() + " of " + repository.getIndex().count(entry.getKey()));
+                            });
+                });
+            });
+        })).withSubcommand(new CommandAPICommand("run").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Check if retention policy is valid
+            if (retentionTask == null) {
+                player.sendMessage(ChatColor.RED + "Retention policy is invalid, check the console.");
+                return;
+            }
+
+            // Send message
+            player.sendMessage(ChatColor.GOLD + "Applying retention policy...");
+
+            // Apply retention off the main thread
+            runMaintenance(player, () -> {
+                int deleted = retentionTask.prune();
+
+                // Send message
+                scheduler.runForPlayer(player, () -> player.sendMessage(deleted < 0
+                        ? ChatColor.RED + "Retention policy is already being applied."
+                        : ChatColor.GOLD + "Retention policy deleted " + deleted + " backup inventories."));
+            });
+        }))).withSubcommand(new CommandAPICommand("purgeall").withSubcommand(new CommandAPICommand("older").withArguments(new StringArgument("age")).executesPlayer((player, args) -> {
+            // Parse age
+            long age;
+            try {
+                age = TimeUtils.parseDuration((String) args.get("age"));
+            } catch (IllegalArgumentException e) {
+                player.sendMessage(ChatColor.RED + e.getMessage());
+                return;
+            }
+
+            // Purge backups older than the age
+            runPurge(player, PurgeTask.olderThan(System.currentTimeMillis() - age), "older than " + TimeUtils.formatDuration(age));
+        })).withSubcommand(new CommandAPICommand("offline").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Check if the database is shared, players online on other servers would lose their backups
+            if (store.isShared()) {
+                player.sendMessage(ChatColor.RED + "Purging offline players is not supported with a database shared between servers.");
+                return;
+            }
+
+            // Get online players, the backups of everyone else are purged
+            Set<UUID> onlinePlayers = new HashSet<>();
+            for (Player onlinePlayer : getServer().getOnlinePlayers()) {
+                onlinePlayers.add(onlinePlayer.getUniqueId());
+            }
+
+            // Purge backups of offline players
+            runPurge(player, PurgeTask.playersExcept(onlinePlayers), "of offline players");
+        }))).withSubcommand(new CommandAPICommand("export").withArguments(new StringArgument("name")).withOptionalArguments(archivePlayerArgument()).withOptionalArguments(new StringArgument("since")).withOptionalArguments(new StringArgument("until")).executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Get archive file and filter
+            File file;
+            BackupArchive.Filter filter;
+            try {
+                file = getArchiveFile((String) args.get("name"));
+                filter = getArchiveFilter((String) args.get("player"), (String) args.get("since"), (String) args.get("until"));
+            } catch (IllegalArgumentException e) {
+                player.sendMessage(ChatColor.RED + e.getMessage());
+                return;
+            }
+
+            // Check if an export or import is already running
+            if (archive.isRunning()) {
+                player.sendMessage(ChatColor.RED + "An export or import is already running.");
+                return;
+            }
+
+            // Send message
+            player.sendMessage(ChatColor.GOLD + "Exporting backup inventories to " + file.getName() + "...");
+
+            // Export off the main thread
+            runMaintenance(player, () -> {
+                String message;
+                try {
+                    int exported = archive.export(file, filter, count -> scheduler.runForPlayer(player,
+                            () -> player.sendMessage(ChatColor.GOLD + "Exported " + count + " backup inventories...")));
+                    message = exported < 0
+                            ? ChatColor.RED + "An export or import is already running."
+                            : ChatColor.GOLD + "Successfully exported " + exported + " backup inventories to " + file.getName() + ".";
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Failed to export backup inventories to " + file.getName() + ".", e);
+                    message = ChatColor.RED + "Failed to export backup inventories, check the console.";
+                }
+
+                // Send message
+                String result = message;
+                scheduler.runForPlayer(player, () -> player.sendMessage(result));
+            });
+        })).withSubcommand(new CommandAPICommand("import").withArguments(new StringArgument("name").replaceSuggestions(ArgumentSuggestions.stringCollection(info -> getArchiveNames()))).withOptionalArguments(archivePlayerArgument()).withOptionalArguments(new StringArgument("since")).withOptionalArguments(new StringArgument("until")).executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Get archive file and filter
+            File file;
+            BackupArchive.Filter filter;
+            try {
+                file = getArchiveFile((String) args.get("name"));
+                filter = getArchiveFilter((String) args.get("player"), (String) args.get("since"), (String) args.get("until"));
+            } catch (IllegalArgumentException e) {
+                player.sendMessage(ChatColor.RED + e.getMessage());
                 return;
             }
 
-            // Delete backup inventory
-            repository.remove(backupInventory);
+            // Check if archive exists
+            if (!file.isFile()) {
+                player.sendMessage(ChatColor.RED + "Archive " + file.getName() + " not found.");
+                return;
+            }
 
-            // Log backup inventory deletion
-            LOGGER.info("Deleted backup inventory for " + target.getName() + ". ID: " + backupInventory.getIdField().getIdValue().longValue());
+            // Check if an export or import is already running
+            if (archive.isRunning()) {
+                player.sendMessage(ChatColor.RED + "An export or import is already running.");
+                return;
+            }
 
             // Send message
-            player.sendMessage(ChatColor.GOLD + "Successfully removed " + target.getName() + "'s inventory. ID: " + backupInventory.getTimestamp());
+            player.sendMessage(ChatColor.GOLD + "Importing backup inventories from " + file.getName() + "...");
+
+            // Import off the main thread
+            runMaintenance(player, () -> {
+                String message;
+                try {
+                    int imported = archive.importArchive(file, filter, count -> scheduler.runForPlayer(player,
+                            () -> player.sendMessage(ChatColor.GOLD + "Imported " + count + " backup inventories...")));
+                    message = imported < 0
+                            ? ChatColor.RED + "An export or import is already running."
+                            : ChatColor.GOLD + "Successfully imported " + imported + " backup inventories from " + file.getName() + ".";
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Failed to import backup inventories from " + file.getName() + ".", e);
+                    message = ChatColor.RED + "Failed to import backup inventories: " + e.getMessage();
+                }
+
+                // Send message
+                String result = message;
+                scheduler.runForPlayer(player, () -> player.sendMessage(result));
+            });
+        })).withSubcommand(new CommandAPICommand("migrate").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Check if migration is already running
+            if (migration.isRunning()) {
+                player.sendMessage(ChatColor.RED + "Migration is already running.");
+                return;
+            }
+
+            // Send message
+            player.sendMessage(ChatColor.GOLD + "Migrating backup inventories to the current format...");
+
+            // Migrate backup inventories off the main thread
+            runMaintenance(player, () -> {
+                int migrated = migration.run();
+
+                // Send message
+                scheduler.runForPlayer(player, () -> player.sendMessage(migrated < 0
+                        ? ChatColor.RED + "Migration is already running."
+                        : ChatColor.GOLD + "Successfully migrated " + migrated + " backup inventories."));
+            });
+        })).withSubcommand(new CommandAPICommand("keyframes").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Send message
+            player.sendMessage(ChatColor.GOLD + "Rewriting long delta chains as keyframes...");
+
+            // Compact delta chains off the main thread
+            runMaintenance(player, () -> {
+                int rewritten = repository.compactChains();
+
+                // Log delta chain compaction
+                LOGGER.info("Rewrote " + rewritten + " backup inventories as keyframes.");
+
+                // Send message
+                scheduler.runForPlayer(player, () -> player.sendMessage(ChatColor.GOLD + "Rewrote " + rewritten + " backup inventories as keyframes."));
+            });
+        })).withSubcommand(new CommandAPICommand("gc").executesPlayer((player, args) -> {
+            // Check if storage is ready
+            if (!isStorageReady(player)) {
+                return;
+            }
+
+            // Check if the database is shared, other servers may reference blobs the recount doesn't see
+            if (store.isShared()) {
+                player.sendMessage(ChatColor.RED + "Garbage collection is not supported with a database shared between servers.");
+                return;
+            }
+
+            // Send message
+            player.sendMessage(ChatColor.GOLD + "Collecting unreferenced item stack blobs...");
+
+            // Collect garbage off the main thread
+            runMaintenance(player, () -> {
+                int deleted = repository.collectGarbage();
+
+                // Log garbage collection
+                LOGGER.info("Deleted " + deleted + " unreferenced item stack blobs.");
+
+                // Send message
+                scheduler.runForPlayer(player, () -> player.sendMessage(ChatColor.GOLD + "Deleted " + deleted + " unreferenced blobs, " + repository.getBlobStore().size() + " remaining."));
+            });
+        })).withSubcommand(new CommandAPICommand("compact").executesPlayer((player, args) -> {
+            // Compact step by step
+            runCompaction(player, false);
+        }).withSubcommand(new CommandAPICommand("full").executesPlayer((player, args) -> {
+            // Compact by rewriting all live data at once
+            runCompaction(player, true);
+        }))).withSubcommand(new CommandAPICommand("status").executesPlayer((player, args) -> {
+            // Collect status off the main thread, reading the database size may wait for the writer
+            runStorageTask(player, this::describeStatus, lines -> {
+                // Send status
+                player.sendMessage(ChatColor.GOLD + "InventoryBackup status:");
+                for (String line : lines) {
+                    player.sendMessage(ChatColor.GOLD + " - " + line);
+                }
+            });
+        })).withSubcommand(new CommandAPICommand("stats").executesPlayer((player, args) -> {
+            // Collect metrics off the main thread, reading the database size may wait for the writer
+            runStorageTask(player, metricsReporter::describe, lines -> {
+                // Send metrics
+                player.sendMessage(ChatColor.GOLD + "InventoryBackup metrics since startup:");
+                for (String line : lines) {
+                    player.sendMessage(ChatColor.GOLD + " - " + line);
+                }
+            });
         })).register();
+
+        // Open storage in the background, so a large database doesn't delay the server startup
+        storageThread = new Thread(this::openStorage, "InventoryBackup-Storage");
+        storageThread.setDaemon(true);
+        storageThread.start();
+    }
+
+    /**
+     * Opens the storage backend, builds the backup index and starts the backup writer.
+     * Runs on the storage thread while the server starts, backups taken meanwhile are queued by the writer.
+     */
+    private void openStorage() {
+        long start = System.nanoTime();
+
+        // Open storage backend and build the in-memory backup index
+        BackupStore openedStore = null;
+        BackupRepository openedRepository;
+        try {
+            openedStore = openStore(getConfig().getString("storage.type", "nitrite"));
+            store = openedStore;
+
+            // Log repository loading
+            LOGGER.info("Loading repository...");
+
+            // Create repository, storing large item stacks once per distinct content if deduplication is enabled
+            int deduplicationMinSize = getConfig().getBoolean("storage.deduplication.enabled", true)
+                    ? Math.max(0, getConfig().getInt("storage.deduplication.min-size", 64))
+                    : -1;
+            int maxChain = getConfig().getBoolean("storage.delta.enabled", false) ? Math.max(1, getConfig().getInt("storage.delta.max-chain", 20)) : 0;
+
+            // Deltas of a shared database could lose their base to another server's retention or purge, which only
+            // knows its own index, so they are disabled and existing chains are rewritten as keyframes on startup
+            if (maxChain > 0 && openedStore.isShared()) {
+                LOGGER.warning("Delta backups are not supported with a database shared between servers, storing keyframes only.");
+                maxChain = 0;
+            }
+
+            // Recounting blob references can't see the backups other servers insert meanwhile, so blobs could be
+            // deleted while still in use. Shared databases store new item stacks inline, existing blobs stay readable
+            if (deduplicationMinSize >= 0 && openedStore.isShared()) {
+                LOGGER.warning("Deduplication is not supported with a database shared between servers, storing item stacks inline.");
+                deduplicationMinSize = -1;
+            }
+
+            // Servers sharing a database generate ids with their own server id, so they never collide
+            BackupIdGenerator idGenerator = openedStore.isShared()
+                    ? new BackupIdGenerator(getConfig().getInt("storage.postgresql.server-id", 0))
+                    : new BackupIdGenerator();
+            openedRepository = new BackupRepository(openedStore, deduplicationMinSize, maxChain, getConfig().getInt("storage.delta.cache-size", 256), metrics, idGenerator);
+
+            // Log index loading
+            LOGGER.info("Loading backup index...");
+
+            // Build in-memory backup index
+            storageState = StorageState.INDEXING;
+            openedRepository.loadIndex();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to open storage, disabling plugin.", e);
+            storageState = StorageState.FAILED;
+            if (openedStore != null) {
+                openedStore.close();
+            }
+            if (!disabling) {
+                scheduler.run(() -> getServer().getPluginManager().disablePlugin(this));
+            }
+            return;
+        }
+        repository = openedRepository;
+
+        // Create legacy format migration
+        migration = new LegacyFormatMigration(repository, getConfig().getInt("migration.batch-size", 500));
+
+        // Create export archive support
+        archive = new BackupArchive(repository, getConfig().getInt("archive.batch-size", 500));
+
+        // Create bulk purge task, sharing the batch size of the retention policy
+        purgeTask = new PurgeTask(repository, getConfig().getInt("retention.batch-size", 200));
+
+        // Log retention policy loading
+        LOGGER.info("Loading retention policy...");
+
+        // Create retention task
+        try {
+            RetentionPolicy retentionPolicy = RetentionPolicy.fromConfig(getConfig().getConfigurationSection("retention"));
+            retentionTask = new RetentionTask(repository, retentionPolicy, getConfig().getInt("retention.batch-size", 200));
+            LOGGER.info("Retention policy: " + retentionPolicy);
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe("Invalid retention policy, retention is disabled: " + e.getMessage());
+        }
+
+        // Create compaction task
+        try {
+            String[] window = getConfig().getString("compaction.window", "3-6").split("-");
+            compactionTask = new CompactionTask(repository,
+                    getConfig().getLong("compaction.step-megabytes", 16) * 1024 * 1024,
+                    TimeUtils.parseDuration(getConfig().getString("compaction.step-pause", "1s")),
+                    TimeUtils.parseDuration(getConfig().getString("compaction.interval", "1d")),
+                    Integer.parseInt(window[0].trim()),
+                    Integer.parseInt(window[window.length - 1].trim()),
+                    getConfig().getInt("compaction.max-players", 10));
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe("Invalid compaction settings, compaction is disabled: " + e.getMessage());
+        }
+
+        synchronized (storageLock) {
+            // Close the database again if the plugin stopped waiting for it to open
+            if (storageAbandoned) {
+                LOGGER.warning("Plugin was disabled while the database was opening, closing it.");
+                openedStore.close();
+                return;
+            }
+
+            // Recover death backups a crash left uncommitted, before the backups queued since startup
+            if (journal != null) {
+                try {
+                    journal.replay(repository, getConfig().getInt("writer.batch-size", 64));
+                } catch (StorageException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to recover journaled backup inventories, retrying on the next start.", e);
+                }
+            }
+
+            // Log backup writer starting
+            LOGGER.info("Starting backup writer...");
+
+            // Start backup writer, writing the backups queued so far
+            writer.start(repository);
+            storageState = StorageState.READY;
+            storageOpenMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+
+        // Log storage readiness
+        LOGGER.info("Storage ready after " + storageOpenMillis + " ms.");
+
+        // The plugin is being disabled, it flushes the writer and closes the database once this returns
+        if (disabling) {
+            return;
+        }
+
+        // Schedule retention task off the main thread
+        if (retentionTask != null && getConfig().getBoolean("retention.enabled", false) && !retentionTask.getPolicy().isEmpty()) {
+            long interval = Math.max(1, TimeUtils.parseDuration(getConfig().getString("retention.interval", "10m")) / 50);
+            scheduler.runAsyncTimer(() -> runMaintenance(retentionTask), interval, interval);
+        }
+
+        // Write spooled backups now and whenever the database may be reachable again, off the main thread
+        long replayInterval = Math.max(1, TimeUtils.parseDuration(getConfig().getString("storage.spool.replay-interval", "30s")) / 50);
+        scheduler.runAsyncTimer(() -> runMaintenance(this::replaySpool), 0, replayInterval);
+
+        // Check on the main thread whether automatic compaction is due, then compact off the main thread
+        if (compactionTask != null && getConfig().getBoolean("compaction.enabled", false)) {
+            scheduler.runTimer(() -> {
+                if (compactionTask.isDue(getServer().getOnlinePlayers().size())) {
+                    runMaintenance(compactionTask);
+                }
+            }, COMPACTION_CHECK_PERIOD, COMPACTION_CHECK_PERIOD);
+        }
+
+        // Rewrite delta chains longer than the configured maximum, as maintenance so it finishes before the database is closed
+        runMaintenance(() -> {
+            int rewritten = repository.compactChains();
+            if (rewritten > 0) {
+                LOGGER.info("Rewrote " + rewritten + " backup inventories as keyframes.");
+            }
+        });
     }
 
     @Override
     public void onDisable() {
+        // Let the storage thread know, isEnabled() is already false
+        disabling = true;
+
         // Log command api disabling
         LOGGER.info("Disabling CommandAPI...");
 
@@ -241,37 +951,496 @@ public final class InventoryBackup extends JavaPlugin {
         // Unregister event listener
         HandlerList.unregisterAll(this);
 
+        // Wait for the storage to finish opening, so backups queued meanwhile are written before the database is closed
+        if (storageThread != null && storageThread.isAlive()) {
+            LOGGER.info("Waiting for the database to open...");
+            try {
+                storageThread.join(TimeUnit.SECONDS.toMillis(STORAGE_OPEN_TIMEOUT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Give up on a database still opening, the storage thread closes it once it opens
+        synchronized (storageLock) {
+            if (storageState != StorageState.READY) {
+                storageAbandoned = true;
+            }
+        }
+
+        // Hand backups still being journaled to the writer before it is flushed
+        if (journal != null) {
+            journal.shutdown();
+        }
+
+        // Nothing to flush if storage never opened, backups still queued fail
+        if (storageState != StorageState.READY) {
+            if (writer != null) {
+                writer.shutdown(0);
+            }
+            closeJournal();
+            return;
+        }
+
+        // Stop compaction after its current step
+        if (compactionTask != null) {
+            compactionTask.stop();
+        }
+
+        // Let running commands finish before the database is closed
+        if (commandExecutor != null) {
+            commandExecutor.shutdown();
+            try {
+                if (!commandExecutor.awaitTermination(COMMAND_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOGGER.warning("Commands did not finish in time, closing the database anyway.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Let running maintenance finish its current batch before the database is closed, queued maintenance is dropped
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.getQueue().clear();
+            maintenanceExecutor.shutdown();
+            LOGGER.info("Waiting for maintenance to finish...");
+            try {
+                if (!maintenanceExecutor.awaitTermination(MAINTENANCE_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOGGER.warning("Maintenance did not finish in time, closing the database anyway.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Log backup writer flushing
+        LOGGER.info("Flushing backup writer...");
+
+        // Write all pending backup inventories before the database is closed
+        if (!writer.shutdown(getConfig().getLong("writer.shutdown-timeout", 10000))) {
+            // Closing the database under a running insert could corrupt it, the server exiting releases it instead
+            LOGGER.warning("Backup writer is still writing, leaving the database open.");
+            closeJournal();
+            return;
+        }
+
         // Log database closing
         LOGGER.info("Closing database...");
 
         // Close database
-        db.close();
+        store.close();
+
+        // Close journal, empty unless backups failed to be written
+        closeJournal();
     }
 
     /**
-     * Get backup inventory by ID
+     * Close the backup journal, backups still in it are replayed on the next start
+     */
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+
+        if (journal.getOutstandingCount() > 0) {
+            LOGGER.warning(journal.getOutstandingCount() + " backup inventories remain in the journal and are recovered on the next start.");
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to close the backup journal.", e);
+        }
+    }
+
+    /**
+     * Opens the configured storage backend.
      *
-     * @param target Target player
-     * @param id     Backup inventory ID
-     * @return Backup inventory
+     * @param type The type of the storage backend, nitrite, sqlite or postgresql.
+     * @return The backup store.
+     * @throws SQLException             If the SQL database could not be opened.
+     * @throws IllegalArgumentException If the type or the storage engine settings are unknown.
      */
-    private BackupInventory getBackupInventory(Player target, String id) {
-        BackupInventory backupInventory = null;
+    private BackupStore openStore(String type) throws SQLException {
+        // Load storage engine settings
+        StorageSettings settings = StorageSettings.fromConfig(getConfig().getConfigurationSection("storage.engine"));
+
+        switch (type.toLowerCase()) {
+            case "nitrite": {
+                // Get database file
+                File databaseFile = new File(getDataFolder(), "inventory.db");
+
+                // Log database loading
+                LOGGER.info("Loading Nitrite database at " + databaseFile.getAbsolutePath() + "...");
+
+                // Create database
+                return NitriteBackupStore.open(databaseFile, settings);
+            }
+            case "sqlite": {
+                // Get database file
+                File databaseFile = new File(getDataFolder(), "inventory.sqlite");
+
+                // Log database loading
+                LOGGER.info("Loading SQLite database at " + databaseFile.getAbsolutePath() + "...");
 
+                // Create database
+                return JdbcBackupStore.openSqlite(databaseFile, settings);
+            }
+            case "postgresql": {
+                // Get pool configuration
+                String host = getConfig().getString("storage.postgresql.host", "localhost");
+                int port = getConfig().getInt("storage.postgresql.port", 5432);
+                String database = getConfig().getString("storage.postgresql.database", "inventorybackup");
+                HikariConfig config = new HikariConfig();
+                config.setJdbcUrl("jdbc:postgresql://" + host + ":" + port + "/" + database);
+                config.setUsername(getConfig().getString("storage.postgresql.username", "inventorybackup"));
+                config.setPassword(getConfig().getString("storage.postgresql.password", ""));
+                config.setMaximumPoolSize(Math.max(1, getConfig().getInt("storage.postgresql.pool-size", 4)));
+                config.setConnectionTimeout(Math.max(250, TimeUtils.parseDuration(getConfig().getString("storage.postgresql.connection-timeout", "5s"))));
+
+                // Log database connecting
+                LOGGER.info("Connecting to PostgreSQL database " + database + " at " + host + ":" + port + "...");
+
+                // Create database
+                return JdbcBackupStore.openPostgres(config, Math.max(0, getConfig().getInt("storage.postgresql.cache-size", 256)));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown storage type " + type + ".");
+        }
+    }
+
+    /**
+     * Write the spooled backups to the database
+     */
+    private void replaySpool() {
+        if (spool.isEmpty()) {
+            return;
+        }
+
+        try {
+            spool.replay(repository);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to replay the backup spool.", e);
+        }
+    }
+
+    /**
+     * Run maintenance on the maintenance executor, unless the plugin is being disabled
+     *
+     * @param task Maintenance
+     */
+    private void runMaintenance(Runnable task) {
+        try {
+            maintenanceExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The database is about to be closed, the task runs again after the next start
+        }
+    }
+
+    /**
+     * Run a command's work on the maintenance executor, telling the player if the plugin is being disabled
+     *
+     * @param player Player who ran the command
+     * @param task   Work of the command
+     */
+    private void runMaintenance(Player player, Runnable task) {
+        try {
+            maintenanceExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            player.sendMessage(ChatColor.RED + "The plugin is shutting down, try again after the next start.");
+        }
+    }
+
+    /**
+     * Reload a player's backups from a database shared with other servers, off the main thread
+     *
+     * @param playerId UUID of the player
+     */
+    private void refreshPlayer(UUID playerId) {
+        if (storageState != StorageState.READY || !store.isShared()) {
+            return;
+        }
+
+        commandExecutor.execute(() -> {
+            try {
+                repository.refresh(playerId);
+            } catch (StorageException e) {
+                LOGGER.warning("Failed to refresh backups of player " + playerId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Check if the storage is ready, telling the player if it isn't
+     *
+     * @param player Player who ran the command
+     * @return True if backups can be read and written
+     */
+    private boolean isStorageReady(Player player) {
+        if (storageState == StorageState.READY) {
+            return true;
+        }
+
+        player.sendMessage(ChatColor.RED + "Backups are not available yet, the storage is " + storageState.getDescription() + ".");
+        return false;
+    }
+
+    /**
+     * Describe the state of the storage, one line per value
+     *
+     * @return Lines
+     */
+    private List<String> describeStatus() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Storage: " + getConfig().getString("storage.type", "nitrite") + ", " + storageState.getDescription()
+                + (storageState == StorageState.READY ? " (opened in " + storageOpenMillis + " ms)" : ""));
+        lines.add("Queued backups: " + writer.getPendingCount());
+        if (storageState == StorageState.READY) {
+            lines.add("Indexed: " + repository.getIndex().size() + " backup inventories of " + repository.getIndex().getPlayers().size() + " players");
+            lines.add("Database size: " + SizeUtils.formatBytes(store.getSize()));
+        }
+        return lines;
+    }
+
+    /**
+     * Runs storage work on the command executor and hands the result to the main thread.
+     * If the work fails, the failure is logged and the player is told.
+     *
+     * @param player   The player who ran the command.
+     * @param task     The storage work.
+     * @param callback Receives the result on the main thread.
+     * @param <T>      The type of the result.
+     */
+    private <T> void runStorageTask(Player player, Supplier<T> task, Consumer<T> callback) {
+        CompletableFuture.supplyAsync(task, commandExecutor).whenComplete((result, throwable) -> scheduler.runForPlayer(player, () -> {
+            if (throwable != null) {
+                LOGGER.log(Level.SEVERE, "Failed to run command for " + player.getName() + ".", throwable);
+                player.sendMessage(ChatColor.RED + "The command failed, check the console.");
+                return;
+            }
+
+            callback.accept(result);
+        }));
+    }
+
+    /**
+     * Purge backup inventories of all players off the main thread, reporting progress to the player
+     *
+     * @param player      Player who ran the command
+     * @param filter      Selects the backup inventories to purge
+     * @param description Describes the selected backup inventories
+     */
+    private void runPurge(Player player, Predicate<BackupMetadata> filter, String description) {
+        // Check if storage is ready
+        if (!isStorageReady(player)) {
+            return;
+        }
+
+        // Check if a purge is already running
+        if (purgeTask.isRunning()) {
+            player.sendMessage(ChatColor.RED + "A purge is already running.");
+            return;
+        }
+
+        // Send message
+        player.sendMessage(ChatColor.GOLD + "Purging backup inventories " + description + "...");
+
+        // Purge in batches off the main thread
+        runMaintenance(player, () -> {
+            int purged = purgeTask.purge(filter, (deleted, total) -> scheduler.runForPlayer(player,
+                    () -> player.sendMessage(ChatColor.GOLD + "Purged " + deleted + " of " + total + " backup inventories...")));
+
+            // Log purge
+            if (purged >= 0) {
+                LOGGER.info(player.getName() + " purged " + purged + " backup inventories " + description + ".");
+            }
+
+            // Send message
+            scheduler.runForPlayer(player, () -> player.sendMessage(purged < 0
+                    ? ChatColor.RED + "A purge is already running."
+                    : ChatColor.GOLD + "Successfully purged " + purged + " backup inventories " + description + "."));
+        });
+    }
+
+    /**
+     * Compact the database off the main thread and report the reclaimed space to the player
+     *
+     * @param player Player who ran the command
+     * @param full   True to rewrite all live data at once
+     */
+    private void runCompaction(Player player, boolean full) {
+        // Check if storage is ready
+        if (!isStorageReady(player)) {
+            return;
+        }
+
+        // Check if compaction settings are valid
+        if (compactionTask == null) {
+            player.sendMessage(ChatColor.RED + "Compaction settings are invalid, check the console.");
+            return;
+        }
+
+        // Check if compaction is already running
+        if (compactionTask.isRunning()) {
+            player.sendMessage(ChatColor.RED + "Compaction is already running.");
+            return;
+        }
+
+        // Send message
+        player.sendMessage(ChatColor.GOLD + "Compacting the database...");
+
+        // Compact off the main thread
+        runMaintenance(player, () -> {
+            long reclaimed = compactionTask.compact(full);
+            long size = store.getSize();
+
+            // Send message
+            scheduler.runForPlayer(player, () -> player.sendMessage(reclaimed < 0
+                    ? ChatColor.RED + "Compaction is already running."
+                    : ChatColor.GOLD + "Reclaimed " + SizeUtils.formatBytes(reclaimed) + ", the database is now " + SizeUtils.formatBytes(size) + "."));
+        });
+    }
+
+    /**
+     * Create the player argument of the export and import commands, "*" selects all players
+     *
+     * @return Player argument
+     */
+    private Argument<String> archivePlayerArgument() {
+        return new StringArgument("player").replaceSuggestions(ArgumentSuggestions.stringCollection(info -> {
+            List<String> suggestions = new ArrayList<>();
+            suggestions.add("*");
+            for (Player onlinePlayer : getServer().getOnlinePlayers()) {
+                suggestions.add(onlinePlayer.getName());
+            }
+            return suggestions;
+        }));
+    }
+
+    /**
+     * Get an export archive file in the exports folder
+     *
+     * @param name Name of the archive, with or without extension
+     * @return Archive file
+     * @throws IllegalArgumentException If the name is not a plain file name
+     */
+    private File getArchiveFile(String name) {
+        if (name.isEmpty() || name.contains("..") || name.contains("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("Invalid archive name: " + name);
+        }
+
+        File folder = new File(getDataFolder(), "exports");
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IllegalArgumentException("Failed to create " + folder.getPath() + ".");
+        }
+        return new File(folder, name.endsWith(ARCHIVE_EXTENSION) ? name : name + ARCHIVE_EXTENSION);
+    }
+
+    /**
+     * Get the names of the export archives in the exports folder
+     *
+     * @return Archive names, without extension
+     */
+    private List<String> getArchiveNames() {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(getDataFolder(), "exports").listFiles((folder, name) -> name.endsWith(ARCHIVE_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                names.add(file.getName().substring(0, file.getName().length() - ARCHIVE_EXTENSION.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the filter of the export and import commands
+     *
+     * @param playerName Name of the player, "*" or null for all players
+     * @param since      Only backups newer than this duration ago, null or 0 for no limit
+     * @param until      Only backups older than this duration ago, null or 0 for no limit
+     * @return Archive filter
+     * @throws IllegalArgumentException If the player is unknown or a duration is invalid
+     */
+    private BackupArchive.Filter getArchiveFilter(String playerName, String since, String until) {
+        // Resolve player without looking up unknown names
+        UUID playerId = null;
+        if (playerName != null && !playerName.equals("*")) {
+            OfflinePlayer offlinePlayer = getServer().getOfflinePlayerIfCached(playerName);
+            if (offlinePlayer == null) {
+                throw new IllegalArgumentException("Unknown player: " + playerName);
+            }
+            playerId = offlinePlayer.getUniqueId();
+        }
+
+        // Convert durations to a time range
+        long now = System.currentTimeMillis();
+        long sinceMillis = since == null ? 0 : TimeUtils.parseDuration(since);
+        long untilMillis = until == null ? 0 : TimeUtils.parseDuration(until);
+        return new BackupArchive.Filter(playerId,
+                sinceMillis > 0 ? now - sinceMillis : Long.MIN_VALUE,
+                untilMillis > 0 ? now - untilMillis : Long.MAX_VALUE);
+    }
+
+    /**
+     * Check if a command argument is a backup inventory ID or "latest"
+     *
+     * @param id Command argument
+     * @return True if the argument is a valid ID
+     */
+    private static boolean isBackupId(String id) {
         if (id.equals("latest")) {
-            // Load player's backup inventories
-            Iterable<BackupInventory> playerBackups = repository.find(ObjectFilters.eq("playerId", target.getUniqueId()));
-            for (BackupInventory currentBackupInventory : playerBackups) {
-                if (backupInventory == null || currentBackupInventory.getTimestamp() > backupInventory.getTimestamp()) {
-                    backupInventory = currentBackupInventory;
-                }
+            return true;
+        }
+
+        try {
+            Long.parseLong(id);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get backup inventory ID, resolving "latest" from the index
+     *
+     * @param target Target player
+     * @param id     Backup inventory ID or "latest"
+     * @return Backup inventory ID, or null if the player has no backups
+     */
+    private NitriteId getBackupId(Player target, String id) {
+        if (!id.equals("latest")) {
+            return NitriteId.createId(Long.parseLong(id));
+        }
+
+        // Get the newest backup inventory from the index
+        BackupMetadata latest = repository.getIndex().getLatest(target.getUniqueId());
+        return latest == null ? null : latest.getIdField();
+    }
+
+    /**
+     * Get the newest backup inventory of a player taken at or before a time
+     *
+     * @param playerId UUID of the player
+     * @param cutoff   Latest timestamp of the backup inventory
+     * @return Backup inventory, or null if the player has none that old
+     */
+    private BackupInventory getBackupInventoryBefore(UUID playerId, long cutoff) {
+        for (BackupMetadata backupMetadata : repository.getBackups(playerId)) {
+            if (backupMetadata.getTimestamp() <= cutoff) {
+                return repository.getById(backupMetadata.getIdField());
             }
-        } else {
-            // Get backup inventory by ID
-            NitriteId nitriteId = NitriteId.createId(Long.parseLong(id));
-            backupInventory = repository.getById(nitriteId);
         }
+        return null;
+    }
 
-        return backupInventory;
+    /**
+     * Get backup inventory by ID
+     *
+     * @param target Target player
+     * @param id     Backup inventory ID or "latest"
+     * @return Backup inventory
+     */
+    private BackupInventory getBackupInventory(Player target, String id) {
+        NitriteId backupId = getBackupId(target, id);
+        return backupId == null ? null : repository.getById(backupId);
     }
 }
@@ -0,0 +1,192 @@
+package com.synsenetwork.inventorybackup.autobackup;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.scheduler.TaskScheduler;
+import com.synsenetwork.inventorybackup.storage.BackupWriter;
+import com.synsenetwork.inventorybackup.tracking.ChangeTracker;
+import com.synsenetwork.inventorybackup.utils.Experience;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.dizitart.no2.NitriteId;
+
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Backs up every online player on an interval. Runs on the main thread every tick, but only snapshots players
+ * until the tick's time budget is used up, so a full round is spread over as many ticks as it needs.
+ * Players whose inventory hasn't changed since their last backup are skipped, as are empty inventories if
+ * configured, and serialization is left to the {@link BackupWriter}. On Folia, the task runs on the global region thread and each snapshot is taken
+ * on the thread of the region owning the player. As those snapshots run later, only a bounded number of them is
+ * dispatched at once and a full writer pauses the round for a tick once they report it.
+ */
+public class AutoBackupTask implements Runnable {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(AutoBackupTask.class.getName());
+
+    // Most snapshots waiting on the thread owning their player at once, bounds a tick's dispatches on Folia
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final Server server;
+    private final TaskScheduler scheduler;
+    private final BackupWriter writer;
+    private final ChangeTracker tracker;
+    private final boolean skipEmpty;
+    private final BackupMetrics metrics;
+    private final long intervalTicks;
+    private final long budgetNanos;
+
+    // Players still to be backed up in the current round
+    private final Deque<UUID> pending = new ConcurrentLinkedDeque<>();
+
+    // Set when the writer had no room for a snapshot, so the round continues next tick
+    private final AtomicBoolean writerFull = new AtomicBoolean();
+
+    // Snapshots dispatched to the thread owning their player that haven't run yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger backedUp = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger empty = new AtomicInteger();
+    private long ticksUntilRound;
+    private boolean roundActive;
+
+    /**
+     * Creates a new AutoBackupTask.
+     *
+     * @param server        The server.
+     * @param scheduler     The scheduler running snapshots on the thread owning the player.
+     * @param writer        The writer to submit backups to.
+     * @param tracker       The tracker of the last backup per player.
+     * @param skipEmpty     Whether players without items and experience are skipped.
+     * @param intervalTicks The number of ticks between the start of two rounds.
+     * @param budgetNanos   The main thread time a tick may spend on snapshots, in nanoseconds.
+     * @param metrics       The metrics to record snapshot times in.
+     */
+    public AutoBackupTask(Server server, TaskScheduler scheduler, BackupWriter writer, ChangeTracker tracker, boolean skipEmpty,
+                          long intervalTicks, long budgetNanos, BackupMetrics metrics) {
+        this.server = server;
+        this.scheduler = scheduler;
+        this.writer = writer;
+        this.tracker = tracker;
+        this.skipEmpty = skipEmpty;
+        this.metrics = metrics;
+        this.intervalTicks = Math.max(1, intervalTicks);
+        this.budgetNanos = Math.max(0, budgetNanos);
+        this.ticksUntilRound = this.intervalTicks;
+    }
+
+    /**
+     * Runs one tick of the auto-backup.
+     */
+    @Override
+    public void run() {
+        // Start a new round once the interval has passed and the previous round is done
+        if (--ticksUntilRound <= 0 && pending.isEmpty() && inFlight.get() == 0) {
+            startRound();
+        }
+
+        // Back off for a tick when the writer had no room for a snapshot taken on another thread since the last tick
+        if (writerFull.getAndSet(false)) {
+            return;
+        }
+
+        // Snapshot players until the budget is used up, but always at least one so a round always finishes
+        long deadline = System.nanoTime() + budgetNanos;
+        while (!pending.isEmpty() && inFlight.get() < MAX_IN_FLIGHT) {
+            UUID playerId = pending.poll();
+            Player player = server.getPlayer(playerId);
+            if (player == null || !player.isOnline()) {
+                continue;
+            }
+
+            // Snapshot on the thread owning the player, this one unless the server runs Folia
+            inFlight.incrementAndGet();
+            scheduler.runForPlayer(player, () -> {
+                try {
+                    // Once the writer is full, leave the remaining snapshots of this tick for the next one
+                    if (writerFull.get() || !backup(player)) {
+                        pending.addFirst(playerId);
+                        writerFull.set(true);
+                    }
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }, inFlight::decrementAndGet);
+            // The snapshot already ran if this thread owns the player, then a full writer ends this tick
+            if (writerFull.getAndSet(false) || System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+
+        // Log the finished round, once every snapshot of it has been taken
+        if (roundActive && pending.isEmpty() && inFlight.get() == 0) {
+            roundActive = false;
+            LOGGER.fine("Auto-backup round finished: " + backedUp.get() + " backed up, " + unchanged.get() + " unchanged, " + empty.get() + " empty.");
+        }
+    }
+
+    /**
+     * Queues every online player for the next round.
+     */
+    private void startRound() {
+        ticksUntilRound = intervalTicks;
+        roundActive = true;
+        backedUp.set(0);
+        unchanged.set(0);
+        empty.set(0);
+
+        for (Player player : server.getOnlinePlayers()) {
+            pending.add(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Snapshots a player and submits the snapshot, unless the inventory hasn't changed since the last backup or is empty.
+     *
+     * @param player The player.
+     * @return False if the writer had no room for the snapshot.
+     */
+    private boolean backup(Player player) {
+        // Take the item stacks once, they are only copied if the inventory changed
+        long start = System.nanoTime();
+        PlayerInventory inventory = player.getInventory();
+        ItemStack[] armorContents = inventory.getArmorContents();
+        ItemStack[] extraContents = inventory.getExtraContents();
+        ItemStack[] contents = inventory.getContents();
+        int experience = Experience.getExp(player);
+        if (skipEmpty && ChangeTracker.isEmpty(experience, armorContents, extraContents, contents)) {
+            empty.incrementAndGet();
+            metrics.increment(BackupMetrics.Counter.BACKUPS_EMPTY, 1);
+            return true;
+        }
+
+        long fingerprint = ChangeTracker.fingerprint(experience, armorContents, extraContents, contents);
+        if (tracker.isUnchanged(player.getUniqueId(), fingerprint, experience, armorContents, extraContents, contents)) {
+            unchanged.incrementAndGet();
+            metrics.increment(BackupMetrics.Counter.BACKUPS_UNCHANGED, 1);
+            return true;
+        }
+
+        // Hand the snapshot to the writer without blocking the tick
+        BackupInventory backupInventory = BackupInventory.create(player, armorContents, extraContents, contents);
+        metrics.record(BackupMetrics.Timer.CAPTURE, start);
+        CompletableFuture<NitriteId> future = writer.trySubmit(backupInventory);
+        if (future == null) {
+            return false;
+        }
+
+        // Remember the snapshot, so an unchanged inventory is skipped next round
+        tracker.track(backupInventory, fingerprint, future);
+        backedUp.incrementAndGet();
+        return true;
+    }
+}
@@ -0,0 +1,363 @@
+package com.synsenetwork.inventorybackup.codec;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * This class is used to encode and decode ItemStack arrays to a compact binary format.
+ * <p>
+ * Layout (version 1):
+ * <pre>
+ * byte    version
+ * varint  array length
+ * byte[]  slot bitmap, one bit per slot, set if the slot holds an item
+ * repeated for every set slot:
+ *   varint  item length
+ *   byte[]  item bytes from {@link ItemStack#serializeAsBytes()}
+ * </pre>
+ * Empty slots (null or air) only cost one bit.
+ * <p>
+ * Delta layout (version 2), relative to a base ItemStack array:
+ * <pre>
+ * byte    version
+ * varint  array length
+ * byte[]  change bitmap, one bit per slot, set if the slot differs from the base
+ * repeated for every set slot:
+ *   varint  item length, 0 if the slot is now empty
+ *   byte[]  item bytes from {@link ItemStack#serializeAsBytes()}
+ * </pre>
+ * Unchanged slots only cost one bit.
+ */
+public final class ItemStackArrayCodec {
+    // Current format version
+    public static final byte VERSION = 1;
+
+    // Delta format version
+    public static final byte DELTA_VERSION = 2;
+
+    /**
+     * Encodes an ItemStack array.
+     *
+     * @param itemStacks The ItemStack array to encode.
+     * @return The encoded bytes, or null if the array is null.
+     */
+    public static byte[] encode(ItemStack[] itemStacks) {
+        if (itemStacks == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + itemStacks.length * 32);
+
+        // Write header
+        out.write(VERSION);
+        writeVarInt(out, itemStacks.length);
+
+        // Write slot bitmap
+        byte[] bitmap = new byte[(itemStacks.length + 7) >>> 3];
+        for (int i = 0; i < itemStacks.length; i++) {
+            if (!isEmpty(itemStacks[i])) {
+                bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        out.write(bitmap, 0, bitmap.length);
+
+        // Write every non-empty slot
+        for (ItemStack itemStack : itemStacks) {
+            if (isEmpty(itemStack)) {
+                continue;
+            }
+
+            byte[] itemBytes = itemStack.serializeAsBytes();
+            writeVarInt(out, itemBytes.length);
+            out.write(itemBytes, 0, itemBytes.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an ItemStack array.
+     *
+     * @param bytes The encoded bytes.
+     * @return The decoded ItemStack array, or null if the bytes are null.
+     * @throws IllegalArgumentException If the bytes are not in a supported format.
+     */
+    public static ItemStack[] decode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+
+        Reader in = new Reader(bytes);
+
+        // Read header
+        byte version = in.readByte();
+        if (version == DELTA_VERSION) {
+            throw new IllegalArgumentException("ItemStack array is a delta and can only be decoded against its base.");
+        }
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported ItemStack array format version " + version + ".");
+        }
+        ItemStack[] itemStacks = new ItemStack[in.readArrayLength()];
+
+        // Read slot bitmap
+        int bitmapOffset = in.position;
+        in.skip((itemStacks.length + 7) >>> 3);
+
+        // Read every non-empty slot
+        for (int i = 0; i < itemStacks.length; i++) {
+            if ((bytes[bitmapOffset + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                continue;
+            }
+
+            itemStacks[i] = ItemStack.deserializeBytes(in.readBytes(in.readVarInt()));
+        }
+
+        return itemStacks;
+    }
+
+    /**
+     * Encodes an ItemStack array as the slots that changed relative to a base array.
+     *
+     * @param base       The base ItemStack array, may be null.
+     * @param itemStacks The ItemStack array to encode.
+     * @return The encoded delta, or null if the array is null.
+     */
+    public static byte[] encodeDelta(ItemStack[] base, ItemStack[] itemStacks) {
+        return encodeDelta(base, itemStacks, null);
+    }
+
+    /**
+     * Encodes an ItemStack array as the slots that changed relative to a base array, copying the item bytes of
+     * changed slots from the same array already encoded as a keyframe instead of serializing the items again.
+     *
+     * @param base       The base ItemStack array, may be null.
+     * @param itemStacks The ItemStack array to encode.
+     * @param keyframe   The ItemStack array encoded by {@link #encode(ItemStack[])}, or null to serialize the items.
+     * @return The encoded delta, or null if the array is null.
+     */
+    public static byte[] encodeDelta(ItemStack[] base, ItemStack[] itemStacks, byte[] keyframe) {
+        if (itemStacks == null) {
+            return null;
+        }
+        int[] itemOffsets = keyframe == null ? null : itemOffsets(keyframe, itemStacks.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+
+        // Write header
+        out.write(DELTA_VERSION);
+        writeVarInt(out, itemStacks.length);
+
+        // Write change bitmap
+        byte[] bitmap = new byte[(itemStacks.length + 7) >>> 3];
+        for (int i = 0; i < itemStacks.length; i++) {
+            if (!isSame(slotOf(base, i), itemStacks[i])) {
+                bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        out.write(bitmap, 0, bitmap.length);
+
+        // Write every changed slot
+        for (int i = 0; i < itemStacks.length; i++) {
+            if ((bitmap[i >>> 3] & (1 << (i & 7))) == 0) {
+                continue;
+            }
+
+            if (isEmpty(itemStacks[i])) {
+                writeVarInt(out, 0);
+                continue;
+            }
+
+            // Copy the length and item bytes of the slot from the keyframe
+            if (itemOffsets != null) {
+                out.write(keyframe, itemOffsets[i], itemOffsets[i + 1] - itemOffsets[i]);
+                continue;
+            }
+
+            byte[] itemBytes = itemStacks[i].serializeAsBytes();
+            writeVarInt(out, itemBytes.length);
+            out.write(itemBytes, 0, itemBytes.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds where every slot of an encoded keyframe starts.
+     *
+     * @param bytes  The encoded keyframe.
+     * @param length The expected array length.
+     * @return The offset of the item length of every slot, followed by the end offset, or null if the keyframe
+     * doesn't hold an array of the expected length.
+     */
+    private static int[] itemOffsets(byte[] bytes, int length) {
+        Reader in = new Reader(bytes);
+        if (in.readByte() != VERSION || in.readVarInt() != length) {
+            return null;
+        }
+
+        int bitmapOffset = in.position;
+        in.skip((length + 7) >>> 3);
+
+        // Empty slots take no bytes, so they start where the next slot does
+        int[] offsets = new int[length + 1];
+        for (int i = 0; i < length; i++) {
+            offsets[i] = in.position;
+            if ((bytes[bitmapOffset + (i >>> 3)] & (1 << (i & 7))) != 0) {
+                in.skip(in.readVarInt());
+            }
+        }
+        offsets[length] = in.position;
+        return offsets;
+    }
+
+    /**
+     * Decodes a delta by applying the changed slots to a copy of its base array.
+     *
+     * @param base  The base ItemStack array, may be null.
+     * @param bytes The encoded delta.
+     * @return The decoded ItemStack array, or null if the bytes are null.
+     * @throws IllegalArgumentException If the bytes are not a delta.
+     */
+    public static ItemStack[] decodeDelta(ItemStack[] base, byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+
+        Reader in = new Reader(bytes);
+
+        // Read header
+        byte version = in.readByte();
+        if (version != DELTA_VERSION) {
+            throw new IllegalArgumentException("Unsupported ItemStack array delta format version " + version + ".");
+        }
+        ItemStack[] itemStacks = new ItemStack[in.readArrayLength()];
+
+        // Read change bitmap
+        int bitmapOffset = in.position;
+        in.skip((itemStacks.length + 7) >>> 3);
+
+        // Take unchanged slots from the base and read every changed slot
+        for (int i = 0; i < itemStacks.length; i++) {
+            if ((bytes[bitmapOffset + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                itemStacks[i] = slotOf(base, i);
+                continue;
+            }
+
+            int length = in.readVarInt();
+            itemStacks[i] = length == 0 ? null : ItemStack.deserializeBytes(in.readBytes(length));
+        }
+
+        return itemStacks;
+    }
+
+    /**
+     * Gets a slot of an ItemStack array, treating slots past its end as empty.
+     *
+     * @param itemStacks The ItemStack array, may be null.
+     * @param slot       The slot.
+     * @return The ItemStack in the slot, or null.
+     */
+    private static ItemStack slotOf(ItemStack[] itemStacks, int slot) {
+        return itemStacks == null || slot >= itemStacks.length ? null : itemStacks[slot];
+    }
+
+    /**
+     * Checks whether two slots hold the same item stack.
+     *
+     * @param a The first ItemStack.
+     * @param b The second ItemStack.
+     * @return True if both slots are empty or hold equal item stacks.
+     */
+    private static boolean isSame(ItemStack a, ItemStack b) {
+        boolean aEmpty = isEmpty(a);
+        boolean bEmpty = isEmpty(b);
+        if (aEmpty || bEmpty) {
+            return aEmpty && bEmpty;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Checks whether an ItemStack represents an empty slot.
+     *
+     * @param itemStack The ItemStack to check.
+     * @return True if the slot is empty.
+     */
+    public static boolean isEmpty(ItemStack itemStack) {
+        return itemStack == null || itemStack.getType().isAir() || itemStack.getAmount() <= 0;
+    }
+
+    /**
+     * Writes an unsigned variable-length integer.
+     *
+     * @param out   The output stream.
+     * @param value The value to write.
+     */
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * A minimal reader over a byte array.
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private byte readByte() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of ItemStack array data.");
+            }
+            return bytes[position++];
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in ItemStack array data.");
+        }
+
+        private int readArrayLength() {
+            // A corrupt length is rejected before allocating, the slot bitmap has to fit in the remaining bytes
+            int length = readVarInt();
+            if (length < 0 || (length + 7L) >>> 3 > bytes.length - position) {
+                throw new IllegalArgumentException("Invalid ItemStack array length " + length + ".");
+            }
+            return length;
+        }
+
+        private void skip(int length) {
+            if (length < 0 || position + length > bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of ItemStack array data.");
+            }
+            position += length;
+        }
+
+        private byte[] readBytes(int length) {
+            int start = position;
+            skip(length);
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, start, result, 0, length);
+            return result;
+        }
+    }
+
+    // Private constructor to prevent instantiation of the utility class.
+    private ItemStackArrayCodec() {
+    }
+}
@@ -2,6 +2,7 @@ package com.synsenetwork.inventorybackup.data;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
 import com.synsenetwork.inventorybackup.gson.ItemStackArrayTypeAdapter;
 import com.synsenetwork.inventorybackup.gson.ItemStackTypeAdapter;
 import com.synsenetwork.inventorybackup.utils.Experience;
@@ -17,13 +18,17 @@ import org.dizitart.no2.objects.Index;
 import org.dizitart.no2.objects.Indices;
 
 import java.util.UUID;
+import java.util.function.Function;
 
 /**
  * Represents a backup of a player's inventory.
+ * <p>
+ * A backup is either a keyframe holding every slot, or a delta holding only the slots that changed
+ * since its base backup. Deltas are decoded by decoding their base first, so restoring one walks the chain.
  */
 @Indices({
         @Index(value = "playerId", type = IndexType.NonUnique),
-        @Index(value = "timestamp", type = IndexType.Unique)
+        @Index(value = "timestamp", type = IndexType.NonUnique)
 })
 public class BackupInventory implements Mappable {
     @Id
@@ -35,7 +40,39 @@ public class BackupInventory implements Mappable {
     private ItemStack[] contents;
     private int totalExperience;
 
-    // Gson instance
+    // Id of the backup this backup is a delta of, null for keyframes
+    private NitriteId baseId;
+
+    // Base of a new delta until its item stacks are encoded
+    private BackupInventory base;
+
+    // Item stacks encoded as a keyframe before this backup became a delta, the delta copies its changed slots from them
+    private byte[][] keyframe;
+
+    // Loads base backups by id, set by the repository
+    private Function<NitriteId, BackupInventory> baseLoader;
+
+    // Item stacks as stored in the document, only decoded on first access
+    private Object encodedArmorContents;
+    private Object encodedExtraContents;
+    private Object encodedContents;
+    private volatile boolean decoded = true;
+
+    // Content hashes of the item stacks that are stored as shared blobs
+    private String armorContentsRef;
+    private String extraContentsRef;
+    private String contentsRef;
+
+    // Loads shared blobs by content hash, set by the repository
+    private Function<String, byte[]> blobLoader;
+
+    // Names of the document fields holding item stacks
+    private static final String[] ITEM_FIELDS = {"armorContents", "extraContents", "contents"};
+
+    // Suffix of the document fields holding the content hash of a shared blob
+    private static final String REF_SUFFIX = "Ref";
+
+    // Gson instance, used to read backups stored in the legacy Base64 JSON format
     private static final Gson gson = new GsonBuilder()
             .registerTypeAdapter(ItemStack.class, new ItemStackTypeAdapter())
             .registerTypeAdapter(ItemStack[].class, new ItemStackArrayTypeAdapter())
@@ -60,33 +97,110 @@ public class BackupInventory implements Mappable {
         this.totalExperience = totalExperience;
     }
 
+    /**
+     * Creates an empty BackupInventory object, to be filled by {@link #read(NitriteMapper, Document)}.
+     */
+    private BackupInventory() {
+    }
+
+    /**
+     * Creates a BackupInventory object from a stored document.
+     * Storage backends other than Nitrite map their records to this document form.
+     *
+     * @param document The document.
+     * @return The backup inventory, with its item stacks still encoded.
+     */
+    public static BackupInventory fromDocument(Document document) {
+        BackupInventory backupInventory = new BackupInventory();
+        backupInventory.read(null, document);
+        return backupInventory;
+    }
+
+    /**
+     * Creates a BackupInventory object from item stacks encoded as a keyframe, e.g. read from an export archive.
+     *
+     * @param playerId        The UUID of the player.
+     * @param timestamp       The timestamp of when the inventory was backed up.
+     * @param encoded         The encoded armor contents, extra contents and contents, in that order.
+     * @param totalExperience The total experience of the player.
+     * @return The backup inventory, with its item stacks still encoded.
+     */
+    public static BackupInventory fromEncoded(UUID playerId, long timestamp, byte[][] encoded, int totalExperience) {
+        BackupInventory backupInventory = new BackupInventory(playerId, timestamp, null, null, null, totalExperience);
+        backupInventory.encodedArmorContents = encoded[0];
+        backupInventory.encodedExtraContents = encoded[1];
+        backupInventory.encodedContents = encoded[2];
+        backupInventory.decoded = false;
+        return backupInventory;
+    }
 
     /**
      * Creates a new BackupInventory object from a player's inventory.
+     * The item stacks are copied, so the snapshot can be serialized later on another thread.
      *
      * @param player The player to create the BackupInventory object from.
      * @return A new BackupInventory object.
      */
     public static BackupInventory create(Player player) {
+        return create(player,
+                player.getInventory().getArmorContents(),
+                player.getInventory().getExtraContents(),
+                player.getInventory().getContents());
+    }
+
+    /**
+     * Creates a new BackupInventory object from item stacks already taken from a player's inventory.
+     * The item stacks are copied, so the snapshot can be serialized later on another thread.
+     *
+     * @param player        The player to create the BackupInventory object from.
+     * @param armorContents The armor contents of the player.
+     * @param extraContents The extra contents of the player.
+     * @param contents      The contents of the player.
+     * @return A new BackupInventory object.
+     */
+    public static BackupInventory create(Player player, ItemStack[] armorContents, ItemStack[] extraContents, ItemStack[] contents) {
         return new BackupInventory(
                 player.getUniqueId(),
                 System.currentTimeMillis(),
-                player.getInventory().getArmorContents(),
-                player.getInventory().getExtraContents(),
-                player.getInventory().getContents(),
+                copyOf(armorContents),
+                copyOf(extraContents),
+                copyOf(contents),
                 Experience.getExp(player));
     }
 
     /**
-     * Restores the inventory to the player.
+     * Copies an ItemStack array, cloning every item stack in it.
+     *
+     * @param itemStacks The ItemStack array to copy.
+     * @return The copied ItemStack array.
+     */
+    private static ItemStack[] copyOf(ItemStack[] itemStacks) {
+        ItemStack[] copy = new ItemStack[itemStacks.length];
+        for (int i = 0; i < itemStacks.length; i++) {
+            copy[i] = itemStacks[i] == null ? null : itemStacks[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * Restores the inventory and experience to the player. Must run on the main thread,
+     * call {@link #decode()} off the main thread first so this only copies item stacks.
+     * The player's experience is replaced by the backed up experience, not added to it.
      *
      * @param player The player to restore the inventory to.
      */
     public void restore(Player player) {
+        decode();
         player.getInventory().setArmorContents(armorContents);
         player.getInventory().setExtraContents(extraContents);
         player.getInventory().setContents(contents);
-        Experience.changeExp(player, Experience.getExp(player));
+
+        // Reset the experience, then set it to the backed up experience
+        player.setExp(0);
+        player.setLevel(0);
+        player.setTotalExperience(0);
+        Experience.changeExp(player, totalExperience);
+        player.setTotalExperience(Math.max(totalExperience, 0));
     }
 
 
@@ -96,6 +210,7 @@ public class BackupInventory implements Mappable {
      * @return The armor contents of the player.
      */
     public ItemStack[] getArmorContents() {
+        decode();
         return armorContents;
     }
 
@@ -105,6 +220,7 @@ public class BackupInventory implements Mappable {
      * @return The extra contents of the player.
      */
     public ItemStack[] getExtraContents() {
+        decode();
         return extraContents;
     }
 
@@ -114,6 +230,7 @@ public class BackupInventory implements Mappable {
      * @return The contents of the player.
      */
     public ItemStack[] getContents() {
+        decode();
         return contents;
     }
 
@@ -144,6 +261,56 @@ public class BackupInventory implements Mappable {
         return timestamp;
     }
 
+    /**
+     * Gets the id of the backup this backup is a delta of.
+     *
+     * @return The id of the base backup, or null if this backup is a keyframe.
+     */
+    public NitriteId getBaseId() {
+        return baseId;
+    }
+
+    /**
+     * Makes this backup a delta of another backup, or a keyframe if the base is null.
+     * Blob references are dropped and the item stacks are encoded again against the new base, except that item stacks
+     * already encoded as a keyframe, e.g. by the journal, are kept for a keyframe and reused by a delta.
+     *
+     * @param base The stored backup to encode against, or null to store every slot.
+     */
+    public void setBase(BackupInventory base) {
+        decode();
+        byte[][] encodedKeyframe = baseId == null ? getEncodedKeyframe() : keyframe;
+        this.base = base;
+        this.baseId = base == null ? null : base.getIdField();
+        this.keyframe = base == null ? null : encodedKeyframe;
+        boolean keep = base == null && encodedKeyframe != null;
+        this.encodedArmorContents = keep ? encodedKeyframe[0] : null;
+        this.encodedExtraContents = keep ? encodedKeyframe[1] : null;
+        this.encodedContents = keep ? encodedKeyframe[2] : null;
+        setRefs(new String[ITEM_FIELDS.length]);
+    }
+
+    /**
+     * Gets the encoded item stacks if all of them are encoded in the binary keyframe format.
+     *
+     * @return The encoded armor contents, extra contents and contents, or null if any of them isn't.
+     */
+    private byte[][] getEncodedKeyframe() {
+        if (encodedArmorContents instanceof byte[] && encodedExtraContents instanceof byte[] && encodedContents instanceof byte[]) {
+            return new byte[][]{(byte[]) encodedArmorContents, (byte[]) encodedExtraContents, (byte[]) encodedContents};
+        }
+        return null;
+    }
+
+    /**
+     * Sets the function used to load the base backup when a delta is decoded.
+     *
+     * @param baseLoader The base loader.
+     */
+    public void setBaseLoader(Function<NitriteId, BackupInventory> baseLoader) {
+        this.baseLoader = baseLoader;
+    }
+
     /**
      * Gets the id field of the object.
      *
@@ -153,6 +320,70 @@ public class BackupInventory implements Mappable {
         return idField;
     }
 
+    /**
+     * Sets the id field of the object, for storage backends that assign ids themselves.
+     *
+     * @param idField The id field.
+     */
+    public void setIdField(NitriteId idField) {
+        this.idField = idField;
+    }
+
+    /**
+     * Clears the id field of the object, so it can be inserted again after a failed write.
+     */
+    public void clearIdField() {
+        this.idField = null;
+    }
+
+    /**
+     * Encodes the item stacks, as a delta if this backup has a base, reusing the stored bytes when there are any.
+     * The result is kept, so the item stacks are encoded only once however often the backup is written.
+     *
+     * @return The encoded armor contents, extra contents and contents, in that order, null where stored as a shared blob.
+     */
+    public byte[][] encodeItemStacks() {
+        this.encodedArmorContents = writeItemStacks(armorContentsRef, armorContents, encodedArmorContents, base == null ? null : base.getArmorContents(), keyframe == null ? null : keyframe[0]);
+        this.encodedExtraContents = writeItemStacks(extraContentsRef, extraContents, encodedExtraContents, base == null ? null : base.getExtraContents(), keyframe == null ? null : keyframe[1]);
+        this.encodedContents = writeItemStacks(contentsRef, contents, encodedContents, base == null ? null : base.getContents(), keyframe == null ? null : keyframe[2]);
+
+        // The base and keyframe are no longer needed, don't keep the whole chain in memory
+        this.base = null;
+        this.keyframe = null;
+
+        return new byte[][]{(byte[]) encodedArmorContents, (byte[]) encodedExtraContents, (byte[]) encodedContents};
+    }
+
+    /**
+     * Gets the content hashes of the item stacks that are stored as shared blobs.
+     *
+     * @return The hashes of the armor contents, extra contents and contents, null where stored inline.
+     */
+    public String[] getRefs() {
+        return new String[]{armorContentsRef, extraContentsRef, contentsRef};
+    }
+
+    /**
+     * Sets the content hashes of the item stacks that are stored as shared blobs.
+     * Item stacks with a hash are written as a reference instead of inline.
+     *
+     * @param refs The hashes of the armor contents, extra contents and contents, null to store inline.
+     */
+    public void setRefs(String[] refs) {
+        this.armorContentsRef = refs[0];
+        this.extraContentsRef = refs[1];
+        this.contentsRef = refs[2];
+    }
+
+    /**
+     * Sets the function used to load shared blobs when the item stacks are decoded.
+     *
+     * @param blobLoader The blob loader.
+     */
+    public void setBlobLoader(Function<String, byte[]> blobLoader) {
+        this.blobLoader = blobLoader;
+    }
+
     /**
      * Writes the object to a document.
      *
@@ -161,18 +392,44 @@ public class BackupInventory implements Mappable {
      */
     @Override
     public Document write(NitriteMapper mapper) {
+        byte[][] encoded = encodeItemStacks();
+        String[] refs = getRefs();
+
         Document document = new Document();
         document.put("playerId", playerId.toString());
         document.put("timestamp", timestamp);
-        document.put("armorContents", gson.toJson(armorContents));
-        document.put("extraContents", gson.toJson(extraContents));
-        document.put("contents", gson.toJson(contents));
+        if (baseId != null) {
+            document.put("baseId", baseId.getIdValue());
+        }
+        for (int i = 0; i < ITEM_FIELDS.length; i++) {
+            if (refs[i] != null) {
+                document.put(ITEM_FIELDS[i] + REF_SUFFIX, refs[i]);
+            } else {
+                document.put(ITEM_FIELDS[i], encoded[i]);
+            }
+        }
         document.put("totalExperience", totalExperience);
         return document;
     }
 
+    /**
+     * Overwrites a stored document with this backup.
+     * Collection updates merge fields, so every field this backup no longer uses is nulled.
+     *
+     * @param document The stored document.
+     */
+    public void rewrite(Document document) {
+        document.put("baseId", null);
+        for (String field : ITEM_FIELDS) {
+            document.put(field, null);
+            document.put(field + REF_SUFFIX, null);
+        }
+        document.putAll(write(null));
+    }
+
     /**
      * Reads the object from a document.
+     * The item stacks are kept encoded until they are first accessed.
      *
      * @param mapper   The NitriteMapper instance.
      * @param document The document to read the object from.
@@ -182,9 +439,152 @@ public class BackupInventory implements Mappable {
         this.idField = NitriteId.createId(document.get("idField", Long.class));
         this.playerId = UUID.fromString(document.get("playerId", String.class));
         this.timestamp = document.get("timestamp", Long.class);
-        this.armorContents = gson.fromJson(document.get("armorContents", String.class), ItemStack[].class);
-        this.extraContents = gson.fromJson(document.get("extraContents", String.class), ItemStack[].class);
-        this.contents = gson.fromJson(document.get("contents", String.class), ItemStack[].class);
+        Long baseIdValue = document.get("baseId", Long.class);
+        this.baseId = baseIdValue == null ? null : NitriteId.createId(baseIdValue);
+        this.encodedArmorContents = document.get("armorContents");
+        this.encodedExtraContents = document.get("extraContents");
+        this.encodedContents = document.get("contents");
+        this.armorContentsRef = document.get("armorContents" + REF_SUFFIX, String.class);
+        this.extraContentsRef = document.get("extraContents" + REF_SUFFIX, String.class);
+        this.contentsRef = document.get("contents" + REF_SUFFIX, String.class);
         this.totalExperience = document.get("totalExperience", Integer.class);
+        this.decoded = false;
+    }
+
+    /**
+     * Decodes the item stacks if they haven't been decoded yet.
+     * Call this off the main thread before {@link #restore(Player)}, so restoring only copies item stacks.
+     */
+    public void decode() {
+        if (decoded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (decoded) {
+                return;
+            }
+
+            // Deltas are applied on top of their decoded base
+            BackupInventory baseInventory = baseId == null ? null : loadBase();
+            this.armorContents = readItemStacks(armorContentsRef, encodedArmorContents, baseInventory == null ? null : baseInventory.getArmorContents());
+            this.extraContents = readItemStacks(extraContentsRef, encodedExtraContents, baseInventory == null ? null : baseInventory.getExtraContents());
+            this.contents = readItemStacks(contentsRef, encodedContents, baseInventory == null ? null : baseInventory.getContents());
+            this.decoded = true;
+        }
+    }
+
+    /**
+     * Loads the base backup of this delta.
+     *
+     * @return The base backup.
+     */
+    private BackupInventory loadBase() {
+        if (baseLoader == null) {
+            throw new IllegalStateException("Backup inventory " + idField + " is a delta, but no base loader is set.");
+        }
+
+        BackupInventory base = baseLoader.apply(baseId);
+        if (base == null) {
+            throw new IllegalStateException("Backup inventory " + idField + " is a delta of missing backup " + baseId + ".");
+        }
+        return base;
+    }
+
+    /**
+     * Reads an ItemStack array from its shared blob or its inline document value.
+     *
+     * @param ref            The content hash of the shared blob, or null if stored inline.
+     * @param encoded        The inline document value.
+     * @param baseItemStacks The decoded ItemStack array of the base backup, if this backup is a delta.
+     * @return The ItemStack array.
+     */
+    private ItemStack[] readItemStacks(String ref, Object encoded, ItemStack[] baseItemStacks) {
+        Object value = ref == null ? encoded : loadBlob(ref);
+        if (baseId != null) {
+            return ItemStackArrayCodec.decodeDelta(baseItemStacks, (byte[]) value);
+        }
+        return readItemStacks(value);
+    }
+
+    /**
+     * Loads a shared blob.
+     *
+     * @param ref The content hash of the blob.
+     * @return The content of the blob.
+     */
+    private byte[] loadBlob(String ref) {
+        if (blobLoader == null) {
+            throw new IllegalStateException("Backup inventory " + idField + " references a blob, but no blob loader is set.");
+        }
+
+        byte[] bytes = blobLoader.apply(ref);
+        if (bytes == null) {
+            throw new IllegalStateException("Backup inventory " + idField + " references missing blob " + ref + ".");
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the encoded value of an ItemStack array, reusing the stored bytes when there are any.
+     *
+     * @param ref            The content hash of the shared blob the array is stored as, or null if stored inline.
+     * @param itemStacks     The decoded ItemStack array.
+     * @param encoded        The ItemStack array as read from the document or encoded before.
+     * @param baseItemStacks The decoded ItemStack array of the base backup, if this backup is a delta.
+     * @param keyframe       The ItemStack array encoded as a keyframe before this backup became a delta, or null.
+     * @return The encoded bytes, or null if the array is only stored as a shared blob.
+     */
+    private byte[] writeItemStacks(String ref, ItemStack[] itemStacks, Object encoded, ItemStack[] baseItemStacks, byte[] keyframe) {
+        if (encoded instanceof byte[]) {
+            return (byte[]) encoded;
+        }
+        if (encoded != null && !decoded) {
+            return ItemStackArrayCodec.encode(readItemStacks(encoded));
+        }
+        if (ref != null) {
+            return null;
+        }
+        if (baseId != null) {
+            return ItemStackArrayCodec.encodeDelta(baseItemStacks, itemStacks, keyframe);
+        }
+        return ItemStackArrayCodec.encode(itemStacks);
+    }
+
+    /**
+     * Checks whether this stored backup is not in the current storage format: item stacks still in the legacy
+     * Base64 JSON format, or stored inline although they are large enough to be a shared blob.
+     *
+     * @param deduplicationMinSize The minimum size of encoded item stacks stored as shared blobs, or -1 if deduplication is disabled.
+     * @return True if the backup should be written again.
+     */
+    public boolean isMigrationNeeded(int deduplicationMinSize) {
+        String[] refs = getRefs();
+        Object[] encoded = {encodedArmorContents, encodedExtraContents, encodedContents};
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] instanceof String) {
+                return true;
+            }
+            if (deduplicationMinSize >= 0 && refs[i] == null && encoded[i] instanceof byte[] && ((byte[]) encoded[i]).length >= deduplicationMinSize) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads an ItemStack array from a document value in either the binary or the legacy Base64 JSON format.
+     *
+     * @param value The document value.
+     * @return The ItemStack array.
+     */
+    private static ItemStack[] readItemStacks(Object value) {
+        if (value instanceof byte[]) {
+            return ItemStackArrayCodec.decode((byte[]) value);
+        }
+        if (value instanceof String) {
+            return gson.fromJson((String) value, ItemStack[].class);
+        }
+        return null;
     }
 }
@@ -0,0 +1,125 @@
+package com.synsenetwork.inventorybackup.data;
+
+import org.dizitart.no2.Document;
+import org.dizitart.no2.NitriteId;
+import org.dizitart.no2.mapper.Mappable;
+import org.dizitart.no2.mapper.NitriteMapper;
+
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * A metadata-only projection of a {@link BackupInventory}.
+ * Used where only the id, timestamp and delta base of a backup are needed, so the item stacks are never touched.
+ */
+public class BackupMetadata implements Mappable {
+    // Orders backups from newest to oldest, using the id to break ties between equal timestamps
+    public static final Comparator<BackupMetadata> NEWEST_FIRST = Comparator
+            .comparingLong(BackupMetadata::getTimestamp)
+            .thenComparing(BackupMetadata::getIdField)
+            .reversed();
+
+    private NitriteId idField;
+    private UUID playerId;
+    private long timestamp;
+    private NitriteId baseId;
+
+    /**
+     * Creates an empty BackupMetadata object, used by Nitrite when projecting documents.
+     */
+    public BackupMetadata() {
+    }
+
+    /**
+     * Creates a new BackupMetadata object.
+     *
+     * @param idField   The id field of the backup.
+     * @param playerId  The UUID of the player.
+     * @param timestamp The timestamp of when the inventory was backed up.
+     * @param baseId    The id of the backup this backup is a delta of, or null if it is a keyframe.
+     */
+    public BackupMetadata(NitriteId idField, UUID playerId, long timestamp, NitriteId baseId) {
+        this.idField = idField;
+        this.playerId = playerId;
+        this.timestamp = timestamp;
+        this.baseId = baseId;
+    }
+
+    /**
+     * Creates a BackupMetadata object from a stored backup inventory.
+     *
+     * @param backupInventory The backup inventory.
+     * @return The metadata of the backup inventory.
+     */
+    public static BackupMetadata of(BackupInventory backupInventory) {
+        return new BackupMetadata(backupInventory.getIdField(), backupInventory.getPlayerId(), backupInventory.getTimestamp(), backupInventory.getBaseId());
+    }
+
+    /**
+     * Gets the id field of the backup.
+     *
+     * @return The id field of the backup.
+     */
+    public NitriteId getIdField() {
+        return idField;
+    }
+
+    /**
+     * Gets the UUID of the player.
+     *
+     * @return The UUID of the player.
+     */
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Gets the timestamp of when the inventory was backed up.
+     *
+     * @return The timestamp of when the inventory was backed up.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the id of the backup this backup is a delta of.
+     *
+     * @return The id of the base backup, or null if this backup is a keyframe.
+     */
+    public NitriteId getBaseId() {
+        return baseId;
+    }
+
+    /**
+     * Writes the projected fields to a document.
+     * Nitrite uses the keys of this document to decide which fields to project.
+     *
+     * @param mapper The NitriteMapper instance.
+     * @return The document with the projected fields.
+     */
+    @Override
+    public Document write(NitriteMapper mapper) {
+        Document document = new Document();
+        document.put("idField", idField == null ? null : idField.getIdValue());
+        document.put("playerId", playerId == null ? null : playerId.toString());
+        document.put("timestamp", timestamp);
+        document.put("baseId", baseId == null ? null : baseId.getIdValue());
+        return document;
+    }
+
+    /**
+     * Reads the projected fields from a document.
+     *
+     * @param mapper   The NitriteMapper instance.
+     * @param document The document to read the fields from.
+     */
+    @Override
+    public void read(NitriteMapper mapper, Document document) {
+        this.idField = NitriteId.createId(document.get("idField", Long.class));
+        this.playerId = UUID.fromString(document.get("playerId", String.class));
+        this.timestamp = document.get("timestamp", Long.class);
+        Long baseIdValue = document.get("baseId", Long.class);
+        this.baseId = baseIdValue == null ? null : NitriteId.createId(baseIdValue);
+    }
+}
@@ -1,12 +1,22 @@
 package com.synsenetwork.inventorybackup.listeners;
 
 import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.storage.BackupJournal;
+import com.synsenetwork.inventorybackup.storage.BackupWriter;
+import com.synsenetwork.inventorybackup.tracking.ChangeTracker;
+import com.synsenetwork.inventorybackup.utils.Experience;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.PlayerDeathEvent;
-import org.dizitart.no2.objects.ObjectRepository;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.dizitart.no2.NitriteId;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
 /**
@@ -15,10 +25,20 @@ import java.util.logging.Logger;
 public class EventListener implements Listener {
     // Logger
     private final Logger logger = Logger.getLogger(EventListener.class.getName());
-    private final ObjectRepository<BackupInventory> repository;
+    private final BackupWriter writer;
+    private final BackupMetrics metrics;
+    private final BackupJournal journal;
+    private final ChangeTracker tracker;
+    private final boolean skipEmpty;
+    private final boolean skipUnchanged;
 
-    public EventListener(ObjectRepository<BackupInventory> repository) {
-        this.repository = repository;
+    public EventListener(BackupWriter writer, BackupMetrics metrics, BackupJournal journal, ChangeTracker tracker, boolean skipEmpty, boolean skipUnchanged) {
+        this.writer = writer;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.tracker = tracker;
+        this.skipEmpty = skipEmpty;
+        this.skipUnchanged = skipUnchanged;
     }
 
     /**
@@ -31,13 +51,52 @@ public class EventListener implements Listener {
         // Get player
         Player player = event.getPlayer();
 
+        // Take the item stacks once, they are only copied if the backup isn't skipped
+        long start = System.nanoTime();
+        PlayerInventory inventory = player.getInventory();
+        ItemStack[] armorContents = inventory.getArmorContents();
+        ItemStack[] extraContents = inventory.getExtraContents();
+        ItemStack[] contents = inventory.getContents();
+        int experience = Experience.getExp(player);
+
+        // Skip an empty inventory, restoring it would restore nothing
+        if (skipEmpty && ChangeTracker.isEmpty(experience, armorContents, extraContents, contents)) {
+            metrics.increment(BackupMetrics.Counter.BACKUPS_EMPTY, 1);
+            return;
+        }
+
+        // Skip an inventory identical to the player's last backup, restoring that one restores the same items
+        long fingerprint = ChangeTracker.fingerprint(experience, armorContents, extraContents, contents);
+        if (skipUnchanged && tracker.isUnchanged(player.getUniqueId(), fingerprint, experience, armorContents, extraContents, contents)) {
+            metrics.increment(BackupMetrics.Counter.BACKUPS_UNCHANGED, 1);
+            return;
+        }
+
         // Create backup inventory
-        BackupInventory backupInventory = BackupInventory.create(player);
+        BackupInventory backupInventory = BackupInventory.create(player, armorContents, extraContents, contents);
+        metrics.record(BackupMetrics.Timer.CAPTURE, start);
 
-        // Insert backup inventory into database
-        repository.insert(backupInventory);
+        // Queue backup inventory to be written to the database, journaled off the main thread first so it survives
+        // a crash before it is committed
+        CompletableFuture<NitriteId> future = journal != null ? journal.submit(backupInventory, writer) : writer.submit(backupInventory);
+        tracker.track(backupInventory, fingerprint, future);
+        future.whenComplete((id, throwable) -> {
+            if (throwable != null) {
+                return;
+            }
+
+            // Log backup inventory creation
+            logger.info("Created backup inventory on death for player " + player.getName() + " with id " + id.getIdValue().longValue() + ".");
+        });
+    }
 
-        // Log backup inventory creation
-        logger.info("Created backup inventory on death for player " + player.getName() + " with id " + backupInventory.getIdField().getIdValue().longValue() + ".");
+    /**
+     * Forgets the last backup of a player when they leave.
+     *
+     * @param event The event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        tracker.forget(event.getPlayer().getUniqueId());
     }
 }
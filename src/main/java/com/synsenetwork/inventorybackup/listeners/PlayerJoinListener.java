@@ -0,0 +1,36 @@
+package com.synsenetwork.inventorybackup.listeners;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A listener refreshing the backups of joining players, for databases shared between servers where the player
+ * may have died on another server since the index was built.
+ */
+public class PlayerJoinListener implements Listener {
+    private final Consumer<UUID> refresh;
+
+    /**
+     * Creates a new PlayerJoinListener.
+     *
+     * @param refresh Refreshes the backups of a player, must not block the main thread.
+     */
+    public PlayerJoinListener(Consumer<UUID> refresh) {
+        this.refresh = refresh;
+    }
+
+    /**
+     * Refreshes the backups of a player when they join.
+     *
+     * @param event The event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onJoin(PlayerJoinEvent event) {
+        refresh.accept(event.getPlayer().getUniqueId());
+    }
+}
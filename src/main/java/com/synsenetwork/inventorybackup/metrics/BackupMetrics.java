@@ -0,0 +1,148 @@
+package com.synsenetwork.inventorybackup.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters of the backup hot paths.
+ * Recording is lock-free and cheap enough to leave enabled on the main thread.
+ */
+public class BackupMetrics {
+    private final Map<Timer, LatencyHistogram> timers = new EnumMap<>(Timer.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Creates a new BackupMetrics with every timer and counter at zero.
+     */
+    public BackupMetrics() {
+        for (Timer timer : Timer.values()) {
+            timers.put(timer, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    /**
+     * Records the time passed since an operation started.
+     *
+     * @param timer      The timer of the operation.
+     * @param startNanos The value of {@link System#nanoTime()} when the operation started.
+     */
+    public void record(Timer timer, long startNanos) {
+        timers.get(timer).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param counter The counter.
+     * @param amount  The amount to add.
+     */
+    public void increment(Counter counter, long amount) {
+        counters.get(counter).add(amount);
+    }
+
+    /**
+     * Takes a snapshot of a timer.
+     *
+     * @param timer The timer.
+     * @return The snapshot of the timer's histogram.
+     */
+    public LatencyHistogram.Snapshot snapshot(Timer timer) {
+        return timers.get(timer).snapshot();
+    }
+
+    /**
+     * Gets the value of a counter.
+     *
+     * @param counter The counter.
+     * @return The value.
+     */
+    public long get(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    /**
+     * Gets the time the metrics have been recorded for.
+     *
+     * @return The uptime in nanoseconds.
+     */
+    public long getUptimeNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * The timed operations.
+     */
+    public enum Timer {
+        // Copying a player's inventory on the main thread
+        CAPTURE("capture"),
+        // Appending a death backup to the journal on the main thread
+        JOURNAL("journal"),
+        // Encoding the item stacks of a backup
+        ENCODE("encode"),
+        // Inserting and committing a batch of backups
+        INSERT("insert"),
+        // Loading a backup by id
+        LOAD("load"),
+        // Decoding the item stacks of a loaded backup before it is restored
+        DECODE("decode"),
+        // Deleting backups and committing
+        REMOVE("remove"),
+        // Applying a decoded backup to a player on the main thread
+        RESTORE("restore");
+
+        private final String name;
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the name of the timer, as shown in stats and reports.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The counted events.
+     */
+    public enum Counter {
+        // Backups committed to the database
+        BACKUPS_WRITTEN("backups-written"),
+        // Backups that failed to be written
+        BACKUPS_FAILED("backups-failed"),
+        // Backups kept in the spool because the database was unavailable
+        BACKUPS_SPOOLED("backups-spooled"),
+        // Backups skipped because the inventory didn't change since the previous backup
+        BACKUPS_UNCHANGED("backups-unchanged"),
+        // Backups skipped because the inventory was empty
+        BACKUPS_EMPTY("backups-empty"),
+        // Backups removed from the database
+        BACKUPS_REMOVED("backups-removed"),
+        // Backups restored to a player
+        RESTORES("restores");
+
+        private final String name;
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the name of the counter, as shown in stats and reports.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.synsenetwork.inventorybackup.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} linear buckets, so recording is a few bit operations and
+ * an atomic increment, and percentiles are accurate to within about 12% of the recorded value. The exact maximum
+ * is tracked separately.
+ */
+public class LatencyHistogram {
+    // log2 of the number of buckets per power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Takes a snapshot of the recorded durations.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return new Snapshot(snapshot, max.get());
+    }
+
+    /**
+     * Gets the bucket a duration falls into.
+     *
+     * @param nanos The duration in nanoseconds, not negative.
+     * @return The index of the bucket.
+     */
+    private static int bucketOf(long nanos) {
+        // Durations below SUB_BUCKETS get a bucket each
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+
+        // The highest bit selects the power of two, the bits below it the linear bucket within it
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> exponent) & (SUB_BUCKETS - 1);
+        return (exponent + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the highest duration falling into a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The highest duration in nanoseconds.
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent;
+        return lowerBound + (1L << exponent) - 1;
+    }
+
+    /**
+     * The recorded durations at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long max;
+        private final long count;
+
+        private Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            this.max = max;
+
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        /**
+         * Gets the durations recorded since an earlier snapshot of the same histogram.
+         * The maximum of the difference is the upper bound of its highest bucket, as the exact value isn't known.
+         *
+         * @param earlier The earlier snapshot, or null for everything recorded.
+         * @return The difference.
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+
+            long[] difference = new long[counts.length];
+            long differenceMax = 0;
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                if (difference[i] > 0) {
+                    differenceMax = Math.min(max, upperBoundOf(i));
+                }
+            }
+            return new Snapshot(difference, differenceMax);
+        }
+
+        /**
+         * Gets the number of recorded durations.
+         *
+         * @return The number of durations.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the highest recorded duration.
+         *
+         * @return The duration in nanoseconds, 0 if nothing was recorded.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets a percentile of the recorded durations.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The duration in nanoseconds below which the given percentage of durations fall, 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            // Walk the buckets until the rank of the percentile is reached
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, upperBoundOf(i));
+                }
+            }
+            return max;
+        }
+    }
+}
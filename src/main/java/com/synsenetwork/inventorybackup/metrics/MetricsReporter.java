@@ -0,0 +1,181 @@
+package com.synsenetwork.inventorybackup.metrics;
+
+import com.synsenetwork.inventorybackup.utils.SizeUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports the {@link BackupMetrics}: totals on demand for the stats command, and when run periodically,
+ * the timings of the past interval to the log and optionally to a CSV file.
+ */
+public class MetricsReporter implements Runnable {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(MetricsReporter.class.getName());
+
+    // Header of the CSV file, durations are in microseconds
+    private static final String CSV_HEADER = "time,metric,count,p50_us,p99_us,max_us";
+
+    private final BackupMetrics metrics;
+    private final IntSupplier queueDepth;
+    private final LongSupplier databaseSize;
+    private final File csvFile;
+
+    // Totals at the previous periodic report, to report only the past interval
+    private final Map<BackupMetrics.Timer, LatencyHistogram.Snapshot> lastSnapshots = new EnumMap<>(BackupMetrics.Timer.class);
+    private final Map<BackupMetrics.Counter, Long> lastCounts = new EnumMap<>(BackupMetrics.Counter.class);
+
+    /**
+     * Creates a new MetricsReporter.
+     *
+     * @param metrics      The metrics to report.
+     * @param queueDepth   Supplies the number of backups waiting to be written.
+     * @param databaseSize Supplies the size of the database in bytes, or -1 if unknown.
+     * @param csvFile      The file periodic reports are appended to, or null to only log them.
+     */
+    public MetricsReporter(BackupMetrics metrics, IntSupplier queueDepth, LongSupplier databaseSize, File csvFile) {
+        this.metrics = metrics;
+        this.queueDepth = queueDepth;
+        this.databaseSize = databaseSize;
+        this.csvFile = csvFile;
+    }
+
+    /**
+     * Reports the timings and counts of the past interval.
+     */
+    @Override
+    public synchronized void run() {
+        String time = Instant.now().toString();
+        List<String> rows = new ArrayList<>();
+        StringBuilder message = new StringBuilder("Metrics of the past interval:");
+
+        // Timings recorded since the previous report
+        for (BackupMetrics.Timer timer : BackupMetrics.Timer.values()) {
+            LatencyHistogram.Snapshot total = metrics.snapshot(timer);
+            LatencyHistogram.Snapshot interval = total.since(lastSnapshots.put(timer, total));
+            rows.add(time + "," + timer.getName() + "," + interval.getCount() + "," + toMicros(interval.getPercentile(50))
+                    + "," + toMicros(interval.getPercentile(99)) + "," + toMicros(interval.getMax()));
+            if (interval.getCount() > 0) {
+                message.append(' ').append(describe(timer.getName(), interval)).append(';');
+            }
+        }
+
+        // Events counted since the previous report
+        for (BackupMetrics.Counter counter : BackupMetrics.Counter.values()) {
+            long total = metrics.get(counter);
+            Long last = lastCounts.put(counter, total);
+            long count = total - (last == null ? 0 : last);
+            rows.add(time + "," + counter.getName() + "," + count + ",,,");
+            message.append(' ').append(counter.getName()).append(' ').append(count).append(';');
+        }
+
+        // Current values
+        int depth = queueDepth.getAsInt();
+        long size = databaseSize.getAsLong();
+        rows.add(time + ",queue-depth," + depth + ",,,");
+        rows.add(time + ",database-size," + size + ",,,");
+        message.append(" queue-depth ").append(depth).append("; database-size ").append(SizeUtils.formatBytes(size));
+
+        LOGGER.info(message.toString());
+        if (csvFile != null) {
+            appendCsv(rows);
+        }
+    }
+
+    /**
+     * Describes the metrics recorded since startup, one line per metric.
+     *
+     * @return The lines.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Uptime: " + TimeUnit.NANOSECONDS.toMinutes(metrics.getUptimeNanos()) + " min");
+        for (BackupMetrics.Timer timer : BackupMetrics.Timer.values()) {
+            lines.add(describe(timer.getName(), metrics.snapshot(timer)));
+        }
+        for (BackupMetrics.Counter counter : BackupMetrics.Counter.values()) {
+            lines.add(counter.getName() + ": " + metrics.get(counter));
+        }
+        lines.add("queue-depth: " + queueDepth.getAsInt());
+        lines.add("database-size: " + SizeUtils.formatBytes(databaseSize.getAsLong()));
+        return lines;
+    }
+
+    /**
+     * Describes the durations recorded by a timer.
+     *
+     * @param name     The name of the timer.
+     * @param snapshot The recorded durations.
+     * @return The description.
+     */
+    private static String describe(String name, LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return name + ": none";
+        }
+        return name + ": " + snapshot.getCount() + "x, p50 " + formatNanos(snapshot.getPercentile(50))
+                + ", p99 " + formatNanos(snapshot.getPercentile(99)) + ", max " + formatNanos(snapshot.getMax());
+    }
+
+    /**
+     * Appends rows to the CSV file, writing the header first if the file is new.
+     *
+     * @param rows The rows.
+     */
+    private void appendCsv(List<String> rows) {
+        try {
+            if (!csvFile.exists() || csvFile.length() == 0) {
+                rows.add(0, CSV_HEADER);
+            }
+
+            try (BufferedWriter writer = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String row : rows) {
+                    writer.write(row);
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write metrics to " + csvFile.getAbsolutePath() + ".", e);
+        }
+    }
+
+    /**
+     * Formats a duration with a unit fitting its magnitude.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The formatted duration.
+     */
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000) {
+            return nanos + " ns";
+        }
+        if (nanos < 1_000_000) {
+            return String.format(Locale.ROOT, "%.1f us", nanos / 1_000D);
+        }
+        return String.format(Locale.ROOT, "%.2f ms", nanos / 1_000_000D);
+    }
+
+    /**
+     * Converts a duration to whole microseconds.
+     *
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in microseconds.
+     */
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
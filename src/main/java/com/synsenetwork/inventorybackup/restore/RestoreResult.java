@@ -0,0 +1,83 @@
+package com.synsenetwork.inventorybackup.restore;
+
+import org.dizitart.no2.NitriteId;
+
+import java.util.UUID;
+
+/**
+ * The outcome of restoring a backup to one player.
+ */
+public final class RestoreResult {
+    private final UUID playerId;
+    private final Status status;
+    private final NitriteId backupId;
+
+    /**
+     * Creates a new RestoreResult.
+     *
+     * @param playerId The UUID of the player.
+     * @param status   The outcome.
+     * @param backupId The id of the backup, or null if none was loaded.
+     */
+    public RestoreResult(UUID playerId, Status status, NitriteId backupId) {
+        this.playerId = playerId;
+        this.status = status;
+        this.backupId = backupId;
+    }
+
+    /**
+     * Gets the UUID of the player.
+     *
+     * @return The UUID of the player.
+     */
+    public UUID getPlayerId() {
+        return playerId;
+    }
+
+    /**
+     * Gets the outcome.
+     *
+     * @return The outcome.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the id of the backup.
+     *
+     * @return The id of the backup, or null if none was loaded.
+     */
+    public NitriteId getBackupId() {
+        return backupId;
+    }
+
+    /**
+     * The outcome of a restore.
+     */
+    public enum Status {
+        // The backup was applied to the player
+        RESTORED("restored"),
+        // The player has no matching backup
+        NO_BACKUP("no backup"),
+        // The player went offline before the backup was applied
+        OFFLINE("offline"),
+        // Loading, decoding or applying the backup failed
+        FAILED("failed, check the console");
+
+        private final String description;
+
+        Status(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Gets a description of the outcome for players.
+         *
+         * @return The description.
+         */
+        public String getDescription() {
+            return description;
+        }
+    }
+}
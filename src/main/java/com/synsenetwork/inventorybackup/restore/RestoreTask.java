@@ -0,0 +1,224 @@
+package com.synsenetwork.inventorybackup.restore;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.scheduler.TaskScheduler;
+import org.bukkit.Server;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Restores backups to players in batches. Backups are loaded and decoded on a worker, so the main thread only copies
+ * item stacks into inventories. Runs on the main thread every tick, applying decoded backups until the tick's time
+ * budget is used up, so restoring many players at once is spread over as many ticks as it needs.
+ * On Folia, the task runs on the global region thread and each backup is applied on the thread of the region
+ * owning the player.
+ */
+public class RestoreTask implements Runnable {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(RestoreTask.class.getName());
+
+    private final Server server;
+    private final TaskScheduler scheduler;
+    private final Executor executor;
+    private final BackupMetrics metrics;
+    private final long budgetNanos;
+
+    // Loaded backups waiting to be applied on the main thread
+    private final Queue<PendingRestore> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a new RestoreTask.
+     *
+     * @param server      The server.
+     * @param scheduler   The scheduler applying backups on the thread owning the player.
+     * @param executor    The executor loading and decoding backups.
+     * @param budgetNanos The main thread time a tick may spend on applying backups, in nanoseconds.
+     * @param metrics     The metrics to record decode and restore times in.
+     */
+    public RestoreTask(Server server, TaskScheduler scheduler, Executor executor, long budgetNanos, BackupMetrics metrics) {
+        this.server = server;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.budgetNanos = Math.max(0, budgetNanos);
+    }
+
+    /**
+     * Restores a backup to each of the players. Players are restored in the order given.
+     *
+     * @param playerIds The UUIDs of the players.
+     * @param loader    Loads the backup to restore for a player, or null if there is none. Runs on the executor.
+     * @return A future completed on the main thread, or the thread of the last restored player on Folia,
+     * with the result per player, in the order given.
+     */
+    public CompletableFuture<List<RestoreResult>> restore(Collection<UUID> playerIds, Function<UUID, BackupInventory> loader) {
+        Batch batch = new Batch(playerIds.size());
+        if (playerIds.isEmpty()) {
+            batch.future.complete(Collections.emptyList());
+            return batch.future;
+        }
+
+        int index = 0;
+        for (UUID playerId : playerIds) {
+            int position = index++;
+            executor.execute(() -> ready.add(load(batch, position, playerId, loader)));
+        }
+        return batch.future;
+    }
+
+    /**
+     * Gets the number of loaded backups waiting to be applied.
+     *
+     * @return The number of waiting backups.
+     */
+    public int getPendingCount() {
+        return ready.size();
+    }
+
+    /**
+     * Runs one tick of restores.
+     */
+    @Override
+    public void run() {
+        if (ready.isEmpty()) {
+            return;
+        }
+
+        // Apply backups until the budget is used up, but always at least one so every restore finishes
+        long deadline = System.nanoTime() + budgetNanos;
+        do {
+            PendingRestore pendingRestore = ready.poll();
+            if (pendingRestore == null) {
+                return;
+            }
+
+            // Nothing to apply, or the player left
+            Player player = pendingRestore.backupInventory == null ? null : server.getPlayer(pendingRestore.playerId);
+            if (player == null || !player.isOnline()) {
+                pendingRestore.batch.complete(pendingRestore.position, pendingRestore.getResult(RestoreResult.Status.OFFLINE));
+                continue;
+            }
+
+            // Apply on the thread owning the player, this one unless the server runs Folia
+            scheduler.runForPlayer(player,
+                    () -> pendingRestore.batch.complete(pendingRestore.position, apply(player, pendingRestore.backupInventory)),
+                    () -> pendingRestore.batch.complete(pendingRestore.position, pendingRestore.getResult(RestoreResult.Status.OFFLINE)));
+        } while (System.nanoTime() < deadline);
+    }
+
+    /**
+     * Loads and decodes the backup of a player on the executor.
+     *
+     * @param batch    The batch the player belongs to.
+     * @param position The position of the player in the batch.
+     * @param playerId The UUID of the player.
+     * @param loader   Loads the backup to restore.
+     * @return The pending restore.
+     */
+    private PendingRestore load(Batch batch, int position, UUID playerId, Function<UUID, BackupInventory> loader) {
+        try {
+            BackupInventory backupInventory = loader.apply(playerId);
+            if (backupInventory == null) {
+                return new PendingRestore(batch, position, playerId, null, RestoreResult.Status.NO_BACKUP);
+            }
+
+            // Decode here, so the main thread only copies item stacks
+            long start = System.nanoTime();
+            backupInventory.decode();
+            metrics.record(BackupMetrics.Timer.DECODE, start);
+            return new PendingRestore(batch, position, playerId, backupInventory, null);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to load backup inventory of player " + playerId + ".", e);
+            return new PendingRestore(batch, position, playerId, null, RestoreResult.Status.FAILED);
+        }
+    }
+
+    /**
+     * Applies a loaded backup to its player on the thread owning the player.
+     *
+     * @param player          The player.
+     * @param backupInventory The decoded backup.
+     * @return The result.
+     */
+    private RestoreResult apply(Player player, BackupInventory backupInventory) {
+        try {
+            long start = System.nanoTime();
+            backupInventory.restore(player);
+            metrics.record(BackupMetrics.Timer.RESTORE, start);
+            metrics.increment(BackupMetrics.Counter.RESTORES, 1);
+            return new RestoreResult(player.getUniqueId(), RestoreResult.Status.RESTORED, backupInventory.getIdField());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to restore backup inventory " + backupInventory.getIdField() + " to player " + player.getName() + ".", e);
+            return new RestoreResult(player.getUniqueId(), RestoreResult.Status.FAILED, backupInventory.getIdField());
+        }
+    }
+
+    /**
+     * The results of one restore call, completed once every player is done.
+     */
+    private static final class Batch {
+        private final RestoreResult[] results;
+        private final CompletableFuture<List<RestoreResult>> future = new CompletableFuture<>();
+        private int remaining;
+
+        private Batch(int size) {
+            this.results = new RestoreResult[size];
+            this.remaining = size;
+        }
+
+        private void complete(int position, RestoreResult result) {
+            synchronized (this) {
+                results[position] = result;
+                if (--remaining > 0) {
+                    return;
+                }
+            }
+            future.complete(new ArrayList<>(Arrays.asList(results)));
+        }
+    }
+
+    /**
+     * A loaded backup waiting to be applied, or the reason there is none.
+     */
+    private static final class PendingRestore {
+        private final Batch batch;
+        private final int position;
+        private final UUID playerId;
+        private final BackupInventory backupInventory;
+        private final RestoreResult.Status status;
+
+        private PendingRestore(Batch batch, int position, UUID playerId, BackupInventory backupInventory, RestoreResult.Status status) {
+            this.batch = batch;
+            this.position = position;
+            this.playerId = playerId;
+            this.backupInventory = backupInventory;
+            this.status = status;
+        }
+
+        /**
+         * Gets the result if the backup is not applied.
+         *
+         * @param offline The status if a backup was loaded but the player is gone.
+         * @return The result.
+         */
+        private RestoreResult getResult(RestoreResult.Status offline) {
+            return backupInventory == null
+                    ? new RestoreResult(playerId, status, null)
+                    : new RestoreResult(playerId, offline, backupInventory.getIdField());
+        }
+    }
+}
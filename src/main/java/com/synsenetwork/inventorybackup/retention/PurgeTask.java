@@ -0,0 +1,133 @@
+package com.synsenetwork.inventorybackup.retention;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.storage.BackupRepository;
+import org.dizitart.no2.NitriteId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Deletes every stored backup matching a filter, across all players.
+ * Like the {@link RetentionTask}, victims are picked from the in-memory index and deleted in bounded batches,
+ * each with its own commit, so the item stacks are never decoded and the writer thread never waits long.
+ * Meant to run off the main thread.
+ */
+public class PurgeTask {
+    // How often progress is reported while purging
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final BackupRepository repository;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Creates a new PurgeTask.
+     *
+     * @param repository The repository to purge.
+     * @param batchSize  The maximum number of backups deleted per batch.
+     */
+    public PurgeTask(BackupRepository repository, int batchSize) {
+        this.repository = repository;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Selects the backups taken before a point in time.
+     *
+     * @param cutoff The point in time in milliseconds since the epoch.
+     * @return The filter.
+     */
+    public static Predicate<BackupMetadata> olderThan(long cutoff) {
+        return backupMetadata -> backupMetadata.getTimestamp() < cutoff;
+    }
+
+    /**
+     * Selects the backups of every player except the given ones.
+     *
+     * @param playerIds The UUIDs of the players to keep, e.g. the online players.
+     * @return The filter.
+     */
+    public static Predicate<BackupMetadata> playersExcept(Set<UUID> playerIds) {
+        return backupMetadata -> !playerIds.contains(backupMetadata.getPlayerId());
+    }
+
+    /**
+     * Works out which backups a filter selects, without deleting anything.
+     *
+     * @param filter The filter.
+     * @return The ids of the selected backups.
+     */
+    public List<NitriteId> plan(Predicate<BackupMetadata> filter) {
+        List<NitriteId> ids = new ArrayList<>();
+        for (UUID playerId : repository.getIndex().getPlayers()) {
+            for (BackupMetadata backupMetadata : repository.getBackups(playerId)) {
+                if (filter.test(backupMetadata)) {
+                    ids.add(backupMetadata.getIdField());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes every backup a filter selects, in batches.
+     *
+     * @param filter   The filter.
+     * @param progress Receives the progress every few seconds while purging, may be null.
+     * @return The number of deleted backups, or -1 if a purge is already running.
+     */
+    public int purge(Predicate<BackupMetadata> filter, Progress progress) {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        try {
+            List<NitriteId> ids = plan(filter);
+            int deleted = 0;
+            long lastReport = System.nanoTime();
+
+            for (int i = 0; i < ids.size(); i += batchSize) {
+                // Delete the next batch
+                deleted += repository.remove(ids.subList(i, Math.min(i + batchSize, ids.size())));
+
+                // Report progress
+                if (progress != null && System.nanoTime() - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                    progress.report(deleted, ids.size());
+                    lastReport = System.nanoTime();
+                }
+            }
+
+            return deleted;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Checks if a purge is running.
+     *
+     * @return True if a purge is running.
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Receives the progress of a purge.
+     */
+    public interface Progress {
+        /**
+         * Reports the progress of a purge.
+         *
+         * @param deleted The number of backups deleted so far.
+         * @param total   The number of backups selected for deletion.
+         */
+        void report(int deleted, int total);
+    }
+}
@@ -0,0 +1,174 @@
+package com.synsenetwork.inventorybackup.retention;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.utils.TimeUtils;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which backups of a player are kept and which are deleted.
+ * <p>
+ * Backups are walked from newest to oldest:
+ * <ul>
+ *     <li>the newest {@code min-backups} are always kept,</li>
+ *     <li>anything past {@code max-backups} or older than {@code max-age} is deleted,</li>
+ *     <li>a backup older than a tier's {@code after} is only kept if it is the newest backup in its {@code every} bucket.</li>
+ * </ul>
+ */
+public class RetentionPolicy {
+    private final int minBackups;
+    private final int maxBackups;
+    private final long maxAgeMillis;
+    private final List<Tier> tiers;
+
+    /**
+     * Creates a new RetentionPolicy.
+     *
+     * @param minBackups   The number of newest backups that are always kept.
+     * @param maxBackups   The maximum number of backups kept per player, or 0 for no limit.
+     * @param maxAgeMillis The maximum age of a backup in milliseconds, or 0 for no limit.
+     * @param tiers        The thinning tiers.
+     */
+    public RetentionPolicy(int minBackups, int maxBackups, long maxAgeMillis, List<Tier> tiers) {
+        this.minBackups = Math.max(0, minBackups);
+        this.maxBackups = Math.max(0, maxBackups);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+        this.tiers = new ArrayList<>(tiers);
+        this.tiers.sort(Comparator.comparingLong(tier -> tier.afterMillis));
+    }
+
+    /**
+     * Creates a RetentionPolicy from a configuration section.
+     *
+     * @param section The configuration section.
+     * @return The retention policy.
+     * @throws IllegalArgumentException If a duration in the section is not valid.
+     */
+    public static RetentionPolicy fromConfig(ConfigurationSection section) {
+        List<Tier> tiers = new ArrayList<>();
+        for (Map<?, ?> tier : section.getMapList("tiers")) {
+            tiers.add(new Tier(
+                    TimeUtils.parseDuration(String.valueOf(tier.get("after"))),
+                    TimeUtils.parseDuration(String.valueOf(tier.get("every")))));
+        }
+
+        String maxAge = section.getString("max-age", "0");
+        return new RetentionPolicy(
+                section.getInt("min-backups", 1),
+                section.getInt("max-backups", 0),
+                TimeUtils.parseDuration(maxAge),
+                tiers);
+    }
+
+    /**
+     * Selects the backups of a player that should be deleted.
+     *
+     * @param backups The backups of the player, from newest to oldest.
+     * @param now     The current time in milliseconds.
+     * @return The backups to delete.
+     */
+    public List<BackupMetadata> select(List<BackupMetadata> backups, long now) {
+        List<BackupMetadata> expired = new ArrayList<>();
+        Set<Long> keptBuckets = new HashSet<>();
+        int kept = 0;
+
+        for (BackupMetadata backupMetadata : backups) {
+            // Always keep the newest backups
+            if (kept < minBackups) {
+                kept++;
+                continue;
+            }
+
+            long age = now - backupMetadata.getTimestamp();
+
+            // Delete anything over the count or age limit
+            if ((maxBackups > 0 && kept >= maxBackups) || (maxAgeMillis > 0 && age > maxAgeMillis)) {
+                expired.add(backupMetadata);
+                continue;
+            }
+
+            // Keep only the newest backup of every bucket of the tier the backup falls in
+            int tierIndex = getTierIndex(age);
+            if (tierIndex >= 0) {
+                long bucket = Math.floorDiv(backupMetadata.getTimestamp(), tiers.get(tierIndex).everyMillis);
+                if (!keptBuckets.add(bucket * tiers.size() + tierIndex)) {
+                    expired.add(backupMetadata);
+                    continue;
+                }
+            }
+
+            kept++;
+        }
+
+        return expired;
+    }
+
+    /**
+     * Gets the index of the tier a backup of the given age falls in.
+     *
+     * @param age The age of the backup in milliseconds.
+     * @return The tier index, or -1 if the backup is younger than every tier.
+     */
+    private int getTierIndex(long age) {
+        for (int i = tiers.size() - 1; i >= 0; i--) {
+            if (age >= tiers.get(i).afterMillis) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether this policy can ever delete anything.
+     *
+     * @return True if at least one limit or tier is configured.
+     */
+    public boolean isEmpty() {
+        return maxBackups == 0 && maxAgeMillis == 0 && tiers.isEmpty();
+    }
+
+    /**
+     * Describes this policy for logging.
+     *
+     * @return The description.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("min-backups=").append(minBackups);
+        builder.append(", max-backups=").append(maxBackups == 0 ? "unlimited" : maxBackups);
+        builder.append(", max-age=").append(maxAgeMillis == 0 ? "unlimited" : TimeUtils.formatDuration(maxAgeMillis));
+        for (Tier tier : tiers) {
+            builder.append(", after ").append(TimeUtils.formatDuration(tier.afterMillis)).append(" keep one every ").append(TimeUtils.formatDuration(tier.everyMillis));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A thinning tier: backups older than {@code after} are thinned to one per {@code every}.
+     */
+    public static final class Tier {
+        private final long afterMillis;
+        private final long everyMillis;
+
+        /**
+         * Creates a new Tier.
+         *
+         * @param afterMillis The age in milliseconds from which this tier applies.
+         * @param everyMillis The size of a bucket in milliseconds.
+         */
+        public Tier(long afterMillis, long everyMillis) {
+            if (everyMillis <= 0) {
+                throw new IllegalArgumentException("Retention tier interval must be positive.");
+            }
+            this.afterMillis = afterMillis;
+            this.everyMillis = everyMillis;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.synsenetwork.inventorybackup.retention;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.storage.BackupRepository;
+import org.dizitart.no2.NitriteId;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces a {@link RetentionPolicy} on all stored backups.
+ * Victims are picked from the in-memory index and deleted in bounded batches, each with its own commit,
+ * so the writer thread never waits long for the database. Meant to run off the main thread.
+ */
+public class RetentionTask implements Runnable {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(RetentionTask.class.getName());
+
+    private final BackupRepository repository;
+    private final RetentionPolicy policy;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Creates a new RetentionTask.
+     *
+     * @param repository The repository to prune.
+     * @param policy     The retention policy.
+     * @param batchSize  The maximum number of backups deleted per batch.
+     */
+    public RetentionTask(BackupRepository repository, RetentionPolicy policy, int batchSize) {
+        this.repository = repository;
+        this.policy = policy;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Runs the retention policy, logging the result.
+     */
+    @Override
+    public void run() {
+        try {
+            int deleted = prune();
+            if (deleted > 0) {
+                LOGGER.info("Retention policy deleted " + deleted + " backup inventories.");
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to apply retention policy.", e);
+        }
+    }
+
+    /**
+     * Works out which backups the retention policy would delete, without deleting anything.
+     *
+     * @return The backups to delete, grouped by player.
+     */
+    public Map<UUID, List<BackupMetadata>> plan() {
+        long now = System.currentTimeMillis();
+        Map<UUID, List<BackupMetadata>> plan = new LinkedHashMap<>();
+
+        for (UUID playerId : repository.getIndex().getPlayers()) {
+            List<BackupMetadata> expired = policy.select(repository.getBackups(playerId), now);
+            if (!expired.isEmpty()) {
+                plan.put(playerId, expired);
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Deletes every backup the retention policy selects, in batches.
+     *
+     * @return The number of deleted backups, or -1 if the task was already running.
+     */
+    public int prune() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        try {
+            int deleted = 0;
+            List<NitriteId> batch = new ArrayList<>(batchSize);
+
+            for (List<BackupMetadata> expired : plan().values()) {
+                for (BackupMetadata backupMetadata : expired) {
+                    batch.add(backupMetadata.getIdField());
+
+                    // Delete a full batch
+                    if (batch.size() >= batchSize) {
+                        deleted += repository.remove(batch);
+                        batch.clear();
+                    }
+                }
+            }
+
+            // Delete the remainder
+            deleted += repository.remove(batch);
+            return deleted;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Gets the retention policy.
+     *
+     * @return The retention policy.
+     */
+    public RetentionPolicy getPolicy() {
+        return policy;
+    }
+}
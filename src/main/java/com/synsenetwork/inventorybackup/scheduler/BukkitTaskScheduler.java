@@ -0,0 +1,56 @@
+package com.synsenetwork.inventorybackup.scheduler;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * A {@link TaskScheduler} for Paper and other servers with a single main thread, running on the Bukkit scheduler.
+ */
+public class BukkitTaskScheduler implements TaskScheduler {
+    private final Plugin plugin;
+
+    /**
+     * Creates a new BukkitTaskScheduler.
+     *
+     * @param plugin The plugin owning the tasks.
+     */
+    public BukkitTaskScheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void run(Runnable task) {
+        plugin.getServer().getScheduler().runTask(plugin, task);
+    }
+
+    @Override
+    public void runTimer(Runnable task, long delayTicks, long periodTicks) {
+        plugin.getServer().getScheduler().runTaskTimer(plugin, task, delayTicks, periodTicks);
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, task);
+    }
+
+    @Override
+    public void runAsyncTimer(Runnable task, long delayTicks, long periodTicks) {
+        plugin.getServer().getScheduler().runTaskTimerAsynchronously(plugin, task, delayTicks, periodTicks);
+    }
+
+    @Override
+    public void runForPlayer(Player player, Runnable task, Runnable retired) {
+        // Every player is owned by the main thread
+        if (plugin.getServer().isPrimaryThread()) {
+            task.run();
+        } else {
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (player.isOnline()) {
+                    task.run();
+                } else if (retired != null) {
+                    retired.run();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.synsenetwork.inventorybackup.scheduler;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TaskScheduler} for Folia, running player tasks on the entity scheduler of the player, so they run on
+ * the thread of the region the player is in, and other tasks on the global region and async schedulers.
+ */
+public class FoliaTaskScheduler implements TaskScheduler {
+    // Milliseconds per tick, the async scheduler counts in time instead of ticks
+    private static final long MILLIS_PER_TICK = 50;
+
+    private final Plugin plugin;
+
+    /**
+     * Creates a new FoliaTaskScheduler.
+     *
+     * @param plugin The plugin owning the tasks.
+     */
+    public FoliaTaskScheduler(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Checks whether the server runs Folia.
+     *
+     * @return True if the server has regionized threading.
+     */
+    public static boolean isSupported() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void run(Runnable task) {
+        plugin.getServer().getGlobalRegionScheduler().execute(plugin, task);
+    }
+
+    @Override
+    public void runTimer(Runnable task, long delayTicks, long periodTicks) {
+        plugin.getServer().getGlobalRegionScheduler().runAtFixedRate(plugin, scheduledTask -> task.run(), Math.max(1, delayTicks), Math.max(1, periodTicks));
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        plugin.getServer().getAsyncScheduler().runNow(plugin, scheduledTask -> task.run());
+    }
+
+    @Override
+    public void runAsyncTimer(Runnable task, long delayTicks, long periodTicks) {
+        plugin.getServer().getAsyncScheduler().runAtFixedRate(plugin, scheduledTask -> task.run(),
+                Math.max(1, delayTicks * MILLIS_PER_TICK), Math.max(1, periodTicks * MILLIS_PER_TICK), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void runForPlayer(Player player, Runnable task, Runnable retired) {
+        // Run right away on the region thread owning the player
+        if (plugin.getServer().isOwnedByCurrentRegion(player)) {
+            task.run();
+            return;
+        }
+
+        // The player is removed from the world if they left before the task could be scheduled
+        if (player.getScheduler().run(plugin, scheduledTask -> task.run(), retired) == null && retired != null) {
+            retired.run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.synsenetwork.inventorybackup.scheduler;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Runs plugin tasks on the thread allowed to do their work. On Paper, everything touching players or the world runs
+ * on the main thread. On Folia, player work runs on the thread of the region owning the player, and work not tied
+ * to a player runs on the global region thread. Storage work runs off those threads on both.
+ */
+public interface TaskScheduler {
+    /**
+     * Creates the scheduler for the server the plugin runs on.
+     *
+     * @param plugin The plugin owning the tasks.
+     * @return The Folia scheduler if the server runs Folia, otherwise the Bukkit scheduler.
+     */
+    static TaskScheduler create(Plugin plugin) {
+        return FoliaTaskScheduler.isSupported() ? new FoliaTaskScheduler(plugin) : new BukkitTaskScheduler(plugin);
+    }
+
+    /**
+     * Runs a task not tied to a player on the main thread, or the global region thread on Folia.
+     *
+     * @param task The task.
+     */
+    void run(Runnable task);
+
+    /**
+     * Runs a task not tied to a player repeatedly on the main thread, or the global region thread on Folia.
+     *
+     * @param task        The task.
+     * @param delayTicks  The ticks before the first run, at least 1.
+     * @param periodTicks The ticks between two runs.
+     */
+    void runTimer(Runnable task, long delayTicks, long periodTicks);
+
+    /**
+     * Runs a task off the server threads.
+     *
+     * @param task The task.
+     */
+    void runAsync(Runnable task);
+
+    /**
+     * Runs a task off the server threads repeatedly.
+     *
+     * @param task        The task.
+     * @param delayTicks  The ticks before the first run.
+     * @param periodTicks The ticks between two runs.
+     */
+    void runAsyncTimer(Runnable task, long delayTicks, long periodTicks);
+
+    /**
+     * Runs a task on the thread owning a player, right away if that is the current thread.
+     *
+     * @param player  The player.
+     * @param task    The task.
+     * @param retired Runs instead of the task if the player left before it could run, may be null.
+     */
+    void runForPlayer(Player player, Runnable task, Runnable retired);
+
+    /**
+     * Runs a task on the thread owning a player, right away if that is the current thread.
+     * Nothing runs if the player left before the task could run.
+     *
+     * @param player The player.
+     * @param task   The task.
+     */
+    default void runForPlayer(Player player, Runnable task) {
+        runForPlayer(player, task, null);
+    }
+}
@@ -0,0 +1,371 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports backups to a compressed archive file and imports them again, e.g. to move backups to another server.
+ * The archive is a GZIP stream of length-prefixed records, one per backup, read and written one record at a time,
+ * so memory use doesn't depend on the number of backups. Deltas are exported as keyframes, so every record
+ * stands on its own and archives can be imported into any backend, with or without deltas.
+ * Meant to run off the main thread.
+ *
+ * <pre>
+ * archive = MAGIC VERSION record* END
+ * record  = length:int playerMost:long playerLeast:long timestamp:long totalExperience:int
+ *           (itemStacksLength:int itemStacks:byte[]){3}
+ * </pre>
+ */
+public class BackupArchive {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(BackupArchive.class.getName());
+
+    // "IBAK", identifies archive files
+    private static final int MAGIC = 0x4942414B;
+
+    // Version of the archive format
+    private static final int VERSION = 1;
+
+    // Record length marking the end of the archive, so truncated archives are noticed
+    private static final int END = 0;
+
+    // Upper bound of a record, so a corrupt length fails instead of allocating gigabytes
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // Size of the buffers between the file and the compression stream
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Number of backups between progress reports
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final BackupRepository repository;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Creates a new BackupArchive.
+     *
+     * @param repository The repository to export from and import into.
+     * @param batchSize  The number of imported backups inserted per commit.
+     */
+    public BackupArchive(BackupRepository repository, int batchSize) {
+        this.repository = repository;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Checks whether an export or import is running.
+     *
+     * @return True if an export or import is running.
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Exports the backups a filter selects to an archive file, replacing it once the export is complete.
+     *
+     * @param file     The archive file.
+     * @param filter   Selects the backups to export.
+     * @param progress Receives the number of exported backups every thousand backups, may be null.
+     * @return The number of exported backups, or -1 if an export or import was already running.
+     * @throws IOException If the archive can't be written.
+     */
+    public int export(File file, Filter filter, IntConsumer progress) throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            int exported = 0;
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile.toPath()), BUFFER_SIZE), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                List<UUID> players = filter.getPlayerId() == null ? repository.getIndex().getPlayers() : Collections.singletonList(filter.getPlayerId());
+                for (UUID playerId : players) {
+                    // Walk from oldest to newest, so the base of a delta was usually exported just before it
+                    List<BackupMetadata> backups = repository.getBackups(playerId);
+                    Collections.reverse(backups);
+
+                    BackupInventory previous = null;
+                    for (BackupMetadata backupMetadata : backups) {
+                        if (!filter.matches(playerId, backupMetadata.getTimestamp())) {
+                            continue;
+                        }
+
+                        // Skip backups removed since the index was read
+                        BackupInventory backupInventory = repository.getById(backupMetadata.getIdField());
+                        if (backupInventory == null) {
+                            continue;
+                        }
+
+                        // Rewrite deltas as keyframes in memory, reusing the decoded previous backup as base
+                        if (backupInventory.getBaseId() != null) {
+                            BackupInventory base = previous;
+                            backupInventory.setBaseLoader(id -> base != null && id.equals(base.getIdField()) ? base : repository.getById(id));
+                            backupInventory.setBase(null);
+                        }
+
+                        buffer.reset();
+                        writeRecord(new DataOutputStream(buffer), backupInventory);
+                        out.writeInt(buffer.size());
+                        buffer.writeTo(out);
+                        previous = backupInventory;
+
+                        // Report progress
+                        if (++exported % PROGRESS_INTERVAL == 0 && progress != null) {
+                            progress.accept(exported);
+                        }
+                    }
+                }
+
+                out.writeInt(END);
+            }
+
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Exported " + exported + " backup inventories to " + file.getName() + ".");
+            return exported;
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+            running.set(false);
+        }
+    }
+
+    /**
+     * Imports the backups a filter selects from an archive file, inserting them in batches.
+     * Backups of a player with the same timestamp as a stored or already imported backup are skipped, so importing
+     * an archive twice doesn't duplicate backups. If the archive turns out to be corrupt, the batches imported before stay imported.
+     *
+     * @param file     The archive file.
+     * @param filter   Selects the backups to import.
+     * @param progress Receives the number of imported backups every thousand backups, may be null.
+     * @return The number of imported backups, or -1 if an export or import was already running.
+     * @throws IOException If the archive can't be read or is not a valid archive.
+     */
+    public int importArchive(File file, Filter filter, IntConsumer progress) throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a backup archive.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported archive version " + version + ".");
+            }
+
+            int imported = 0;
+            int reported = 0;
+            int skipped = 0;
+            List<BackupInventory> batch = new ArrayList<>(batchSize);
+
+            // Timestamps of the stored backups of the player being imported, archives hold one player after another
+            UUID storedPlayerId = null;
+            Set<Long> storedTimestamps = Collections.emptySet();
+            while (true) {
+                int length = in.readInt();
+                if (length == END) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException(file.getName() + " is corrupt, record of " + length + " bytes.");
+                }
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+                BackupInventory backupInventory = readRecord(record, filter);
+                if (backupInventory == null) {
+                    continue;
+                }
+                if (!backupInventory.getPlayerId().equals(storedPlayerId)) {
+                    storedPlayerId = backupInventory.getPlayerId();
+                    storedTimestamps = getStoredTimestamps(storedPlayerId);
+                }
+                if (!storedTimestamps.add(backupInventory.getTimestamp())) {
+                    skipped++;
+                    continue;
+                }
+
+                // Insert a full batch
+                batch.add(backupInventory);
+                if (batch.size() >= batchSize) {
+                    repository.insert(batch);
+                    imported += batch.size();
+                    batch.clear();
+
+                    // Report progress
+                    if (progress != null && imported - reported >= PROGRESS_INTERVAL) {
+                        progress.accept(imported);
+                        reported = imported;
+                    }
+                }
+            }
+
+            // Insert the remainder
+            repository.insert(batch);
+            imported += batch.size();
+
+            LOGGER.info("Imported " + imported + " backup inventories from " + file.getName() + (skipped > 0 ? ", skipped " + skipped + " already stored." : "."));
+            return imported;
+        } catch (EOFException e) {
+            throw new IOException(file.getName() + " is truncated.", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Writes a backup as an archive record, without the length prefix.
+     *
+     * @param out             The stream to write to.
+     * @param backupInventory The backup, a keyframe.
+     * @throws IOException If the record can't be written.
+     */
+    private void writeRecord(DataOutputStream out, BackupInventory backupInventory) throws IOException {
+        // Item stacks stored as shared blobs are written inline
+        byte[][] encoded = backupInventory.encodeItemStacks();
+        String[] refs = backupInventory.getRefs();
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] == null) {
+                encoded[i] = repository.getBlobStore().get(refs[i]);
+            }
+            if (encoded[i] == null) {
+                throw new IllegalStateException("Backup inventory " + backupInventory.getIdField() + " references missing blob " + refs[i] + ".");
+            }
+        }
+        writeRecord(out, backupInventory, encoded);
+    }
+
+    /**
+     * Writes a backup as a record, without the length prefix. Also used by the {@link BackupSpool}.
+     *
+     * @param out             The stream to write to.
+     * @param backupInventory The backup.
+     * @param encoded         The item stacks of the backup encoded as a keyframe.
+     * @throws IOException If the record can't be written.
+     */
+    static void writeRecord(DataOutputStream out, BackupInventory backupInventory, byte[][] encoded) throws IOException {
+        out.writeLong(backupInventory.getPlayerId().getMostSignificantBits());
+        out.writeLong(backupInventory.getPlayerId().getLeastSignificantBits());
+        out.writeLong(backupInventory.getTimestamp());
+        out.writeInt(backupInventory.getTotalExperience());
+        for (byte[] bytes : encoded) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a backup from a record, without the length prefix. Also used by the {@link BackupSpool}.
+     *
+     * @param record The record.
+     * @param filter Selects the backups to read.
+     * @return The backup, or null if the filter doesn't select it.
+     * @throws IOException If the record is corrupt.
+     */
+    static BackupInventory readRecord(byte[] record, Filter filter) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        UUID playerId = new UUID(in.readLong(), in.readLong());
+        long timestamp = in.readLong();
+        if (!filter.matches(playerId, timestamp)) {
+            return null;
+        }
+
+        int totalExperience = in.readInt();
+        byte[][] encoded = new byte[3][];
+        for (int i = 0; i < encoded.length; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Corrupt record of backup inventory of player " + playerId + ".");
+            }
+            encoded[i] = new byte[length];
+            in.readFully(encoded[i]);
+        }
+        return BackupInventory.fromEncoded(playerId, timestamp, encoded, totalExperience);
+    }
+
+    /**
+     * Gets the timestamps of the stored backups of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The timestamps, a mutable set.
+     */
+    private Set<Long> getStoredTimestamps(UUID playerId) {
+        List<BackupMetadata> backups = repository.getBackups(playerId);
+        Set<Long> timestamps = new HashSet<>(backups.size() * 2);
+        for (BackupMetadata backupMetadata : backups) {
+            timestamps.add(backupMetadata.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    /**
+     * Selects backups by player and time range.
+     */
+    public static final class Filter {
+        private final UUID playerId;
+        private final long from;
+        private final long to;
+
+        /**
+         * Creates a new Filter.
+         *
+         * @param playerId The UUID of the player, or null for all players.
+         * @param from     The earliest timestamp, inclusive.
+         * @param to       The latest timestamp, exclusive.
+         */
+        public Filter(UUID playerId, long from, long to) {
+            this.playerId = playerId;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Checks whether the filter selects a backup.
+         *
+         * @param playerId  The UUID of the player.
+         * @param timestamp The timestamp of the backup.
+         * @return True if the backup is selected.
+         */
+        public boolean matches(UUID playerId, long timestamp) {
+            return (this.playerId == null || this.playerId.equals(playerId)) && timestamp >= from && timestamp < to;
+        }
+
+        /**
+         * Gets the UUID of the selected player.
+         *
+         * @return The UUID of the player, or null for all players.
+         */
+        public UUID getPlayerId() {
+            return playerId;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import org.dizitart.no2.NitriteId;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates time-ordered backup ids.
+ * <p>
+ * An id is the current time in milliseconds shifted left by {@value #SEQUENCE_BITS} bits, so up to
+ * {@code 2^SEQUENCE_BITS} backups per millisecond get distinct ids before the sequence borrows from the next
+ * millisecond. Ids never go backwards, even when the clock does, and always exceed every id already stored,
+ * so backups taken in the same millisecond never collide and newer backups always sort after older ones.
+ * <p>
+ * Servers sharing a database each get a server id, stored in the lowest {@value #SERVER_BITS} bits of the sequence,
+ * so two servers never generate the same id even in the same millisecond.
+ */
+public class BackupIdGenerator {
+    // Number of low bits used as a sequence within one millisecond
+    private static final int SEQUENCE_BITS = 12;
+
+    // Number of low bits of the sequence holding the server id, if the database is shared
+    private static final int SERVER_BITS = 6;
+
+    // Highest server id
+    public static final int MAX_SERVER_ID = (1 << SERVER_BITS) - 1;
+
+    private final AtomicLong last = new AtomicLong();
+    private final int serverId;
+    private final int serverBits;
+
+    /**
+     * Creates a new BackupIdGenerator for a database only this server writes to.
+     */
+    public BackupIdGenerator() {
+        this.serverId = 0;
+        this.serverBits = 0;
+    }
+
+    /**
+     * Creates a new BackupIdGenerator for a database shared between servers.
+     *
+     * @param serverId The id of this server, unique among the servers sharing the database.
+     * @throws IllegalArgumentException If the server id is out of range.
+     */
+    public BackupIdGenerator(int serverId) {
+        if (serverId < 0 || serverId > MAX_SERVER_ID) {
+            throw new IllegalArgumentException("Server id must be between 0 and " + MAX_SERVER_ID + ", got " + serverId + ".");
+        }
+        this.serverId = serverId;
+        this.serverBits = SERVER_BITS;
+    }
+
+    /**
+     * Makes sure generated ids are greater than an existing id.
+     *
+     * @param id The existing id.
+     */
+    public void observe(NitriteId id) {
+        if (id != null) {
+            last.accumulateAndGet(id.getIdValue(), Math::max);
+        }
+    }
+
+    /**
+     * Generates a new id.
+     *
+     * @return The id, greater than every id generated or observed before.
+     */
+    public NitriteId next() {
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        return NitriteId.createId(last.updateAndGet(previous -> Math.max(((previous >> serverBits) + 1) << serverBits, now) | serverId));
+    }
+}
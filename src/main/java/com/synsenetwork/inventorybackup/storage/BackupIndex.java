@@ -0,0 +1,217 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import org.dizitart.no2.NitriteId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * An in-memory index of the backups of every player, ordered from newest to oldest.
+ * Built once from the database and kept up to date on every insert and removal,
+ * so listing backups, suggesting ids and finding the latest backup never hit storage.
+ */
+public class BackupIndex {
+    private final Map<UUID, NavigableSet<BackupMetadata>> players = new ConcurrentHashMap<>();
+    private final Map<NitriteId, BackupMetadata> backups = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a backup to the index.
+     *
+     * @param backupMetadata The metadata of the backup.
+     */
+    public void add(BackupMetadata backupMetadata) {
+        players.compute(backupMetadata.getPlayerId(), (playerId, playerBackups) -> {
+            if (playerBackups == null) {
+                playerBackups = new ConcurrentSkipListSet<>(BackupMetadata.NEWEST_FIRST);
+            }
+            playerBackups.add(backupMetadata);
+            return playerBackups;
+        });
+        backups.put(backupMetadata.getIdField(), backupMetadata);
+    }
+
+    /**
+     * Removes a backup from the index.
+     *
+     * @param id The id of the backup.
+     * @return The metadata of the removed backup, or null if it wasn't indexed.
+     */
+    public BackupMetadata remove(NitriteId id) {
+        BackupMetadata backupMetadata = backups.remove(id);
+        if (backupMetadata == null) {
+            return null;
+        }
+
+        // Remove the backup from its player, dropping the player once it has no backups left
+        players.computeIfPresent(backupMetadata.getPlayerId(), (playerId, playerBackups) -> {
+            playerBackups.remove(backupMetadata);
+            return playerBackups.isEmpty() ? null : playerBackups;
+        });
+        return backupMetadata;
+    }
+
+    /**
+     * Removes all backups of a player from the index.
+     *
+     * @param playerId The UUID of the player.
+     * @return The metadata of the removed backups.
+     */
+    public List<BackupMetadata> removeAll(UUID playerId) {
+        NavigableSet<BackupMetadata> playerBackups = players.remove(playerId);
+        if (playerBackups == null) {
+            return Collections.emptyList();
+        }
+
+        for (BackupMetadata backupMetadata : playerBackups) {
+            backups.remove(backupMetadata.getIdField());
+        }
+        return new ArrayList<>(playerBackups);
+    }
+
+    /**
+     * Gets a backup by its id.
+     *
+     * @param id The id of the backup.
+     * @return The metadata of the backup, or null if it isn't indexed.
+     */
+    public BackupMetadata get(NitriteId id) {
+        return backups.get(id);
+    }
+
+    /**
+     * Gets the newest backup of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The metadata of the newest backup, or null if the player has no backups.
+     */
+    public BackupMetadata getLatest(UUID playerId) {
+        NavigableSet<BackupMetadata> playerBackups = players.get(playerId);
+        if (playerBackups == null) {
+            return null;
+        }
+
+        // The set can be emptied concurrently, so don't rely on first()
+        Iterator<BackupMetadata> iterator = playerBackups.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Gets the length of the delta chain a backup is at the end of.
+     *
+     * @param id The id of the backup.
+     * @return The number of deltas between the backup and its keyframe, 0 if the backup is a keyframe.
+     */
+    public int getDepth(NitriteId id) {
+        int depth = 0;
+        BackupMetadata backupMetadata = backups.get(id);
+        while (backupMetadata != null && backupMetadata.getBaseId() != null) {
+            depth++;
+            backupMetadata = backups.get(backupMetadata.getBaseId());
+        }
+        return depth;
+    }
+
+    /**
+     * Gets the backups that are deltas of a backup.
+     *
+     * @param id The id of the backup.
+     * @return The metadata of the dependent backups.
+     */
+    public List<BackupMetadata> getDependents(NitriteId id) {
+        BackupMetadata backupMetadata = backups.get(id);
+        NavigableSet<BackupMetadata> playerBackups = backupMetadata == null ? null : players.get(backupMetadata.getPlayerId());
+        if (playerBackups == null) {
+            return Collections.emptyList();
+        }
+
+        List<BackupMetadata> dependents = new ArrayList<>();
+        for (BackupMetadata playerBackup : playerBackups) {
+            if (id.equals(playerBackup.getBaseId())) {
+                dependents.add(playerBackup);
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * Gets all backups of a player, from newest to oldest.
+     *
+     * @param playerId The UUID of the player.
+     * @return The metadata of the player's backups.
+     */
+    public List<BackupMetadata> getBackups(UUID playerId) {
+        NavigableSet<BackupMetadata> playerBackups = players.get(playerId);
+        return playerBackups == null ? Collections.emptyList() : new ArrayList<>(playerBackups);
+    }
+
+    /**
+     * Gets a page of a player's backups, from newest to oldest.
+     *
+     * @param playerId The UUID of the player.
+     * @param offset   The number of newer backups to skip.
+     * @param limit    The maximum number of backups to return.
+     * @return The metadata of the backups on the page.
+     */
+    public List<BackupMetadata> getBackups(UUID playerId, int offset, int limit) {
+        NavigableSet<BackupMetadata> playerBackups = players.get(playerId);
+        if (playerBackups == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // Walk the ordered set instead of copying it, only the page is materialized
+        List<BackupMetadata> page = new ArrayList<>(Math.min(limit, 64));
+        Iterator<BackupMetadata> iterator = playerBackups.iterator();
+        for (int skipped = 0; skipped < offset && iterator.hasNext(); skipped++) {
+            iterator.next();
+        }
+        while (page.size() < limit && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return page;
+    }
+
+    /**
+     * Gets the number of backups of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The number of backups.
+     */
+    public int count(UUID playerId) {
+        NavigableSet<BackupMetadata> playerBackups = players.get(playerId);
+        return playerBackups == null ? 0 : playerBackups.size();
+    }
+
+    /**
+     * Gets the UUIDs of all players with at least one backup.
+     *
+     * @return The UUIDs of the players.
+     */
+    public List<UUID> getPlayers() {
+        return new ArrayList<>(players.keySet());
+    }
+
+    /**
+     * Gets the total number of indexed backups.
+     *
+     * @return The number of backups.
+     */
+    public int size() {
+        return backups.size();
+    }
+
+    /**
+     * Removes everything from the index.
+     */
+    public void clear() {
+        players.clear();
+        backups.clear();
+    }
+}
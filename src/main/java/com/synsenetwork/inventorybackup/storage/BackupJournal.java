@@ -0,0 +1,434 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import org.dizitart.no2.NitriteId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * A write-ahead journal of backups that are not committed yet, so a death backup survives a crash between the death
+ * and the commit, or a database that fails to open. Backups are encoded and appended to a memory-mapped file on the
+ * journal thread, which then hands them to the writer, and the writer reuses the encoded item stacks. A backup is
+ * released once it is committed or spooled. A backup that fails otherwise is kept in the journal for the next start.
+ * When no backup is outstanding, the journal is truncated to the kept backups.
+ * Backups still in the journal on startup are replayed into the repository.
+ *
+ * <pre>
+ * journal = MAGIC VERSION entry* END
+ * entry   = length:int crc32c:int record:byte[length]
+ * </pre>
+ * <p>
+ * Records have the format of the {@link BackupArchive}. Reading stops at the end marker or at the first entry whose
+ * checksum doesn't match, which is where a crash interrupted an append.
+ */
+public class BackupJournal {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(BackupJournal.class.getName());
+
+    // "IBJL", identifies journal files
+    private static final int MAGIC = 0x49424A4C;
+
+    // Version of the journal format
+    private static final int VERSION = 1;
+
+    // Length marking the end of the journal
+    private static final int END = 0;
+
+    // Size of the header, magic and version
+    private static final int HEADER_SIZE = 8;
+
+    // Size of an entry before its record, length and checksum
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    // Selects every record
+    private static final BackupArchive.Filter ALL = new BackupArchive.Filter(null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    // Seconds to wait for backups being journaled to reach the writer on shutdown
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final boolean sync;
+    private final BackupMetrics metrics;
+    private final List<byte[]> recovered;
+
+    // Records of backups that failed to be written, kept at the start of the journal for the next start
+    private final List<byte[]> retained = new ArrayList<>();
+    private final ExecutorService executor;
+    private int outstanding;
+    private boolean full;
+    private boolean closed;
+
+    /**
+     * Creates a new BackupJournal.
+     *
+     * @param channel   The channel of the journal file.
+     * @param buffer    The mapped journal file.
+     * @param sync      Whether every append is forced to disk.
+     * @param metrics   The metrics to record journal appends in.
+     * @param recovered The records found in the journal file.
+     */
+    private BackupJournal(FileChannel channel, MappedByteBuffer buffer, boolean sync, BackupMetrics metrics, List<byte[]> recovered) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.sync = sync;
+        this.metrics = metrics;
+        this.recovered = recovered;
+        this.outstanding = recovered.size();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "InventoryBackup-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens a journal file, creating it if it doesn't exist, and reads the backups a previous run left in it.
+     *
+     * @param file    The journal file.
+     * @param size    The size of the journal file in bytes, the most uncommitted backups it holds at once.
+     * @param sync    Whether every append is forced to disk, surviving an operating system crash and not only
+     *                a crash of the server, at the cost of a disk flush per death.
+     * @param metrics The metrics to record journal appends in.
+     * @return The journal.
+     * @throws IOException If the journal file can't be opened.
+     */
+    public static BackupJournal open(File file, int size, boolean sync, BackupMetrics metrics) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(Math.max(HEADER_SIZE + ENTRY_HEADER_SIZE, size), channel.size()));
+
+            // Read the records left by the previous run
+            List<byte[]> recovered = new ArrayList<>();
+            if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+                buffer.position(HEADER_SIZE);
+                recovered = readRecords(buffer, file.getName());
+            } else if (buffer.getInt(0) != 0) {
+                LOGGER.warning(file.getName() + " is not a backup journal, overwriting it.");
+            }
+
+            // Continue after the recovered records, or start an empty journal
+            if (recovered.isEmpty()) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.position(HEADER_SIZE);
+                buffer.putInt(buffer.position(), END);
+            }
+            return new BackupJournal(channel, buffer, sync, metrics, recovered);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Journals a backup on the journal thread and then submits it to the writer, without blocking the caller.
+     * A backup that can't be journaled, e.g. because the journal is full, is still submitted.
+     *
+     * @param backupInventory The backup.
+     * @param writer          The writer to submit the backup to.
+     * @return A future completed like the one returned by {@link BackupWriter#submit(BackupInventory)}.
+     */
+    public CompletableFuture<NitriteId> submit(BackupInventory backupInventory, BackupWriter writer) {
+        CompletableFuture<NitriteId> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                // Journal the backup, encoding its item stacks for the writer
+                long start = System.nanoTime();
+                int entry = -1;
+                try {
+                    entry = append(backupInventory);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to journal backup inventory of player " + backupInventory.getPlayerId() + ".", e);
+                }
+                metrics.record(BackupMetrics.Timer.JOURNAL, start);
+
+                // Release the journaled copy once the backup is committed or spooled, keep it for the next start otherwise
+                int journaled = entry;
+                try {
+                    writer.submit(backupInventory).whenComplete((id, throwable) -> {
+                        if (journaled >= 0) {
+                            release(journaled, throwable != null && !(throwable instanceof BackupSpooledException));
+                        }
+                        if (throwable != null) {
+                            future.completeExceptionally(throwable);
+                        } else {
+                            future.complete(id);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    if (journaled >= 0) {
+                        release(journaled, true);
+                    }
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The journal was shut down, e.g. while the plugin is disabling
+            return writer.submit(backupInventory);
+        }
+        return future;
+    }
+
+    /**
+     * Appends a backup to the journal. Encodes the item stacks of the backup, which the writer reuses later.
+     * Every appended backup must be released once it is committed or has failed.
+     *
+     * @param backupInventory The backup.
+     * @return The position of the entry, or -1 if the journal is full or closed.
+     * @throws IOException If the backup can't be encoded.
+     */
+    int append(BackupInventory backupInventory) throws IOException {
+        // Encode the record and its checksum before taking the lock
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BackupArchive.writeRecord(new DataOutputStream(out), backupInventory, backupInventory.encodeItemStacks());
+        byte[] record = out.toByteArray();
+
+        synchronized (this) {
+            if (closed) {
+                return -1;
+            }
+
+            // Keep room for the end marker
+            if (buffer.remaining() < ENTRY_HEADER_SIZE + record.length + 4) {
+                if (!full) {
+                    LOGGER.warning("Backup journal is full with " + getOutstandingCount() + " uncommitted backups, new backups are not journaled until they are committed.");
+                    full = true;
+                }
+                return -1;
+            }
+
+            int start = writeEntry(record);
+            if (sync) {
+                buffer.force();
+            }
+            outstanding++;
+            return start;
+        }
+    }
+
+    /**
+     * Releases an appended backup once it is committed or has failed, truncating the journal when no backup
+     * is outstanding.
+     *
+     * @param entry The position of the entry, as returned by {@link #append(BackupInventory)}.
+     * @param keep  True to keep the backup in the journal for the next start, because it failed to be written.
+     */
+    synchronized void release(int entry, boolean keep) {
+        if (closed) {
+            return;
+        }
+
+        // Copy the record of a failed backup before the journal is truncated
+        if (keep) {
+            byte[] record = new byte[buffer.getInt(entry)];
+            buffer.get(entry + ENTRY_HEADER_SIZE, record);
+            retained.add(record);
+        }
+        release(1);
+    }
+
+    /**
+     * Writes the backups recovered from the journal to the repository and releases them. Backups that were already
+     * committed before the journal was truncated are skipped.
+     *
+     * @param repository The repository to write to.
+     * @param batchSize  The maximum number of backups inserted in one batch.
+     * @return The number of written backups.
+     */
+    public int replay(BackupRepository repository, int batchSize) {
+        List<byte[]> records;
+        synchronized (this) {
+            records = new ArrayList<>(recovered);
+            recovered.clear();
+        }
+        if (records.isEmpty()) {
+            return 0;
+        }
+
+        int written = 0;
+        try {
+            List<BackupInventory> batch = new ArrayList<>(batchSize);
+            for (byte[] record : records) {
+                BackupInventory backupInventory;
+                try {
+                    backupInventory = BackupArchive.readRecord(record, ALL);
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Dropping corrupt journaled backup inventory.", e);
+                    continue;
+                }
+                if (BackupSpool.isStored(repository, backupInventory)) {
+                    continue;
+                }
+
+                // Insert a full batch
+                batch.add(backupInventory);
+                if (batch.size() >= Math.max(1, batchSize)) {
+                    repository.insert(batch);
+                    written += batch.size();
+                    batch.clear();
+                }
+            }
+
+            // Insert the remainder
+            repository.insert(batch);
+            written += batch.size();
+        } catch (RuntimeException e) {
+            // Keep the records for the next start
+            synchronized (this) {
+                retained.addAll(records);
+                release(records.size());
+            }
+            throw e;
+        }
+
+        release(records.size());
+        LOGGER.info("Recovered " + written + " backup inventories from the journal" + (written < records.size() ? ", " + (records.size() - written) + " were already stored." : "."));
+        return written;
+    }
+
+    /**
+     * Gets the number of backups in the journal that are not committed yet, including the ones kept after they
+     * failed to be written.
+     *
+     * @return The number of outstanding backups.
+     */
+    public synchronized int getOutstandingCount() {
+        return outstanding + retained.size();
+    }
+
+    /**
+     * Waits for the backups being journaled to be submitted to the writer, so they are flushed with it.
+     * Backups submitted afterwards go to the writer directly.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warning("Backups being journaled did not reach the writer in time.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forces the journal to disk and closes it. Backups still outstanding are replayed on the next start.
+     *
+     * @throws IOException If the journal can't be closed.
+     */
+    public void close() throws IOException {
+        shutdown();
+        synchronized (this) {
+            closed = true;
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Releases backups, truncating the journal to the kept backups when no backup is outstanding.
+     *
+     * @param count The number of backups to release.
+     */
+    private synchronized void release(int count) {
+        outstanding = Math.max(0, outstanding - count);
+        if (outstanding > 0 || buffer.position() == HEADER_SIZE) {
+            return;
+        }
+
+        // Kept records were all in the journal before, so they fit at its start
+        buffer.putInt(HEADER_SIZE, END);
+        buffer.position(HEADER_SIZE);
+        for (byte[] record : retained) {
+            writeEntry(record);
+        }
+        if (sync) {
+            buffer.force();
+        }
+        full = false;
+    }
+
+    /**
+     * Writes an entry at the current position and moves the position past it.
+     * The end marker is written before the length, so a torn entry never looks complete.
+     *
+     * @param record The record.
+     * @return The position of the entry.
+     */
+    private int writeEntry(byte[] record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+
+        int start = buffer.position();
+        buffer.putInt(start + ENTRY_HEADER_SIZE + record.length, END);
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        buffer.putInt(start, record.length);
+        return start;
+    }
+
+    /**
+     * Reads the records from the current position up to the end marker or the first damaged entry,
+     * leaving the position after the last intact entry and marking the end there.
+     *
+     * @param buffer The mapped journal file.
+     * @param name   The name of the journal file, for logging.
+     * @return The records.
+     */
+    private static List<byte[]> readRecords(MappedByteBuffer buffer, String name) {
+        List<byte[]> records = new ArrayList<>();
+        int start = buffer.position();
+        while (buffer.limit() - start >= ENTRY_HEADER_SIZE) {
+            int length = buffer.getInt(start);
+            if (length == END) {
+                break;
+            }
+
+            // An entry running past the end of the file was cut off
+            if (length < 0 || length > buffer.limit() - start - ENTRY_HEADER_SIZE - 4) {
+                LOGGER.warning(name + " ends with a truncated entry after " + records.size() + " backups, dropping it.");
+                break;
+            }
+
+            // An entry with a wrong checksum was torn by a crash while appending
+            byte[] record = new byte[length];
+            buffer.position(start + ENTRY_HEADER_SIZE);
+            buffer.get(record);
+            CRC32C crc = new CRC32C();
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+                LOGGER.warning(name + " has a damaged entry after " + records.size() + " backups, dropping the rest.");
+                break;
+            }
+
+            records.add(record);
+            start += ENTRY_HEADER_SIZE + length;
+        }
+
+        // Append after the last intact entry
+        buffer.position(start);
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(start, END);
+        }
+        return records;
+    }
+}
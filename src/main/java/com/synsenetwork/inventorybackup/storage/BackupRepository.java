@@ -0,0 +1,614 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import org.dizitart.no2.NitriteId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores backup inventories in a {@link BackupStore} and keeps the in-memory {@link BackupIndex} in sync with it.
+ * All reads and writes of backups go through this class, which is safe to use from any thread: the index is
+ * concurrent, and changes to delta chains and blob references are made under one lock.
+ * <p>
+ * Encoded item stacks at least {@code deduplicationMinSize} bytes long are stored once in the {@link BlobStore}
+ * and referenced by content hash, so identical inventories share their storage.
+ * <p>
+ * With deltas enabled, a new backup only stores the slots that changed since the player's previous backup.
+ * Before a backup is removed, the deltas based on it are rewritten as keyframes, so no chain is ever broken.
+ */
+public class BackupRepository {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(BackupRepository.class.getName());
+
+    private final BackupStore store;
+    private final BackupMetrics metrics;
+    private final BlobStore blobStore;
+    private final int deduplicationMinSize;
+    private final int maxChain;
+    private final BackupIndex index = new BackupIndex();
+    private final BackupIdGenerator idGenerator;
+    private final DeltaEncoder deltaEncoder;
+
+    // Held while delta chains or blob references change, so a delta is never written against a backup being removed
+    private final Object lock = new Object();
+
+    /**
+     * Creates a new BackupRepository.
+     *
+     * @param store                The store holding the backups.
+     * @param deduplicationMinSize The minimum size of encoded item stacks stored as shared blobs, or -1 to store everything inline.
+     * @param maxChain             The maximum number of deltas after a keyframe, or 0 to store every backup as a keyframe.
+     * @param deltaCacheSize       The maximum number of players whose newest backup is kept in memory for encoding deltas.
+     * @param metrics              The metrics to record insert, load and remove times in.
+     */
+    public BackupRepository(BackupStore store, int deduplicationMinSize, int maxChain, int deltaCacheSize, BackupMetrics metrics) {
+        this(store, deduplicationMinSize, maxChain, deltaCacheSize, metrics, new BackupIdGenerator());
+    }
+
+    /**
+     * Creates a new BackupRepository.
+     *
+     * @param store                The store holding the backups.
+     * @param deduplicationMinSize The minimum size of encoded item stacks stored as shared blobs, or -1 to store everything inline.
+     * @param maxChain             The maximum number of deltas after a keyframe, or 0 to store every backup as a keyframe.
+     * @param deltaCacheSize       The maximum number of players whose newest backup is kept in memory for encoding deltas.
+     * @param metrics              The metrics to record insert, load and remove times in.
+     * @param idGenerator          Generates the ids of new backups, with a server id if the store is shared.
+     */
+    public BackupRepository(BackupStore store, int deduplicationMinSize, int maxChain, int deltaCacheSize, BackupMetrics metrics, BackupIdGenerator idGenerator) {
+        this.store = store;
+        this.idGenerator = idGenerator;
+        this.metrics = metrics;
+        this.blobStore = store.getBlobStore();
+        this.deduplicationMinSize = deduplicationMinSize;
+        this.maxChain = Math.max(0, maxChain);
+        this.deltaEncoder = this.maxChain > 0 ? new DeltaEncoder(index, this::getById, this.maxChain, deltaCacheSize) : null;
+    }
+
+    /**
+     * Builds the in-memory index from the metadata of every stored backup.
+     */
+    public void loadIndex() {
+        index.clear();
+        store.forEachMetadata(backupMetadata -> {
+            index.add(backupMetadata);
+            idGenerator.observe(backupMetadata.getIdField());
+        });
+
+        LOGGER.info("Indexed " + index.size() + " backup inventories of " + index.getPlayers().size() + " players.");
+    }
+
+    /**
+     * Replaces the indexed backups of a player with the ones in the store.
+     * Keeps the index current when other servers write to a shared store, e.g. when the player joins this server.
+     * Rows of the player the store cached are dropped as well.
+     *
+     * @param playerId The UUID of the player.
+     * @return The number of backups the player has.
+     */
+    public int refresh(UUID playerId) {
+        synchronized (lock) {
+            store.invalidate(playerId);
+            List<BackupMetadata> stored = store.findByPlayer(playerId, Long.MIN_VALUE, Long.MAX_VALUE);
+            index.removeAll(playerId);
+            for (BackupMetadata backupMetadata : stored) {
+                index.add(backupMetadata);
+                idGenerator.observe(backupMetadata.getIdField());
+            }
+            return stored.size();
+        }
+    }
+
+    /**
+     * Inserts backup inventories with one bulk insert and commits them.
+     * If the insert fails, blob references of the backups that didn't make it are released again, or dropped if the
+     * database rolled them back with the transaction, so a retry stores them anew.
+     *
+     * @param backupInventories The backup inventories to insert.
+     */
+    public void insert(List<BackupInventory> backupInventories) {
+        if (backupInventories.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        synchronized (lock) {
+            // Assign ids, encode against the previous backups and move large item stacks to shared blobs
+            for (BackupInventory backupInventory : backupInventories) {
+                if (backupInventory.getIdField() == null) {
+                    backupInventory.setIdField(idGenerator.next());
+                }
+                if (deltaEncoder != null) {
+                    deltaEncoder.prepare(backupInventory);
+                }
+
+                // Encode now to time it, the encoded item stacks are kept for the insert
+                long encodeStart = System.nanoTime();
+                backupInventory.encodeItemStacks();
+                metrics.record(BackupMetrics.Timer.ENCODE, encodeStart);
+
+                storeBlobs(backupInventory);
+            }
+
+            try {
+                store.insert(backupInventories);
+            } catch (RuntimeException e) {
+                // End the transaction first, a remote database aborted it and fails every further write until it ends
+                boolean committed = true;
+                try {
+                    store.commit();
+                } catch (RuntimeException commitException) {
+                    e.addSuppressed(commitException);
+                    committed = false;
+                }
+
+                // Release the blobs of backups that weren't inserted, or only forget them if they were rolled back
+                for (BackupInventory backupInventory : backupInventories) {
+                    try {
+                        if (!committed) {
+                            backupInventory.setRefs(new String[3]);
+                        } else if (!contains(backupInventory.getIdField())) {
+                            releaseBlobs(backupInventory);
+                        }
+                    } catch (RuntimeException releaseException) {
+                        e.addSuppressed(releaseException);
+                    }
+                }
+
+                if (committed) {
+                    try {
+                        store.commit();
+                    } catch (RuntimeException commitException) {
+                        e.addSuppressed(commitException);
+                    }
+                }
+                throw e;
+            }
+            store.commit();
+
+            for (BackupInventory backupInventory : backupInventories) {
+                indexInserted(backupInventory);
+            }
+        }
+
+        metrics.record(BackupMetrics.Timer.INSERT, start);
+        metrics.increment(BackupMetrics.Counter.BACKUPS_WRITTEN, backupInventories.size());
+    }
+
+    /**
+     * Stores the encoded item stacks of a backup inventory as shared blobs if they are large enough.
+     *
+     * @param backupInventory The backup inventory.
+     */
+    private void storeBlobs(BackupInventory backupInventory) {
+        if (deduplicationMinSize < 0) {
+            return;
+        }
+
+        byte[][] encoded = backupInventory.encodeItemStacks();
+        String[] refs = backupInventory.getRefs();
+        for (int i = 0; i < encoded.length; i++) {
+            if (refs[i] == null && encoded[i] != null && encoded[i].length >= deduplicationMinSize) {
+                refs[i] = blobStore.put(encoded[i]);
+            }
+        }
+        backupInventory.setRefs(refs);
+    }
+
+    /**
+     * Releases the shared blobs of a backup inventory that was not inserted and clears its references.
+     *
+     * @param backupInventory The backup inventory.
+     */
+    private void releaseBlobs(BackupInventory backupInventory) {
+        try {
+            for (String ref : backupInventory.getRefs()) {
+                if (ref != null) {
+                    blobStore.release(ref);
+                }
+            }
+        } finally {
+            // Store the blobs again if the backup is retried, even if they couldn't be released
+            backupInventory.setRefs(new String[3]);
+        }
+    }
+
+    /**
+     * Checks whether a backup inventory is stored, without reading it.
+     *
+     * @param id The id of the backup inventory.
+     * @return True if the backup inventory exists.
+     */
+    public boolean contains(NitriteId id) {
+        return store.contains(id);
+    }
+
+    /**
+     * Adds a backup inventory that was written outside of {@link #insert(List)} to the index.
+     *
+     * @param backupInventory The backup inventory.
+     */
+    public void indexInserted(BackupInventory backupInventory) {
+        index.add(BackupMetadata.of(backupInventory));
+        if (deltaEncoder != null) {
+            deltaEncoder.inserted(backupInventory);
+        }
+    }
+
+    /**
+     * Commits pending changes.
+     */
+    public void commit() {
+        store.commit();
+    }
+
+    /**
+     * Gets a backup inventory by its id.
+     *
+     * @param id The id of the backup inventory.
+     * @return The backup inventory, or null if it doesn't exist.
+     */
+    public BackupInventory getById(NitriteId id) {
+        long start = System.nanoTime();
+        BackupInventory backupInventory = withLoaders(store.getById(id));
+        metrics.record(BackupMetrics.Timer.LOAD, start);
+        return backupInventory;
+    }
+
+    /**
+     * Gets the newest backup inventory of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The newest backup inventory, or null if the player has no backups.
+     */
+    public BackupInventory getLatest(UUID playerId) {
+        BackupMetadata latest = index.getLatest(playerId);
+        return latest == null ? null : getById(latest.getIdField());
+    }
+
+    /**
+     * Gets the metadata of all backups of a player, from newest to oldest.
+     *
+     * @param playerId The UUID of the player.
+     * @return The metadata of the player's backups.
+     */
+    public List<BackupMetadata> getBackups(UUID playerId) {
+        return index.getBackups(playerId);
+    }
+
+    /**
+     * Gets a page of the backup inventory metadata of a player, from newest to oldest.
+     *
+     * @param playerId The UUID of the player.
+     * @param offset   The number of newer backups to skip.
+     * @param limit    The maximum number of backups to return.
+     * @return The metadata of the backups on the page.
+     */
+    public List<BackupMetadata> getBackups(UUID playerId, int offset, int limit) {
+        return index.getBackups(playerId, offset, limit);
+    }
+
+    /**
+     * Gets the number of backup inventories of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The number of backups.
+     */
+    public int count(UUID playerId) {
+        return index.count(playerId);
+    }
+
+    /**
+     * Removes a backup inventory.
+     *
+     * @param id The id of the backup inventory.
+     * @return True if the backup inventory was removed.
+     */
+    public boolean remove(NitriteId id) {
+        return remove(Collections.singleton(id)) > 0;
+    }
+
+    /**
+     * Removes backup inventories by id and commits. The item stacks of the backups are never decoded.
+     *
+     * @param ids The ids of the backup inventories.
+     * @return The number of removed backup inventories.
+     */
+    public int remove(Collection<NitriteId> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        synchronized (lock) {
+            materializeDependents(ids);
+
+            // Collect blob references before the backups are gone
+            List<String> refs = new ArrayList<>();
+            for (NitriteId id : ids) {
+                refs.addAll(getRefs(store.getById(id)));
+            }
+
+            int removed = store.delete(ids);
+            release(refs);
+            store.commit();
+
+            for (NitriteId id : ids) {
+                index.remove(id);
+            }
+
+            metrics.record(BackupMetrics.Timer.REMOVE, start);
+            metrics.increment(BackupMetrics.Counter.BACKUPS_REMOVED, removed);
+            return removed;
+        }
+    }
+
+    /**
+     * Removes all backup inventories of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The number of removed backup inventories.
+     */
+    public int removeAll(UUID playerId) {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            // Collect blob references before the backups are gone, chains never span players
+            List<String> refs = new ArrayList<>();
+            for (BackupMetadata backupMetadata : store.findByPlayer(playerId, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                refs.addAll(getRefs(store.getById(backupMetadata.getIdField())));
+            }
+
+            int removed = store.deleteAll(playerId);
+            release(refs);
+            store.commit();
+            index.removeAll(playerId);
+
+            metrics.record(BackupMetrics.Timer.REMOVE, start);
+            metrics.increment(BackupMetrics.Counter.BACKUPS_REMOVED, removed);
+            return removed;
+        }
+    }
+
+    /**
+     * Rewrites the deltas based on backups that are about to be removed as keyframes.
+     * Must be called before any of the backups is removed, while every chain can still be decoded.
+     *
+     * @param ids The ids of the backups that are about to be removed.
+     */
+    private void materializeDependents(Collection<NitriteId> ids) {
+        Set<NitriteId> removing = new HashSet<>(ids);
+        for (NitriteId id : ids) {
+            for (BackupMetadata dependent : index.getDependents(id)) {
+                if (removing.contains(dependent.getIdField())) {
+                    continue;
+                }
+
+                try {
+                    materialize(dependent.getIdField());
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to rewrite backup inventory " + dependent.getIdField() + " as a keyframe.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites a delta as a keyframe holding every slot. Deltas based on it stay valid, as its contents don't change.
+     *
+     * @param id The id of the delta.
+     */
+    private void materialize(NitriteId id) {
+        BackupInventory backupInventory = getById(id);
+        if (backupInventory == null || backupInventory.getBaseId() == null) {
+            return;
+        }
+
+        // Decode through the chain and encode every slot again
+        List<String> refs = getRefs(backupInventory);
+        backupInventory.setBase(null);
+        storeBlobs(backupInventory);
+        store.update(backupInventory);
+        release(refs);
+
+        // Replace the metadata, the old entry still points at the base
+        index.remove(id);
+        index.add(BackupMetadata.of(backupInventory));
+    }
+
+    /**
+     * Rewrites every delta chain longer than the maximum chain length into new keyframes,
+     * e.g. after the maximum was lowered or deltas were disabled. Holds the lock for one player at a time.
+     *
+     * @return The number of backups rewritten as keyframes.
+     */
+    public int compactChains() {
+        int rewritten = 0;
+
+        for (UUID playerId : index.getPlayers()) {
+            synchronized (lock) {
+                // Walk from oldest to newest, so every rewrite shortens the chains after it
+                List<BackupMetadata> backups = index.getBackups(playerId);
+                Collections.reverse(backups);
+                for (BackupMetadata backupMetadata : backups) {
+                    if (backupMetadata.getBaseId() == null || index.getDepth(backupMetadata.getIdField()) <= maxChain) {
+                        continue;
+                    }
+
+                    try {
+                        materialize(backupMetadata.getIdField());
+                        rewritten++;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to rewrite backup inventory " + backupMetadata.getIdField() + " as a keyframe.", e);
+                    }
+                }
+                store.commit();
+            }
+        }
+
+        return rewritten;
+    }
+
+    /**
+     * Rewrites a stored backup in the current storage format: legacy Base64 JSON values become binary,
+     * and large inline item stacks move to shared blobs if deduplication is enabled.
+     * The item stacks are never decoded.
+     *
+     * @param id The id of the backup inventory.
+     * @return True if the backup was rewritten.
+     */
+    public boolean migrate(NitriteId id) {
+        synchronized (lock) {
+            BackupInventory backupInventory = store.getById(id);
+            if (backupInventory == null || !backupInventory.isMigrationNeeded(deduplicationMinSize)) {
+                return false;
+            }
+
+            storeBlobs(backupInventory);
+            store.update(backupInventory);
+            return true;
+        }
+    }
+
+    /**
+     * Recounts the blob references of all stored backups and deletes blobs nothing references.
+     * The backups are scanned without holding up writes. Only reconciling the scan with the backups inserted or
+     * removed meanwhile and updating the blobs blocks writes. Must not run concurrently with migrations or chain
+     * rewrites, which change the references of stored backups.
+     *
+     * @return The number of deleted blobs.
+     */
+    public int collectGarbage() {
+        // Collect the references of every backup, sharing the hash strings between backups
+        Map<NitriteId, List<String>> scanned = new HashMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        store.forEach(backupInventory -> {
+            List<String> refs = getRefs(backupInventory);
+            if (refs.isEmpty()) {
+                refs = Collections.emptyList();
+            } else {
+                refs.replaceAll(ref -> hashes.computeIfAbsent(ref, key -> key));
+            }
+            scanned.put(backupInventory.getIdField(), refs);
+        });
+        hashes.clear();
+
+        synchronized (lock) {
+            // Count the references of the backups stored now, loading those inserted during the scan
+            Map<String, Integer> references = new HashMap<>();
+            for (UUID playerId : index.getPlayers()) {
+                for (BackupMetadata backupMetadata : index.getBackups(playerId)) {
+                    List<String> refs = scanned.get(backupMetadata.getIdField());
+                    if (refs == null) {
+                        refs = getRefs(store.getById(backupMetadata.getIdField()));
+                    }
+                    for (String ref : refs) {
+                        references.merge(ref, 1, Integer::sum);
+                    }
+                }
+            }
+
+            int deleted = blobStore.collectGarbage(references);
+            store.commit();
+            return deleted;
+        }
+    }
+
+    /**
+     * Reclaims the space of deleted backups, one bounded step at a time. Writes wait while a step runs.
+     *
+     * @param maxBytes Roughly how many bytes to rewrite or release in this step.
+     * @param full     True to rewrite all live data in this step, for backends whose steps only release free pages.
+     * @return True if there is more space to reclaim.
+     */
+    public boolean compact(long maxBytes, boolean full) {
+        synchronized (lock) {
+            return store.compact(maxBytes, full);
+        }
+    }
+
+    /**
+     * Releases blob references, logging instead of failing so a removal is never undone by bookkeeping.
+     *
+     * @param refs The content hashes to release.
+     */
+    private void release(List<String> refs) {
+        for (String ref : refs) {
+            try {
+                blobStore.release(ref);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to release blob " + ref + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the content hashes of the shared blobs a stored backup references.
+     *
+     * @param backupInventory The backup inventory, may be null.
+     * @return The content hashes.
+     */
+    private static List<String> getRefs(BackupInventory backupInventory) {
+        List<String> refs = new ArrayList<>();
+        if (backupInventory != null) {
+            for (String ref : backupInventory.getRefs()) {
+                if (ref != null) {
+                    refs.add(ref);
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Sets the blob and base loaders of a backup inventory read from the repository.
+     *
+     * @param backupInventory The backup inventory, may be null.
+     * @return The same backup inventory.
+     */
+    private BackupInventory withLoaders(BackupInventory backupInventory) {
+        if (backupInventory != null) {
+            backupInventory.setBlobLoader(blobStore::get);
+            backupInventory.setBaseLoader(this::getById);
+        }
+        return backupInventory;
+    }
+
+    /**
+     * Gets the shared blob store.
+     *
+     * @return The blob store.
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Gets the in-memory index of the stored backups.
+     *
+     * @return The index.
+     */
+    public BackupIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the store holding the backups.
+     *
+     * @return The backup store.
+     */
+    public BackupStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,282 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps backups that could not be written to the database in a local file, and writes them to the repository
+ * once the database is reachable again, so an outage of a shared database or a full writer queue doesn't lose backups.
+ * The spool file holds length-prefixed records in the format of the {@link BackupArchive}, appended as backups fail.
+ * Replaying first moves the spool aside, so backups failing during a replay are spooled again for the next one.
+ * A backup that fails on its own while the database is reachable is moved to a quarantine file instead, so it
+ * can't hold up the backups spooled after it.
+ */
+public class BackupSpool {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(BackupSpool.class.getName());
+
+    // Upper bound of a record, so a corrupt length fails instead of allocating gigabytes
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    // Selects every record
+    private static final BackupArchive.Filter ALL = new BackupArchive.Filter(null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final File file;
+    private final File replayFile;
+    private final File quarantineFile;
+    private final int batchSize;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+
+    /**
+     * Creates a new BackupSpool.
+     *
+     * @param file      The spool file, created on the first failed backup.
+     * @param batchSize The maximum number of backups inserted in one batch when replaying.
+     */
+    public BackupSpool(File file, int batchSize) {
+        this.file = file;
+        this.replayFile = new File(file.getPath() + ".replay");
+        this.quarantineFile = new File(file.getPath() + ".quarantine");
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Checks whether there are spooled backups.
+     *
+     * @return True if nothing is spooled.
+     */
+    public synchronized boolean isEmpty() {
+        return file.length() == 0 && !replayFile.exists();
+    }
+
+    /**
+     * Appends a backup to the spool and syncs it to disk. The backup is encoded as a keyframe with its item stacks
+     * inline, so the record doesn't depend on anything stored in the database.
+     *
+     * @param backupInventory The backup.
+     * @throws IOException If the spool can't be written.
+     */
+    public void append(BackupInventory backupInventory) throws IOException {
+        // Encode outside the lock
+        backupInventory.setBase(null);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        BackupArchive.writeRecord(new DataOutputStream(record), backupInventory, backupInventory.encodeItemStacks());
+
+        appendRecords(file, Collections.singletonList(record.toByteArray()));
+    }
+
+    /**
+     * Writes the spooled backups to the repository in batches. Backups left by an interrupted replay are skipped
+     * if they are already stored. If a batch fails, its backups are written one by one, and a backup that fails
+     * while the database is reachable is moved to the quarantine file.
+     * If the database is still unreachable, the remaining backups stay spooled for the next replay.
+     * Meant to run off the main thread.
+     *
+     * @param repository The repository to write to.
+     * @return The number of written backups, or -1 if a replay was already running.
+     * @throws IOException If the spool can't be read or written.
+     */
+    public int replay(BackupRepository repository) throws IOException {
+        if (!replaying.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        try {
+            // Move the spool aside, unless an interrupted replay left one behind
+            boolean interrupted = replayFile.exists();
+            synchronized (this) {
+                if (!interrupted) {
+                    if (file.length() == 0) {
+                        return 0;
+                    }
+                    Files.move(file.toPath(), replayFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+
+            List<byte[]> records = readRecords(replayFile);
+            int written = 0;
+            int skipped = 0;
+            List<byte[]> failed = new ArrayList<>();
+            List<byte[]> quarantined = new ArrayList<>();
+            for (int i = 0; i < records.size(); i += batchSize) {
+                List<byte[]> batch = records.subList(i, Math.min(i + batchSize, records.size()));
+                List<byte[]> batchRecords = new ArrayList<>(batch.size());
+                List<BackupInventory> backupInventories = new ArrayList<>(batch.size());
+                try {
+                    // Skip backups the interrupted replay already wrote
+                    for (byte[] record : batch) {
+                        BackupInventory backupInventory = readRecord(record);
+                        if (backupInventory == null) {
+                            continue;
+                        }
+                        if (interrupted && isStored(repository, backupInventory)) {
+                            skipped++;
+                        } else {
+                            batchRecords.add(record);
+                            backupInventories.add(backupInventory);
+                        }
+                    }
+                } catch (Exception e) {
+                    // The database is still unreachable, keep this batch and everything after it
+                    failed.addAll(records.subList(i, records.size()));
+                    LOGGER.log(Level.WARNING, "Failed to write spooled backup inventories, keeping " + failed.size() + " for the next attempt.", e);
+                    break;
+                }
+
+                try {
+                    repository.insert(backupInventories);
+                    written += backupInventories.size();
+                    continue;
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to write " + backupInventories.size() + " spooled backup inventories, retrying one by one.", e);
+                }
+
+                // Write the backups of the failed batch one by one
+                for (int j = 0; j < backupInventories.size() && failed.isEmpty(); j++) {
+                    BackupInventory backupInventory = backupInventories.get(j);
+                    try {
+                        // A failed batch may have left some of its backups stored
+                        if (isStored(repository, backupInventory)) {
+                            skipped++;
+                            continue;
+                        }
+                    } catch (Exception e) {
+                        // The database is still unreachable, keep this backup and everything after it
+                        failed.addAll(batchRecords.subList(j, batchRecords.size()));
+                        failed.addAll(records.subList(i + batch.size(), records.size()));
+                        LOGGER.log(Level.WARNING, "Failed to write spooled backup inventories, keeping " + failed.size() + " for the next attempt.", e);
+                        break;
+                    }
+
+                    try {
+                        repository.insert(Collections.singletonList(backupInventory));
+                        written++;
+                    } catch (Exception e) {
+                        // The database answered the lookup, so the backup itself fails
+                        LOGGER.log(Level.SEVERE, "Failed to write spooled backup inventory for player " + backupInventory.getPlayerId()
+                                + " taken at " + backupInventory.getTimestamp() + ", moving it to " + quarantineFile.getName() + ".", e);
+                        quarantined.add(batchRecords.get(j));
+                    }
+                }
+                if (!failed.isEmpty()) {
+                    break;
+                }
+            }
+
+            // Keep backups that fail on their own out of the way of later replays
+            appendRecords(quarantineFile, quarantined);
+
+            // Spool the failed backups again, then drop the replayed spool
+            appendRecords(file, failed);
+            Files.delete(replayFile.toPath());
+
+            if (written > 0 || skipped > 0) {
+                LOGGER.info("Wrote " + written + " spooled backup inventories" + (skipped > 0 ? ", skipped " + skipped + " already stored." : "."));
+            }
+            return written;
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    /**
+     * Appends records to a spool file and syncs them to disk.
+     *
+     * @param spoolFile The spool file.
+     * @param records   The records, without the length prefix.
+     * @throws IOException If the spool can't be written.
+     */
+    private synchronized void appendRecords(File spoolFile, List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(spoolFile, true)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for (byte[] record : records) {
+                data.writeInt(record.length);
+                data.write(record);
+            }
+            data.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads all records of a spool file. A truncated last record, left by a crash while appending, is dropped.
+     *
+     * @param spoolFile The spool file.
+     * @return The records, without the length prefix.
+     * @throws IOException If the spool can't be read.
+     */
+    private List<byte[]> readRecords(File spoolFile) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spoolFile.toPath())))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    LOGGER.warning(spoolFile.getName() + " is corrupt after " + records.size() + " records, dropping the rest.");
+                    return records;
+                }
+
+                byte[] record = new byte[length];
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    LOGGER.warning(spoolFile.getName() + " ends with a truncated record, dropping it.");
+                    return records;
+                }
+                records.add(record);
+            }
+        }
+    }
+
+    /**
+     * Reads a backup from a record, logging and dropping it if it is corrupt.
+     *
+     * @param record The record.
+     * @return The backup, or null if the record is corrupt.
+     */
+    private static BackupInventory readRecord(byte[] record) {
+        try {
+            return BackupArchive.readRecord(record, ALL);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Dropping corrupt spooled backup inventory.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the player already has a stored backup with the same timestamp.
+     * Also used by the {@link BackupJournal}.
+     *
+     * @param repository      The repository.
+     * @param backupInventory The backup.
+     * @return True if a backup with the same timestamp is stored.
+     */
+    static boolean isStored(BackupRepository repository, BackupInventory backupInventory) {
+        return !repository.getStore().findByPlayer(backupInventory.getPlayerId(), backupInventory.getTimestamp(), backupInventory.getTimestamp()).isEmpty();
+    }
+}
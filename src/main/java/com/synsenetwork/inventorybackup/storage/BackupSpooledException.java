@@ -0,0 +1,17 @@
+package com.synsenetwork.inventorybackup.storage;
+
+/**
+ * Thrown when a backup could not be written to the database but was kept in the {@link BackupSpool},
+ * so it is not lost and is written once the database is reachable again.
+ */
+public class BackupSpooledException extends StorageException {
+    /**
+     * Creates a new BackupSpooledException.
+     *
+     * @param message The message.
+     * @param cause   The cause.
+     */
+    public BackupSpooledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,143 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import org.dizitart.no2.NitriteId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Persists backup inventories. Implementations only store and load; the {@link BackupRepository}
+ * on top takes care of the index, delta chains and blob reference counting.
+ * <p>
+ * Writes become durable on {@link #commit()}. Ids are assigned before insert, by the {@link BackupIdGenerator}
+ * of the {@link BackupRepository}, and stores persist them unchanged.
+ */
+public interface BackupStore {
+    /**
+     * Inserts backup inventories under the ids they already have. Either all of them are inserted or the call fails,
+     * although a failed call may leave some of them inserted until the next commit.
+     *
+     * @param backupInventories The backup inventories to insert, with their ids set.
+     */
+    void insert(List<BackupInventory> backupInventories);
+
+    /**
+     * Checks whether a backup inventory is stored, without reading it.
+     *
+     * @param id The id of the backup inventory.
+     * @return True if the backup inventory exists.
+     */
+    boolean contains(NitriteId id);
+
+    /**
+     * Gets a backup inventory by its id. The item stacks are only decoded when first accessed.
+     *
+     * @param id The id of the backup inventory.
+     * @return The backup inventory, or null if it doesn't exist.
+     */
+    BackupInventory getById(NitriteId id);
+
+    /**
+     * Finds the backups of a player within a time range, from newest to oldest.
+     *
+     * @param playerId The UUID of the player.
+     * @param from     The earliest timestamp, inclusive.
+     * @param to       The latest timestamp, inclusive.
+     * @return The metadata of the backups.
+     */
+    List<BackupMetadata> findByPlayer(UUID playerId, long from, long to);
+
+    /**
+     * Streams the metadata of every stored backup.
+     *
+     * @param consumer Receives the metadata of every backup.
+     */
+    void forEachMetadata(Consumer<BackupMetadata> consumer);
+
+    /**
+     * Streams every stored backup. The item stacks are only decoded when accessed.
+     *
+     * @param consumer Receives every backup inventory.
+     */
+    void forEach(Consumer<BackupInventory> consumer);
+
+    /**
+     * Overwrites a stored backup inventory.
+     *
+     * @param backupInventory The backup inventory, with its id set.
+     */
+    void update(BackupInventory backupInventory);
+
+    /**
+     * Deletes backup inventories by id.
+     *
+     * @param ids The ids of the backup inventories.
+     * @return The number of deleted backup inventories.
+     */
+    int delete(Collection<NitriteId> ids);
+
+    /**
+     * Deletes all backup inventories of a player.
+     *
+     * @param playerId The UUID of the player.
+     * @return The number of deleted backup inventories.
+     */
+    int deleteAll(UUID playerId);
+
+    /**
+     * Gets the store for shared item stack blobs, written in the same transactions as the backups.
+     *
+     * @return The blob store.
+     */
+    BlobStore getBlobStore();
+
+    /**
+     * Gets the size of the database on disk.
+     *
+     * @return The size in bytes, or -1 if it isn't known.
+     */
+    long getSize();
+
+    /**
+     * Reclaims the space left behind by deleted backups, doing a bounded amount of work per call
+     * so the caller can pause between steps.
+     *
+     * @param maxBytes Roughly how many bytes to rewrite or release in this step.
+     * @param full     True to rewrite all live data in this step, for backends whose steps only release free pages.
+     * @return True if there is more space to reclaim.
+     */
+    boolean compact(long maxBytes, boolean full);
+
+    /**
+     * Checks whether other servers write to the same database, so the index of a player has to be refreshed
+     * from the store before it can be trusted.
+     *
+     * @return True if the database is shared between servers.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Drops anything cached about the backups of a player, so the next reads see the changes other servers
+     * sharing the database made.
+     *
+     * @param playerId The UUID of the player.
+     */
+    default void invalidate(UUID playerId) {
+    }
+
+    /**
+     * Commits pending changes.
+     */
+    void commit();
+
+    /**
+     * Commits pending changes and closes the store.
+     */
+    void close();
+}
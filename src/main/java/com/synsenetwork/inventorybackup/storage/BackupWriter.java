@@ -0,0 +1,463 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import org.dizitart.no2.NitriteId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes backup inventories to the repository on a single background thread.
+ * Snapshots are taken by the caller and only serialization and persistence happen off the main thread.
+ * Backups arriving close together are grouped into a single bulk insert and a single commit.
+ * The writer accepts backups before it is started, holding them until the repository is open.
+ * Callers are never blocked and never write themselves. Backups that can't be queued or written are kept in the spool,
+ * if there is one, until the spool is replayed. Backups the caller couldn't queue are handed to a spool thread, so
+ * the caller never waits for the disk either.
+ */
+public class BackupWriter {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(BackupWriter.class.getName());
+
+    // How long the writer thread waits for new backups before checking if it should stop
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final BackupMetrics metrics;
+    private final BackupSpool spool;
+    private final BlockingQueue<PendingBackup> queue;
+    private final List<PendingBackup> backlog = new ArrayList<>();
+    private final int batchSize;
+    private final long batchWindowNanos;
+    private final Thread thread;
+    private volatile BackupRepository repository;
+    private volatile boolean running;
+    private volatile boolean stopped;
+
+    // Backups that couldn't be queued, appended to the spool on the spool thread, which starts on the first one
+    private final BlockingQueue<Runnable> overflow;
+    private Thread spoolThread;
+    private volatile boolean spooling = true;
+
+    /**
+     * Creates a new BackupWriter.
+     *
+     * @param queueSize         The maximum number of backup inventories waiting to be written.
+     * @param batchSize         The maximum number of backup inventories written in one batch.
+     * @param batchWindowMillis How long the writer waits for more backups before writing a batch.
+     * @param metrics           The metrics to count failed writes in.
+     * @param spool             The spool to keep backups that failed to be written in, may be null.
+     */
+    public BackupWriter(int queueSize, int batchSize, long batchWindowMillis, BackupMetrics metrics, BackupSpool spool) {
+        this.metrics = metrics;
+        this.spool = spool;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.overflow = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchWindowMillis));
+        this.thread = new Thread(this::run, "InventoryBackup-Writer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts the writer thread, which first writes the backups queued so far.
+     *
+     * @param repository The repository to write backup inventories to.
+     */
+    public void start(BackupRepository repository) {
+        synchronized (backlog) {
+            if (stopped) {
+                return;
+            }
+
+            this.repository = repository;
+            running = true;
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a backup inventory to be written to the repository, without blocking the caller.
+     * If the queue is full or the writer was shut down, the backup is handed to the spool thread instead, so the
+     * caller never waits for the database or the disk. Until the writer is started, backups are only queued.
+     *
+     * @param backupInventory The backup inventory to write.
+     * @return A future completed with the assigned id once the backup inventory has been committed,
+     * or completed exceptionally with a {@link BackupSpooledException} if it was spooled.
+     */
+    public CompletableFuture<NitriteId> submit(BackupInventory backupInventory) {
+        PendingBackup pendingBackup = new PendingBackup(backupInventory);
+
+        // Spool if the writer was shut down (e.g. while the plugin is disabling), it is written on the next start
+        if (stopped) {
+            spoolLater(pendingBackup, new StorageException("The backup writer was shut down.", null),
+                    "The backup writer was shut down, the backup was spooled and is written on the next start.");
+            return pendingBackup.future;
+        }
+
+        // Hold the backup until the repository is open, there is no one to write it yet
+        if (!running) {
+            synchronized (backlog) {
+                if (!running && !stopped) {
+                    if (!queue.offer(pendingBackup)) {
+                        backlog.add(pendingBackup);
+                    }
+                    return pendingBackup.future;
+                }
+            }
+            return submit(backupInventory);
+        }
+
+        if (queue.offer(pendingBackup)) {
+            return pendingBackup.future;
+        }
+
+        // Spool on backpressure, the database is behind and the caller must not wait for it
+        spoolLater(pendingBackup, new StorageException("The backup queue is full (" + queue.size() + " pending).", null),
+                "The backup queue is full, the backup was spooled and is written later.");
+        return pendingBackup.future;
+    }
+
+    /**
+     * Hands a backup inventory that couldn't be queued to the spool thread, so the caller never encodes it or
+     * waits for the spool to be synced. Once the spool thread has been shut down, the backup is spooled right away.
+     *
+     * @param pendingBackup  The pending backup inventory.
+     * @param e              The reason the backup couldn't be queued.
+     * @param spooledMessage The message of the {@link BackupSpooledException} if the backup was spooled.
+     */
+    private void spoolLater(PendingBackup pendingBackup, StorageException e, String spooledMessage) {
+        // Without a spool the backup only fails, there is no disk to wait for
+        if (spool == null) {
+            fail(pendingBackup, e, spooledMessage);
+            return;
+        }
+
+        synchronized (overflow) {
+            // The spool thread was shut down, only happens while the plugin is being disabled
+            if (!spooling) {
+                fail(pendingBackup, e, spooledMessage);
+                return;
+            }
+
+            if (spoolThread == null) {
+                spoolThread = new Thread(this::runSpool, "InventoryBackup-Spool");
+                spoolThread.setDaemon(true);
+                spoolThread.start();
+            }
+            if (overflow.offer(() -> fail(pendingBackup, e, spooledMessage))) {
+                return;
+            }
+        }
+
+        // The spool thread is behind as well, fail the backup rather than make the caller wait for the disk
+        LOGGER.severe("Failed to write backup inventory for player " + pendingBackup.backupInventory.getPlayerId() + ", the backup queue and the spool are full.");
+        metrics.increment(BackupMetrics.Counter.BACKUPS_FAILED, 1);
+        pendingBackup.future.completeExceptionally(e);
+    }
+
+    /**
+     * Queues a backup inventory to be written to the repository without ever blocking the caller.
+     * Meant for backups that can simply be taken again later, like scheduled ones.
+     *
+     * @param backupInventory The backup inventory to write.
+     * @return A future completed with the assigned id once the backup inventory has been committed,
+     * or null if the queue is full or the writer was shut down.
+     */
+    public CompletableFuture<NitriteId> trySubmit(BackupInventory backupInventory) {
+        if (stopped) {
+            return null;
+        }
+
+        PendingBackup pendingBackup = new PendingBackup(backupInventory);
+        return queue.offer(pendingBackup) ? pendingBackup.future : null;
+    }
+
+    /**
+     * Gets the number of backup inventories waiting to be written.
+     *
+     * @return The number of pending backup inventories.
+     */
+    public int getPendingCount() {
+        synchronized (backlog) {
+            return queue.size() + backlog.size();
+        }
+    }
+
+    /**
+     * Stops accepting new backups and writes all pending backup inventories.
+     * The writer thread is never interrupted, as that would close the database file under a running insert. If it
+     * doesn't finish within the timeout, the backups it hasn't taken yet are spooled without touching the database.
+     * If the writer was never started, the pending backups fail.
+     *
+     * @param timeoutMillis How long to wait for the writer thread to drain the queue.
+     * @return False if the writer thread is still writing, so the database must not be closed.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        synchronized (backlog) {
+            stopped = true;
+            running = false;
+        }
+
+        try {
+            // Wait for the writer thread to drain the queue
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean finished = !thread.isAlive();
+        List<PendingBackup> batch = new ArrayList<>(batchSize);
+        if (finished) {
+            // Write anything that is still queued
+            while (queue.drainTo(batch, batchSize) > 0) {
+                write(batch);
+                batch.clear();
+            }
+            synchronized (backlog) {
+                writeAll(backlog);
+                backlog.clear();
+            }
+        } else {
+            // Spool what the writer thread hasn't taken yet, it finishes its current batch on its own
+            LOGGER.warning("Backup writer did not finish in time, spooling the remaining backup inventories.");
+            queue.drainTo(batch);
+            StorageException cause = new StorageException("The backup writer did not finish in time.", null);
+            for (PendingBackup pendingBackup : batch) {
+                fail(pendingBackup, cause, "The backup writer did not finish in time, the backup was spooled and is written on the next start.");
+            }
+        }
+
+        // Spool the backups handed to the spool thread
+        Thread spoolThread;
+        synchronized (overflow) {
+            spooling = false;
+            spoolThread = this.spoolThread;
+        }
+        if (spoolThread != null) {
+            try {
+                spoolThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Runnable spoolTask;
+        while ((spoolTask = overflow.poll()) != null) {
+            spoolTask.run();
+        }
+
+        return finished;
+    }
+
+    /**
+     * The spool thread loop.
+     */
+    private void runSpool() {
+        while (spooling || !overflow.isEmpty()) {
+            try {
+                Runnable spoolTask = overflow.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (spoolTask != null) {
+                    spoolTask.run();
+                }
+            } catch (InterruptedException e) {
+                // shutdown() spools the rest
+                return;
+            }
+        }
+    }
+
+    /**
+     * The writer thread loop.
+     */
+    private void run() {
+        // Write the backups queued before the writer started, oldest first
+        List<PendingBackup> startup = new ArrayList<>();
+        synchronized (backlog) {
+            queue.drainTo(startup);
+            startup.addAll(backlog);
+            backlog.clear();
+        }
+        if (!startup.isEmpty()) {
+            LOGGER.info("Writing " + startup.size() + " backup inventories queued during startup.");
+            writeAll(startup);
+        }
+
+        List<PendingBackup> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                // Wait for the first backup of the batch
+                PendingBackup first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Collect more backups until the batch is full or the window has passed
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+
+                    PendingBackup next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Never interrupted by shutdown(), but write what was collected before exiting
+                write(batch);
+                return;
+            }
+
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes pending backup inventories in batches.
+     *
+     * @param pendingBackups The pending backup inventories.
+     */
+    private void writeAll(List<PendingBackup> pendingBackups) {
+        for (int i = 0; i < pendingBackups.size(); i += batchSize) {
+            write(new ArrayList<>(pendingBackups.subList(i, Math.min(i + batchSize, pendingBackups.size()))));
+        }
+    }
+
+    /**
+     * Writes a batch of pending backup inventories with one bulk insert and one commit, then completes their futures.
+     * If the bulk insert fails, the backups are retried one by one so a single bad backup doesn't fail the whole batch.
+     *
+     * @param batch The pending backup inventories.
+     */
+    private void write(List<PendingBackup> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Fail the batch if the repository never opened
+        BackupRepository repository = this.repository;
+        if (repository == null) {
+            StorageException cause = new StorageException("The database was not opened.", null);
+            for (PendingBackup pendingBackup : batch) {
+                fail(pendingBackup, cause);
+            }
+            return;
+        }
+
+        try {
+            // Insert and commit all backup inventories at once
+            List<BackupInventory> backupInventories = new ArrayList<>(batch.size());
+            for (PendingBackup pendingBackup : batch) {
+                backupInventories.add(pendingBackup.backupInventory);
+            }
+            repository.insert(backupInventories);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+
+            LOGGER.log(Level.WARNING, "Failed to write batch of " + batch.size() + " backup inventories, retrying one by one.", e);
+            retry(batch);
+            return;
+        }
+
+        for (PendingBackup pendingBackup : batch) {
+            pendingBackup.future.complete(pendingBackup.backupInventory.getIdField());
+        }
+    }
+
+    /**
+     * Writes the backup inventories of a failed batch one by one.
+     * Backups that already made it into the repository before the batch failed are not inserted again.
+     *
+     * @param batch The pending backup inventories.
+     */
+    private void retry(List<PendingBackup> batch) {
+        for (PendingBackup pendingBackup : batch) {
+            NitriteId id = pendingBackup.backupInventory.getIdField();
+            try {
+                if (repository.contains(id)) {
+                    repository.indexInserted(pendingBackup.backupInventory);
+                } else {
+                    pendingBackup.backupInventory.clearIdField();
+                    repository.insert(Collections.singletonList(pendingBackup.backupInventory));
+                }
+                pendingBackup.future.complete(pendingBackup.backupInventory.getIdField());
+            } catch (Exception e) {
+                fail(pendingBackup, e);
+            }
+        }
+
+        try {
+            repository.commit();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to commit backup inventories.", e);
+        }
+    }
+
+    /**
+     * Keeps a backup inventory that failed to be written in the spool, or logs it as lost if there is no spool
+     * or the spool can't be written, and completes its future exceptionally.
+     *
+     * @param pendingBackup The pending backup inventory.
+     * @param e             The cause of the failure.
+     */
+    private void fail(PendingBackup pendingBackup, Exception e) {
+        fail(pendingBackup, e, "The database is unavailable, the backup was spooled and is written later.");
+    }
+
+    /**
+     * Keeps a backup inventory that could not be written in the spool, or logs it as lost if there is no spool
+     * or the spool can't be written, and completes its future exceptionally.
+     *
+     * @param pendingBackup  The pending backup inventory.
+     * @param e              The cause of the failure.
+     * @param spooledMessage The message of the {@link BackupSpooledException} if the backup was spooled.
+     */
+    private void fail(PendingBackup pendingBackup, Exception e, String spooledMessage) {
+        // Spool the backup, it is written once the spool is replayed
+        if (spool != null) {
+            try {
+                spool.append(pendingBackup.backupInventory);
+                LOGGER.warning("Failed to write backup inventory for player " + pendingBackup.backupInventory.getPlayerId() + ", spooled it: " + e.getMessage());
+                metrics.increment(BackupMetrics.Counter.BACKUPS_SPOOLED, 1);
+                pendingBackup.future.completeExceptionally(new BackupSpooledException(spooledMessage, e));
+                return;
+            } catch (IOException | RuntimeException spoolException) {
+                e.addSuppressed(spoolException);
+            }
+        }
+
+        LOGGER.log(Level.SEVERE, "Failed to write backup inventory for player " + pendingBackup.backupInventory.getPlayerId() + ".", e);
+        metrics.increment(BackupMetrics.Counter.BACKUPS_FAILED, 1);
+        pendingBackup.future.completeExceptionally(e);
+    }
+
+    /**
+     * A backup inventory waiting to be written.
+     */
+    private static final class PendingBackup {
+        private final BackupInventory backupInventory;
+        private final CompletableFuture<NitriteId> future = new CompletableFuture<>();
+
+        private PendingBackup(BackupInventory backupInventory) {
+            this.backupInventory = backupInventory;
+        }
+    }
+}
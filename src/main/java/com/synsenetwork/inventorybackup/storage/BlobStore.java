@@ -0,0 +1,48 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import java.util.Map;
+
+/**
+ * Stores encoded item stacks once per distinct content, keyed by their SHA-256 hash.
+ * Every blob carries a reference count and is deleted when the last backup pointing at it is removed.
+ */
+public interface BlobStore {
+    /**
+     * Stores a blob, or adds a reference to it if the same content is already stored.
+     *
+     * @param data The content of the blob.
+     * @return The hash of the blob.
+     */
+    String put(byte[] data);
+
+    /**
+     * Gets the content of a blob.
+     *
+     * @param hash The hash of the blob.
+     * @return The content of the blob, or null if it doesn't exist.
+     */
+    byte[] get(String hash);
+
+    /**
+     * Removes a reference to a blob, deleting the blob once nothing references it anymore.
+     *
+     * @param hash The hash of the blob.
+     */
+    void release(String hash);
+
+    /**
+     * Sets the reference count of every blob to the number of references actually found in the backups,
+     * deleting blobs that are no longer referenced. Fixes counts left behind by a crash between writes.
+     *
+     * @param references The number of references per hash.
+     * @return The number of deleted blobs.
+     */
+    int collectGarbage(Map<String, Integer> references);
+
+    /**
+     * Gets the number of stored blobs.
+     *
+     * @return The number of blobs.
+     */
+    long size();
+}
@@ -0,0 +1,137 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.utils.SizeUtils;
+
+import java.time.LocalTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reclaims the space deleted backups leave in the database file.
+ * Compaction runs in bounded steps with a pause after each, so the writer thread and the disk get time in between,
+ * and automatic runs only start inside a configured window of low load. Meant to run off the main thread.
+ */
+public class CompactionTask implements Runnable {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(CompactionTask.class.getName());
+
+    private final BackupRepository repository;
+    private final long stepBytes;
+    private final long pauseMillis;
+    private final long intervalMillis;
+    private final int windowStart;
+    private final int windowEnd;
+    private final int maxPlayers;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean stopped;
+    private volatile long lastRun;
+
+    /**
+     * Creates a new CompactionTask.
+     *
+     * @param repository     The repository whose database is compacted.
+     * @param stepBytes      Roughly how many bytes are rewritten or released per step.
+     * @param pauseMillis    How long to pause between steps.
+     * @param intervalMillis The minimum time between automatic compactions.
+     * @param windowStart    The first hour of the day automatic compaction may start in.
+     * @param windowEnd      The hour of the day automatic compaction may no longer start in, may wrap past midnight.
+     * @param maxPlayers     The maximum number of online players automatic compaction starts with.
+     */
+    public CompactionTask(BackupRepository repository, long stepBytes, long pauseMillis, long intervalMillis, int windowStart, int windowEnd, int maxPlayers) {
+        this.repository = repository;
+        this.stepBytes = Math.max(1, stepBytes);
+        this.pauseMillis = Math.max(0, pauseMillis);
+        this.intervalMillis = intervalMillis;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.maxPlayers = maxPlayers;
+    }
+
+    /**
+     * Compacts the database step by step, logging the result.
+     */
+    @Override
+    public void run() {
+        try {
+            compact(false);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to compact the database.", e);
+        }
+    }
+
+    /**
+     * Checks whether an automatic compaction should start now.
+     *
+     * @param onlinePlayers The number of online players.
+     * @return True if the interval has passed, the current hour is inside the window and few enough players are online.
+     */
+    public boolean isDue(int onlinePlayers) {
+        if (running.get() || System.currentTimeMillis() - lastRun < intervalMillis || onlinePlayers > maxPlayers) {
+            return false;
+        }
+
+        int hour = LocalTime.now().getHour();
+        return windowStart <= windowEnd
+                ? hour >= windowStart && hour < windowEnd
+                : hour >= windowStart || hour < windowEnd;
+    }
+
+    /**
+     * Compacts the database step by step until nothing is left to reclaim or the task is stopped.
+     *
+     * @param full True to rewrite all live data at once. SQLite steps only release free pages,
+     *             repacking partly filled pages blocks writes until the whole database is rewritten.
+     * @return The number of bytes the database shrank by, or -1 if a compaction was already running.
+     */
+    public long compact(boolean full) {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        try {
+            lastRun = System.currentTimeMillis();
+            long before = repository.getStore().getSize();
+            int steps = 0;
+
+            // Compact one step at a time, pausing in between
+            while (!stopped) {
+                steps++;
+                if (!repository.compact(stepBytes, full)) {
+                    break;
+                }
+
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            long after = repository.getStore().getSize();
+            long reclaimed = before < 0 || after < 0 ? 0 : Math.max(0, before - after);
+            LOGGER.info("Compacted the database in " + steps + " steps from " + SizeUtils.formatBytes(before)
+                    + " to " + SizeUtils.formatBytes(after) + ", reclaimed " + SizeUtils.formatBytes(reclaimed) + ".");
+            return reclaimed;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Checks whether a compaction is running.
+     *
+     * @return True if a compaction is running.
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Stops a running compaction after its current step, e.g. when the plugin is disabled.
+     */
+    public void stop() {
+        stopped = true;
+    }
+}
@@ -0,0 +1,110 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import org.dizitart.no2.NitriteId;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the base of new backups so only the slots that changed since a player's previous backup are stored.
+ * A new keyframe is started once a delta chain reaches the maximum length, which bounds the work of a restore.
+ * The newest backup of recently backed up players is kept decoded, so encoding a delta rarely reads the database.
+ */
+public class DeltaEncoder {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(DeltaEncoder.class.getName());
+
+    private final BackupIndex index;
+    private final Function<NitriteId, BackupInventory> loader;
+    private final int maxChain;
+    private final Map<UUID, BackupInventory> heads;
+
+    /**
+     * Creates a new DeltaEncoder.
+     *
+     * @param index     The index of the stored backups.
+     * @param loader    Loads a stored backup by id.
+     * @param maxChain  The maximum number of deltas after a keyframe.
+     * @param cacheSize The maximum number of players whose newest backup is kept in memory.
+     */
+    public DeltaEncoder(BackupIndex index, Function<NitriteId, BackupInventory> loader, int maxChain, int cacheSize) {
+        this.index = index;
+        this.loader = loader;
+        this.maxChain = maxChain;
+        this.heads = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, BackupInventory> eldest) {
+                return size() > Math.max(1, cacheSize);
+            }
+        });
+    }
+
+    /**
+     * Makes a new backup a delta of the player's newest stored backup, or a keyframe if there is none
+     * or its chain is already at the maximum length.
+     *
+     * @param backupInventory The new backup inventory.
+     */
+    public void prepare(BackupInventory backupInventory) {
+        BackupInventory head;
+        try {
+            head = getHead(backupInventory.getPlayerId());
+        } catch (Exception e) {
+            // A base that can't be decoded is no base, start a new chain
+            LOGGER.log(Level.WARNING, "Failed to load newest backup of player " + backupInventory.getPlayerId() + ", writing a keyframe.", e);
+            heads.remove(backupInventory.getPlayerId());
+            head = null;
+        }
+
+        if (head == null || index.getDepth(head.getIdField()) >= maxChain) {
+            backupInventory.setBase(null);
+            return;
+        }
+
+        backupInventory.setBase(head);
+    }
+
+    /**
+     * Remembers a backup that was just inserted as the newest backup of its player.
+     *
+     * @param backupInventory The inserted backup inventory.
+     */
+    public void inserted(BackupInventory backupInventory) {
+        heads.put(backupInventory.getPlayerId(), backupInventory);
+    }
+
+    /**
+     * Gets the newest stored backup of a player, from memory if it is still the newest.
+     *
+     * @param playerId The UUID of the player.
+     * @return The newest backup, or null if the player has no backups.
+     */
+    private BackupInventory getHead(UUID playerId) {
+        BackupMetadata latest = index.getLatest(playerId);
+        if (latest == null) {
+            heads.remove(playerId);
+            return null;
+        }
+
+        // Reload if the remembered backup was removed or a newer one was written
+        BackupInventory head = heads.get(playerId);
+        if (head == null || !latest.getIdField().equals(head.getIdField())) {
+            head = loader.apply(latest.getIdField());
+            if (head == null) {
+                return null;
+            }
+
+            // Decode now, so a broken chain is noticed here instead of while encoding
+            head.getContents();
+            heads.put(playerId, head);
+        }
+        return head;
+    }
+}
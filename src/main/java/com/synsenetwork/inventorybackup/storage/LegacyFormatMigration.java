@@ -0,0 +1,88 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import org.dizitart.no2.NitriteId;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites backups stored in the legacy Base64 JSON format to the binary ItemStack array format,
+ * and moves inline item stacks to shared blobs when deduplication is enabled.
+ * Backups are read without decoding their item stacks, so backups that are already migrated cost one read.
+ */
+public class LegacyFormatMigration {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(LegacyFormatMigration.class.getName());
+
+    private final BackupRepository repository;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Creates a new LegacyFormatMigration.
+     *
+     * @param repository The repository holding the backups.
+     * @param batchSize  The number of migrated backups between commits.
+     */
+    public LegacyFormatMigration(BackupRepository repository, int batchSize) {
+        this.repository = repository;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Checks whether the migration is currently running.
+     *
+     * @return True if the migration is running.
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Migrates all legacy backups. Should be called off the main thread.
+     *
+     * @return The number of migrated backups, or -1 if the migration was already running.
+     */
+    public int run() {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+
+        int migrated = 0;
+        int failed = 0;
+        try {
+            for (UUID playerId : repository.getIndex().getPlayers()) {
+                for (BackupMetadata backupMetadata : repository.getBackups(playerId)) {
+                    NitriteId id = backupMetadata.getIdField();
+                    try {
+                        // Rewrite the item stacks if they are not in the current format
+                        if (!repository.migrate(id)) {
+                            continue;
+                        }
+                        migrated++;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to migrate backup inventory " + id + ".", e);
+                        failed++;
+                        continue;
+                    }
+
+                    // Commit and report progress every batch
+                    if (migrated % batchSize == 0) {
+                        repository.commit();
+                        LOGGER.info("Migrated " + migrated + " backup inventories...");
+                    }
+                }
+            }
+
+            repository.commit();
+        } finally {
+            running.set(false);
+        }
+
+        LOGGER.info("Migrated " + migrated + " backup inventories to the current format" + (failed > 0 ? ", " + failed + " failed." : "."));
+        return migrated;
+    }
+}
@@ -0,0 +1,16 @@
+package com.synsenetwork.inventorybackup.storage;
+
+/**
+ * Thrown when a {@link BackupStore} fails to read or write.
+ */
+public class StorageException extends RuntimeException {
+    /**
+     * Creates a new StorageException.
+     *
+     * @param message The message.
+     * @param cause   The cause.
+     */
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
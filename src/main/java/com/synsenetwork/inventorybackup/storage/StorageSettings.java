@@ -0,0 +1,140 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.utils.TimeUtils;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Locale;
+
+/**
+ * Tuning of the storage engine under a {@link BackupStore}, applied when the database is opened.
+ * Backends apply what they support and log the settings in effect.
+ */
+public class StorageSettings {
+    private final int cacheSizeMegabytes;
+    private final Compression compression;
+    private final int autoCommitBufferKilobytes;
+    private final long commitIntervalMillis;
+
+    /**
+     * Creates new StorageSettings.
+     *
+     * @param cacheSizeMegabytes        The size of the page cache in megabytes.
+     * @param compression               The compression of new pages.
+     * @param autoCommitBufferKilobytes The amount of unsaved changes in kilobytes after which they are written to disk.
+     * @param commitIntervalMillis      How often unsaved changes are written to disk, or 0 to only write them on commit.
+     */
+    public StorageSettings(int cacheSizeMegabytes, Compression compression, int autoCommitBufferKilobytes, long commitIntervalMillis) {
+        this.cacheSizeMegabytes = Math.max(1, cacheSizeMegabytes);
+        this.compression = compression;
+        this.autoCommitBufferKilobytes = Math.max(1, autoCommitBufferKilobytes);
+        this.commitIntervalMillis = Math.max(0, commitIntervalMillis);
+    }
+
+    /**
+     * Creates StorageSettings from a configuration section.
+     *
+     * @param section The configuration section, or null for the defaults.
+     * @return The storage settings.
+     * @throws IllegalArgumentException If the compression or the commit interval is not valid.
+     */
+    public static StorageSettings fromConfig(ConfigurationSection section) {
+        if (section == null) {
+            return new StorageSettings(16, Compression.LZF, 1024, 1000);
+        }
+
+        return new StorageSettings(
+                section.getInt("cache-size", 16),
+                Compression.fromName(section.getString("compression", "lzf")),
+                section.getInt("autocommit-buffer", 1024),
+                TimeUtils.parseDuration(section.getString("commit-interval", "1s")));
+    }
+
+    /**
+     * Gets the size of the page cache.
+     *
+     * @return The size of the page cache in megabytes.
+     */
+    public int getCacheSizeMegabytes() {
+        return cacheSizeMegabytes;
+    }
+
+    /**
+     * Gets the compression of new pages.
+     *
+     * @return The compression.
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets the amount of unsaved changes after which they are written to disk.
+     *
+     * @return The amount in kilobytes.
+     */
+    public int getAutoCommitBufferKilobytes() {
+        return autoCommitBufferKilobytes;
+    }
+
+    /**
+     * Gets how often unsaved changes are written to disk.
+     *
+     * @return The interval in milliseconds, or 0 to only write them on commit.
+     */
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    /**
+     * Describes these settings for logging.
+     *
+     * @return The description.
+     */
+    @Override
+    public String toString() {
+        return "cache-size=" + cacheSizeMegabytes + "MB, compression=" + compression.getName()
+                + ", autocommit-buffer=" + autoCommitBufferKilobytes + "KB, commit-interval="
+                + (commitIntervalMillis == 0 ? "on commit" : TimeUtils.formatDuration(commitIntervalMillis));
+    }
+
+    /**
+     * The compression of database pages.
+     */
+    public enum Compression {
+        // Pages are stored as they are
+        NONE("none"),
+        // Fast LZF compression
+        LZF("lzf");
+
+        private final String name;
+
+        Compression(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets a compression by its configuration name.
+         *
+         * @param name The name, e.g. lzf.
+         * @return The compression.
+         * @throws IllegalArgumentException If there is no compression with the name.
+         */
+        public static Compression fromName(String name) {
+            for (Compression compression : values()) {
+                if (compression.name.equals(name.toLowerCase(Locale.ROOT))) {
+                    return compression;
+                }
+            }
+            throw new IllegalArgumentException("Unknown compression " + name + ", use none or lzf.");
+        }
+
+        /**
+         * Gets the name of the compression, as used in the configuration.
+         *
+         * @return The name.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+}
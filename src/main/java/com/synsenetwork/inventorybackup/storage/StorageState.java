@@ -0,0 +1,31 @@
+package com.synsenetwork.inventorybackup.storage;
+
+/**
+ * The state of the storage while it opens in the background.
+ * Backups taken before the storage is ready are queued by the {@link BackupWriter}.
+ */
+public enum StorageState {
+    // The database file is being opened
+    OPENING("opening the database"),
+    // The in-memory index is being built from the stored backups
+    INDEXING("building the backup index"),
+    // Backups can be read and written
+    READY("ready"),
+    // The database could not be opened
+    FAILED("failed to open, check the console");
+
+    private final String description;
+
+    StorageState(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Gets a description of the state for players.
+     *
+     * @return The description.
+     */
+    public String getDescription() {
+        return description;
+    }
+}
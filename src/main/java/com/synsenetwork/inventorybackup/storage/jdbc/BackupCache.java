@@ -0,0 +1,124 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+import org.dizitart.no2.Document;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the newest backup rows of recently active players in memory, keyed by player UUID, so restoring a backup
+ * that was just written or read doesn't wait for a remote database. Rows are kept in their document form,
+ * every load creates a new backup inventory from it.
+ * <p>
+ * Other servers sharing the database may rewrite or delete cached rows, so rows expire after a short time and the
+ * rows of a player are dropped whenever their backups are refreshed from the database.
+ */
+class BackupCache {
+    // Number of rows kept per player, restores almost always pick one of the newest backups
+    private static final int ROWS_PER_PLAYER = 4;
+
+    // Nanoseconds a row is served from memory before it is read from the database again
+    private static final long ROW_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Map<UUID, LinkedHashMap<Long, Row>> players;
+    private final Map<Long, UUID> owners = new HashMap<>();
+
+    /**
+     * Creates a new BackupCache.
+     *
+     * @param maxPlayers The maximum number of players whose rows are kept, least recently used first out.
+     */
+    BackupCache(int maxPlayers) {
+        this.players = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, LinkedHashMap<Long, Row>> eldest) {
+                if (size() <= Math.max(1, maxPlayers)) {
+                    return false;
+                }
+                owners.keySet().removeAll(eldest.getValue().keySet());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Gets a cached row.
+     *
+     * @param id The id of the backup.
+     * @return The row, or null if it isn't cached or has expired.
+     */
+    synchronized Document get(long id) {
+        UUID playerId = owners.get(id);
+        if (playerId == null) {
+            return null;
+        }
+
+        // Drop an expired row, it may have changed in the database since
+        Row row = players.get(playerId).get(id);
+        if (System.nanoTime() - row.cachedAt > ROW_TTL_NANOS) {
+            remove(id);
+            return null;
+        }
+        return row.document;
+    }
+
+    /**
+     * Caches a row, dropping the player's oldest cached row if there are too many.
+     *
+     * @param playerId The UUID of the player.
+     * @param id       The id of the backup.
+     * @param document The row in document form, with its id.
+     */
+    synchronized void put(UUID playerId, long id, Document document) {
+        LinkedHashMap<Long, Row> rows = players.computeIfAbsent(playerId, key -> new LinkedHashMap<>());
+        rows.put(id, new Row(document, System.nanoTime()));
+        owners.put(id, playerId);
+
+        // Drop the row cached first
+        if (rows.size() > ROWS_PER_PLAYER) {
+            Long eldest = rows.keySet().iterator().next();
+            rows.remove(eldest);
+            owners.remove(eldest);
+        }
+    }
+
+    /**
+     * Drops a row, e.g. after it was updated or deleted.
+     *
+     * @param id The id of the backup.
+     */
+    synchronized void remove(long id) {
+        UUID playerId = owners.remove(id);
+        if (playerId != null) {
+            players.get(playerId).remove(id);
+        }
+    }
+
+    /**
+     * Drops every row of a player.
+     *
+     * @param playerId The UUID of the player.
+     */
+    synchronized void removePlayer(UUID playerId) {
+        LinkedHashMap<Long, Row> rows = players.remove(playerId);
+        if (rows != null) {
+            owners.keySet().removeAll(rows.keySet());
+        }
+    }
+
+    /**
+     * A cached row and when it was cached.
+     */
+    private static final class Row {
+        private final Document document;
+        private final long cachedAt;
+
+        private Row(Document document, long cachedAt) {
+            this.document = document;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,739 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.storage.BackupStore;
+import com.synsenetwork.inventorybackup.storage.BlobStore;
+import com.synsenetwork.inventorybackup.storage.StorageException;
+import com.synsenetwork.inventorybackup.storage.StorageSettings;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.NitriteId;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BackupStore} keeping backups in a SQL database over JDBC.
+ * <p>
+ * Every backup is one row with its item stacks as BLOB columns, and a composite {@code (player_id, timestamp)}
+ * index serves per-player range queries. Rows are mapped through the same document form
+ * {@link BackupInventory} uses for Nitrite. All writes go through one connection in manual commit mode.
+ * <p>
+ * On SQLite reads share that connection. On PostgreSQL, which other servers write to as well, reads take a
+ * connection from a pool so restores never wait behind the writer, the newest rows of recently active players
+ * are cached, and a lost connection is replaced on the next transaction.
+ */
+public class JdbcBackupStore implements BackupStore {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(JdbcBackupStore.class.getName());
+
+    // Names of the document fields holding item stacks, in column order
+    private static final String[] ITEM_FIELDS = {"armorContents", "extraContents", "contents"};
+
+    // Columns written for every backup, in parameter order
+    private static final String COLUMNS = "player_id, timestamp, base_id, total_experience, "
+            + "armor_contents, armor_contents_ref, extra_contents, extra_contents_ref, contents, contents_ref";
+
+    // Value of PRAGMA auto_vacuum when free pages are only released by PRAGMA incremental_vacuum
+    private static final long INCREMENTAL_VACUUM = 2;
+
+    // Number of rows fetched per round trip while streaming every backup
+    private static final int FETCH_SIZE = 1000;
+
+    // SQLSTATE class of errors where the connection to the database is gone
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+    private final SqlDialect dialect;
+    private final ConnectionFactory connectionFactory;
+    private final DataSource pool;
+    private final BackupCache cache;
+    private final JdbcBlobStore blobStore;
+
+    // Rows inserted in the current transaction, cached once it is committed
+    private final List<Document> uncommitted = new ArrayList<>();
+
+    // Connection of the current transaction, opened again after it was lost
+    private Connection connection;
+
+    // Set when a statement failed on a database that aborts the whole transaction
+    private boolean rolledBack;
+
+    /**
+     * Creates a new JdbcBackupStore and creates its tables if they don't exist.
+     * Tests use it to run the PostgreSQL dialect on an SQLite file, which accepts the same statements.
+     *
+     * @param dialect           The SQL dialect of the database.
+     * @param connectionFactory Opens the connection writes go through.
+     * @param pool              The pool reads take their connections from, or null to read on the write connection.
+     * @param cacheSize         The number of players whose newest rows are cached, or 0 to cache nothing.
+     * @throws SQLException If the database could not be reached or the tables could not be created.
+     */
+    JdbcBackupStore(SqlDialect dialect, ConnectionFactory connectionFactory, DataSource pool, int cacheSize) throws SQLException {
+        this.dialect = dialect;
+        this.connectionFactory = connectionFactory;
+        this.pool = pool;
+        this.cache = cacheSize > 0 ? new BackupCache(cacheSize) : null;
+        this.blobStore = new JdbcBlobStore(this);
+        createTables();
+    }
+
+    /**
+     * Opens a JdbcBackupStore on an SQLite database file with the given storage engine settings.
+     * SQLite doesn't compress pages and commits are issued per batch, so only the cache size and
+     * the autocommit buffer, as the size of the write-ahead log before it is checkpointed, apply.
+     *
+     * @param file     The database file.
+     * @param settings The storage engine settings.
+     * @return The backup store.
+     * @throws SQLException If the database could not be opened.
+     */
+    public static JdbcBackupStore openSqlite(File file, StorageSettings settings) throws SQLException {
+        try {
+            // The driver is bundled with the server, but not registered for the plugin class loader
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite driver is not available.", e);
+        }
+
+        JdbcBackupStore store = new JdbcBackupStore(SqlDialect.SQLITE, () -> connectSqlite(file, settings), null, 0);
+        store.write("Failed to read the storage engine settings.", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                LOGGER.info("Storage engine: cache-size=" + -queryLong(statement, "PRAGMA cache_size") / 1024 + "MB, compression=none, autocommit-buffer="
+                        + queryLong(statement, "PRAGMA wal_autocheckpoint") * queryLong(statement, "PRAGMA page_size") / 1024 + "KB, commit-interval=on commit");
+            }
+            return null;
+        });
+        return store;
+    }
+
+    /**
+     * Opens a connection to an SQLite database file and applies the storage engine settings to it.
+     *
+     * @param file     The database file.
+     * @param settings The storage engine settings.
+     * @return The connection.
+     * @throws SQLException If the database could not be opened.
+     */
+    private static Connection connectSqlite(File file, StorageSettings settings) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            // Let compaction release free pages step by step, only takes effect before the tables are created
+            statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+
+            // Let readers run alongside the writer and only sync on checkpoints
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=NORMAL");
+
+            // Negative cache sizes are in kibibytes, checkpoints are triggered by a number of pages
+            statement.execute("PRAGMA cache_size=" + -settings.getCacheSizeMegabytes() * 1024L);
+            statement.execute("PRAGMA wal_autocheckpoint=" + Math.max(1, settings.getAutoCommitBufferKilobytes() * 1024L / queryLong(statement, "PRAGMA page_size")));
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a JdbcBackupStore on a PostgreSQL database shared between servers, through a connection pool.
+     * Batched inserts are rewritten into multi-row statements, so a batch of backups takes one round trip.
+     *
+     * @param config    The pool configuration with the JDBC URL, credentials, pool size and timeouts.
+     * @param cacheSize The number of players whose newest rows are cached, or 0 to cache nothing.
+     * @return The backup store.
+     * @throws SQLException If the database could not be reached.
+     */
+    public static JdbcBackupStore openPostgres(HikariConfig config, int cacheSize) throws SQLException {
+        config.setPoolName("InventoryBackup");
+        config.setDriverClassName("org.postgresql.Driver");
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
+
+        HikariDataSource pool;
+        try {
+            pool = new HikariDataSource(config);
+        } catch (RuntimeException e) {
+            throw new SQLException("Failed to connect to " + config.getJdbcUrl() + ".", e);
+        }
+
+        try {
+            return new JdbcBackupStore(SqlDialect.POSTGRESQL, pool::getConnection, pool, cacheSize);
+        } catch (SQLException | RuntimeException e) {
+            pool.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the tables and indexes if they don't exist.
+     *
+     * @throws SQLException If the tables could not be created.
+     */
+    private void createTables() throws SQLException {
+        try {
+            write("Failed to create the tables.", connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS backups ("
+                            + "id " + dialect.getIdType() + ", "
+                            + "player_id VARCHAR(36) NOT NULL, "
+                            + "timestamp BIGINT NOT NULL, "
+                            + "base_id BIGINT, "
+                            + "total_experience INTEGER NOT NULL, "
+                            + "armor_contents " + dialect.getBlobType() + ", armor_contents_ref VARCHAR(64), "
+                            + "extra_contents " + dialect.getBlobType() + ", extra_contents_ref VARCHAR(64), "
+                            + "contents " + dialect.getBlobType() + ", contents_ref VARCHAR(64))");
+                    statement.execute("CREATE INDEX IF NOT EXISTS backups_player_timestamp ON backups (player_id, timestamp)");
+                    statement.execute("CREATE TABLE IF NOT EXISTS blobs ("
+                            + "hash VARCHAR(64) PRIMARY KEY, "
+                            + "data " + dialect.getBlobType() + " NOT NULL, "
+                            + "refs INTEGER NOT NULL)");
+                }
+                return null;
+            });
+            commit();
+        } catch (StorageException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void insert(List<BackupInventory> backupInventories) {
+        write("Failed to insert backup inventories.", connection -> {
+            // Send all rows in one batch if their ids are assigned, which the driver may pipeline
+            boolean batched = true;
+            for (BackupInventory backupInventory : backupInventories) {
+                batched &= backupInventory.getIdField() != null;
+            }
+
+            try (PreparedStatement statement = batched
+                    ? connection.prepareStatement("INSERT INTO backups (id, " + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")
+                    : connection.prepareStatement("INSERT INTO backups (id, " + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                for (BackupInventory backupInventory : backupInventories) {
+                    // Keep the id assigned by the repository, or let the database generate one
+                    if (backupInventory.getIdField() == null) {
+                        statement.setNull(1, Types.BIGINT);
+                    } else {
+                        statement.setLong(1, backupInventory.getIdField().getIdValue());
+                    }
+                    Document document = backupInventory.write(null);
+                    bind(statement, 2, document);
+
+                    if (batched) {
+                        statement.addBatch();
+                    } else {
+                        statement.executeUpdate();
+
+                        // Assign the generated id
+                        if (backupInventory.getIdField() == null) {
+                            try (ResultSet keys = statement.getGeneratedKeys()) {
+                                if (!keys.next()) {
+                                    throw new SQLException("No id was generated for backup inventory.");
+                                }
+                                backupInventory.setIdField(NitriteId.createId(keys.getLong(1)));
+                            }
+                        }
+                    }
+
+                    // Cache the row once it is committed
+                    if (cache != null) {
+                        document.put("idField", backupInventory.getIdField() == null ? null : backupInventory.getIdField().getIdValue());
+                        uncommitted.add(document);
+                    }
+                }
+
+                if (batched) {
+                    statement.executeBatch();
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean contains(NitriteId id) {
+        if (id == null) {
+            return false;
+        }
+
+        return read("Failed to look up backup inventory " + id + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM backups WHERE id = ?")) {
+                statement.setLong(1, id.getIdValue());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next();
+                }
+            }
+        });
+    }
+
+    @Override
+    public BackupInventory getById(NitriteId id) {
+        // Serve recently written or read rows from memory
+        if (cache != null) {
+            Document cached = cache.get(id.getIdValue());
+            if (cached != null) {
+                return BackupInventory.fromDocument(cached);
+            }
+        }
+
+        Document document = read("Failed to load backup inventory " + id + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT id, " + COLUMNS + " FROM backups WHERE id = ?")) {
+                statement.setLong(1, id.getIdValue());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? readDocument(resultSet) : null;
+                }
+            }
+        });
+        if (document == null) {
+            return null;
+        }
+
+        BackupInventory backupInventory = BackupInventory.fromDocument(document);
+        if (cache != null) {
+            cache.put(backupInventory.getPlayerId(), id.getIdValue(), document);
+        }
+        return backupInventory;
+    }
+
+    @Override
+    public List<BackupMetadata> findByPlayer(UUID playerId, long from, long to) {
+        return read("Failed to find backup inventories of player " + playerId + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT id, player_id, timestamp, base_id FROM backups "
+                    + "WHERE player_id = ? AND timestamp BETWEEN ? AND ? ORDER BY timestamp DESC, id DESC")) {
+                statement.setString(1, playerId.toString());
+                statement.setLong(2, from);
+                statement.setLong(3, to);
+
+                List<BackupMetadata> backups = new ArrayList<>();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        backups.add(readMetadata(resultSet));
+                    }
+                }
+                return backups;
+            }
+        });
+    }
+
+    @Override
+    public void forEachMetadata(Consumer<BackupMetadata> consumer) {
+        read("Failed to read backup inventory metadata.", connection -> {
+            try (PreparedStatement statement = prepareStream(connection, "SELECT id, player_id, timestamp, base_id FROM backups");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(readMetadata(resultSet));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void forEach(Consumer<BackupInventory> consumer) {
+        read("Failed to read backup inventories.", connection -> {
+            try (PreparedStatement statement = prepareStream(connection, "SELECT id, " + COLUMNS + " FROM backups");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(BackupInventory.fromDocument(readDocument(resultSet)));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Prepares a query over every row that streams its results instead of reading them all at once.
+     * PostgreSQL only streams inside a transaction, a pooled connection is reset when it is returned.
+     *
+     * @param connection The connection.
+     * @param sql        The query.
+     * @return The statement.
+     * @throws SQLException If the statement could not be prepared.
+     */
+    private PreparedStatement prepareStream(Connection connection, String sql) throws SQLException {
+        if (pool != null) {
+            connection.setAutoCommit(false);
+        }
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setFetchSize(FETCH_SIZE);
+        return statement;
+    }
+
+    @Override
+    public void update(BackupInventory backupInventory) {
+        if (cache != null) {
+            cache.remove(backupInventory.getIdField().getIdValue());
+        }
+
+        write("Failed to update backup inventory " + backupInventory.getIdField() + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE backups SET player_id = ?, timestamp = ?, base_id = ?, total_experience = ?, "
+                    + "armor_contents = ?, armor_contents_ref = ?, extra_contents = ?, extra_contents_ref = ?, contents = ?, contents_ref = ? WHERE id = ?")) {
+                bind(statement, 1, backupInventory.write(null));
+                statement.setLong(11, backupInventory.getIdField().getIdValue());
+                statement.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public int delete(Collection<NitriteId> ids) {
+        if (cache != null) {
+            for (NitriteId id : ids) {
+                cache.remove(id.getIdValue());
+            }
+        }
+
+        return write("Failed to delete backup inventories.", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM backups WHERE id = ?")) {
+                for (NitriteId id : ids) {
+                    statement.setLong(1, id.getIdValue());
+                    statement.addBatch();
+                }
+
+                int deleted = 0;
+                for (int count : statement.executeBatch()) {
+                    deleted += Math.max(0, count);
+                }
+                return deleted;
+            }
+        });
+    }
+
+    @Override
+    public int deleteAll(UUID playerId) {
+        if (cache != null) {
+            cache.removePlayer(playerId);
+        }
+
+        return write("Failed to delete backup inventories of player " + playerId + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM backups WHERE player_id = ?")) {
+                statement.setString(1, playerId.toString());
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    @Override
+    public long getSize() {
+        return read("Failed to get the database size.", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                return queryLong(statement, dialect.getSizeQuery());
+            }
+        });
+    }
+
+    @Override
+    public boolean compact(long maxBytes, boolean full) {
+        // Autovacuum reclaims space on the database server, a full vacuum would lock the tables for every server
+        if (dialect.isRemote()) {
+            return false;
+        }
+
+        return write("Failed to compact the database.", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                // Vacuuming is not possible inside a transaction
+                connection.commit();
+                connection.setAutoCommit(true);
+                try {
+                    // Only a full VACUUM repacks partly filled pages, and databases created without
+                    // incremental vacuum need one to switch
+                    if (full || queryLong(statement, "PRAGMA auto_vacuum") != INCREMENTAL_VACUUM) {
+                        statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+                        statement.execute("VACUUM");
+                        statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                        return false;
+                    }
+
+                    // Release up to maxBytes of free pages at the end of the file, executeUpdate steps through every page
+                    long pages = Math.max(1, maxBytes / queryLong(statement, "PRAGMA page_size"));
+                    statement.executeUpdate("PRAGMA incremental_vacuum(" + pages + ")");
+                    if (queryLong(statement, "PRAGMA freelist_count") > 0) {
+                        return true;
+                    }
+
+                    // Shrink the write-ahead log once everything is released
+                    statement.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                    return false;
+                } finally {
+                    connection.setAutoCommit(false);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isShared() {
+        return dialect.isRemote();
+    }
+
+    @Override
+    public void invalidate(UUID playerId) {
+        if (cache != null) {
+            cache.removePlayer(playerId);
+        }
+    }
+
+    /**
+     * Runs a query returning a single number.
+     *
+     * @param statement The statement to run the query with.
+     * @param sql       The query.
+     * @return The number, or -1 if the query returned no rows.
+     * @throws SQLException If the query failed.
+     */
+    private static long queryLong(Statement statement, String sql) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+            return resultSet.next() ? resultSet.getLong(1) : -1;
+        }
+    }
+
+    @Override
+    public synchronized void commit() {
+        // Nothing of the transaction is left to commit after it was aborted
+        if (rolledBack) {
+            rolledBack = false;
+            uncommitted.clear();
+            throw new StorageException("The transaction was rolled back after an earlier error.", null);
+        }
+
+        write("Failed to commit.", connection -> {
+            connection.commit();
+            return null;
+        });
+
+        // Cache the rows inserted in the transaction
+        for (Document document : uncommitted) {
+            cache.put(UUID.fromString(document.get("playerId", String.class)), document.get("idField", Long.class), document);
+        }
+        uncommitted.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (connection != null) {
+                if (!rolledBack) {
+                    connection.commit();
+                }
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Failed to close the database.", e);
+        } finally {
+            if (pool instanceof Closeable) {
+                try {
+                    ((Closeable) pool).close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close the connection pool.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs work on the connection of the current transaction, opening it first if there is none.
+     * On a remote database a failed statement aborts the transaction, so it is rolled back and every further write
+     * fails until {@link #commit()} ends it. That way nothing compensates for changes that were already rolled back.
+     *
+     * @param message The message of the exception thrown if the work fails.
+     * @param work    The work.
+     * @param <T>     The type of the result.
+     * @return The result of the work.
+     */
+    synchronized <T> T write(String message, SqlWork<T> work) {
+        if (rolledBack) {
+            throw new StorageException(message + " The transaction was rolled back after an earlier error.", null);
+        }
+
+        try {
+            return work.run(connection());
+        } catch (SQLException e) {
+            if (dialect.isRemote()) {
+                rollback(e);
+            }
+            throw new StorageException(message, e);
+        }
+    }
+
+    /**
+     * Runs a read on a pooled connection, or on the write connection if there is no pool.
+     * Pooled reads only see committed rows.
+     *
+     * @param message The message of the exception thrown if the read fails.
+     * @param work    The read.
+     * @param <T>     The type of the result.
+     * @return The result of the read.
+     */
+    <T> T read(String message, SqlWork<T> work) {
+        if (pool == null) {
+            return write(message, work);
+        }
+
+        try (Connection connection = pool.getConnection()) {
+            return work.run(connection);
+        } catch (SQLException e) {
+            throw new StorageException(message, e);
+        }
+    }
+
+    /**
+     * Gets the connection of the current transaction, opening a new one if there is none.
+     *
+     * @return The connection.
+     * @throws SQLException If no connection could be opened.
+     */
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            connection = connectionFactory.open();
+
+            // Commits are issued by the repository
+            connection.setAutoCommit(false);
+        }
+        return connection;
+    }
+
+    /**
+     * Rolls back the current transaction after a failed statement, dropping the connection if it is gone.
+     *
+     * @param cause The failure.
+     */
+    private void rollback(SQLException cause) {
+        rolledBack = true;
+        uncommitted.clear();
+        if (connection == null) {
+            return;
+        }
+
+        boolean lost = cause.getSQLState() != null && cause.getSQLState().startsWith(CONNECTION_EXCEPTION_CLASS);
+        try {
+            if (!lost) {
+                connection.rollback();
+                return;
+            }
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Failed to roll back, dropping the connection.", e);
+        }
+
+        // Drop the connection, the next transaction opens a new one
+        LOGGER.warning("Lost the connection to the database: " + cause.getMessage());
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Failed to close the lost connection.", e);
+        }
+        connection = null;
+    }
+
+    /**
+     * Binds the columns of a backup document to ten consecutive parameters of a statement.
+     *
+     * @param statement The statement.
+     * @param index     The index of the first parameter.
+     * @param document  The document written by the backup inventory.
+     * @throws SQLException If a parameter could not be set.
+     */
+    private static void bind(PreparedStatement statement, int index, Document document) throws SQLException {
+        statement.setString(index++, document.get("playerId", String.class));
+        statement.setLong(index++, document.get("timestamp", Long.class));
+        Long baseId = document.get("baseId", Long.class);
+        if (baseId == null) {
+            statement.setNull(index++, Types.BIGINT);
+        } else {
+            statement.setLong(index++, baseId);
+        }
+        statement.setInt(index++, document.get("totalExperience", Integer.class));
+
+        for (String field : ITEM_FIELDS) {
+            statement.setBytes(index++, document.get(field, byte[].class));
+            statement.setString(index++, document.get(field + "Ref", String.class));
+        }
+    }
+
+    /**
+     * Reads a backup row into the document form read by {@link BackupInventory}.
+     *
+     * @param resultSet The result set, positioned on a row selected as {@code id, COLUMNS}.
+     * @return The document.
+     * @throws SQLException If a column could not be read.
+     */
+    private static Document readDocument(ResultSet resultSet) throws SQLException {
+        Document document = new Document();
+        document.put("idField", resultSet.getLong(1));
+        document.put("playerId", resultSet.getString(2));
+        document.put("timestamp", resultSet.getLong(3));
+        long baseId = resultSet.getLong(4);
+        document.put("baseId", resultSet.wasNull() ? null : baseId);
+        document.put("totalExperience", resultSet.getInt(5));
+
+        int index = 6;
+        for (String field : ITEM_FIELDS) {
+            document.put(field, resultSet.getBytes(index++));
+            document.put(field + "Ref", resultSet.getString(index++));
+        }
+        return document;
+    }
+
+    /**
+     * Reads the metadata of a backup row.
+     *
+     * @param resultSet The result set, positioned on a row selected as {@code id, player_id, timestamp, base_id}.
+     * @return The metadata.
+     * @throws SQLException If a column could not be read.
+     */
+    private static BackupMetadata readMetadata(ResultSet resultSet) throws SQLException {
+        long baseId = resultSet.getLong(4);
+        NitriteId base = resultSet.wasNull() ? null : NitriteId.createId(baseId);
+        return new BackupMetadata(NitriteId.createId(resultSet.getLong(1)), UUID.fromString(resultSet.getString(2)), resultSet.getLong(3), base);
+    }
+
+    /**
+     * Opens a connection to the database.
+     */
+    interface ConnectionFactory {
+        /**
+         * Opens a connection.
+         *
+         * @return The connection.
+         * @throws SQLException If no connection could be opened.
+         */
+        Connection open() throws SQLException;
+    }
+
+    /**
+     * Work done on a connection.
+     *
+     * @param <T> The type of the result.
+     */
+    interface SqlWork<T> {
+        /**
+         * Runs the work.
+         *
+         * @param connection The connection.
+         * @return The result.
+         * @throws SQLException If a statement failed.
+         */
+        T run(Connection connection) throws SQLException;
+    }
+}
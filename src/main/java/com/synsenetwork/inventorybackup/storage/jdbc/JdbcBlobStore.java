@@ -0,0 +1,123 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+import com.synsenetwork.inventorybackup.storage.BlobStore;
+import com.synsenetwork.inventorybackup.utils.HashUtils;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link BlobStore} keeping blobs in a {@code blobs} table on the connection of a {@link JdbcBackupStore},
+ * so blob references are committed in the same transaction as the backups holding them.
+ */
+public class JdbcBlobStore implements BlobStore {
+    private final JdbcBackupStore store;
+
+    /**
+     * Creates a new JdbcBlobStore.
+     *
+     * @param store The backup store whose connection the blobs are written on.
+     */
+    JdbcBlobStore(JdbcBackupStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String put(byte[] data) {
+        String hash = HashUtils.sha256(data);
+
+        return store.write("Failed to store blob " + hash + ".", connection -> {
+            // Add reference to existing blob, without sending the content again
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE blobs SET refs = refs + 1 WHERE hash = ?")) {
+                statement.setString(1, hash);
+                if (statement.executeUpdate() > 0) {
+                    return hash;
+                }
+            }
+
+            // Store new blob, another server sharing the database may have stored it in the meantime
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO blobs (hash, data, refs) VALUES (?, ?, 1) "
+                    + "ON CONFLICT (hash) DO UPDATE SET refs = blobs.refs + 1")) {
+                statement.setString(1, hash);
+                statement.setBytes(2, data);
+                statement.executeUpdate();
+            }
+            return hash;
+        });
+    }
+
+    @Override
+    public byte[] get(String hash) {
+        return store.read("Failed to load blob " + hash + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT data FROM blobs WHERE hash = ?")) {
+                statement.setString(1, hash);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getBytes(1) : null;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void release(String hash) {
+        store.write("Failed to release blob " + hash + ".", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE blobs SET refs = refs - 1 WHERE hash = ?")) {
+                statement.setString(1, hash);
+                statement.executeUpdate();
+            }
+
+            // Delete the blob once nothing references it anymore
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM blobs WHERE hash = ? AND refs <= 0")) {
+                statement.setString(1, hash);
+                statement.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public int collectGarbage(Map<String, Integer> references) {
+        return store.write("Failed to collect unreferenced blobs.", connection -> {
+            // Read the stored reference counts
+            Map<String, Integer> stored = new HashMap<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT hash, refs FROM blobs");
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    stored.put(resultSet.getString(1), resultSet.getInt(2));
+                }
+            }
+
+            int deleted = 0;
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM blobs WHERE hash = ?");
+                 PreparedStatement update = connection.prepareStatement("UPDATE blobs SET refs = ? WHERE hash = ?")) {
+                for (Map.Entry<String, Integer> entry : stored.entrySet()) {
+                    Integer refs = references.get(entry.getKey());
+                    if (refs == null || refs <= 0) {
+                        delete.setString(1, entry.getKey());
+                        delete.addBatch();
+                        deleted++;
+                    } else if (!refs.equals(entry.getValue())) {
+                        update.setInt(1, refs);
+                        update.setString(2, entry.getKey());
+                        update.addBatch();
+                    }
+                }
+                delete.executeBatch();
+                update.executeBatch();
+            }
+            return deleted;
+        });
+    }
+
+    @Override
+    public long size() {
+        return store.read("Failed to count blobs.", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM blobs");
+                 ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        });
+    }
+}
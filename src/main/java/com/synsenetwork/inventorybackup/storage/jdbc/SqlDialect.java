@@ -0,0 +1,62 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+/**
+ * The differences between the SQL databases a {@link JdbcBackupStore} runs on.
+ */
+enum SqlDialect {
+    // Local database file, one connection
+    SQLITE("INTEGER PRIMARY KEY AUTOINCREMENT", "BLOB",
+            "SELECT page_count * page_size FROM pragma_page_count(), pragma_page_size()", false),
+    // Database server shared between servers, pooled connections
+    POSTGRESQL("BIGSERIAL PRIMARY KEY", "BYTEA",
+            "SELECT pg_total_relation_size('backups') + pg_total_relation_size('blobs')", true);
+
+    private final String idType;
+    private final String blobType;
+    private final String sizeQuery;
+    private final boolean remote;
+
+    SqlDialect(String idType, String blobType, String sizeQuery, boolean remote) {
+        this.idType = idType;
+        this.blobType = blobType;
+        this.sizeQuery = sizeQuery;
+        this.remote = remote;
+    }
+
+    /**
+     * Gets the column definition of a generated 64 bit primary key.
+     *
+     * @return The column definition.
+     */
+    String getIdType() {
+        return idType;
+    }
+
+    /**
+     * Gets the column type of binary data.
+     *
+     * @return The column type.
+     */
+    String getBlobType() {
+        return blobType;
+    }
+
+    /**
+     * Gets the query returning the size of the backups and blobs on disk in bytes.
+     *
+     * @return The query.
+     */
+    String getSizeQuery() {
+        return sizeQuery;
+    }
+
+    /**
+     * Checks whether the database is a server reached over the network. Such a database aborts the whole
+     * transaction when a statement fails, may lose its connection, and is shared with other servers.
+     *
+     * @return True if the database is remote.
+     */
+    boolean isRemote() {
+        return remote;
+    }
+}
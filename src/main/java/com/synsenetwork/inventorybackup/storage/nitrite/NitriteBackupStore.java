@@ -0,0 +1,296 @@
+package com.synsenetwork.inventorybackup.storage.nitrite;
+
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import com.synsenetwork.inventorybackup.storage.BackupStore;
+import com.synsenetwork.inventorybackup.storage.BlobStore;
+import com.synsenetwork.inventorybackup.storage.StorageSettings;
+import org.dizitart.no2.Constants;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.Index;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.NitriteBuilder;
+import org.dizitart.no2.NitriteId;
+import org.dizitart.no2.objects.ObjectRepository;
+import org.dizitart.no2.objects.filters.ObjectFilters;
+import org.h2.mvstore.MVStore;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link BackupStore} keeping backups in an embedded Nitrite database, as object documents.
+ */
+public class NitriteBackupStore implements BackupStore {
+    // Logger
+    private static final Logger LOGGER = Logger.getLogger(NitriteBackupStore.class.getName());
+
+    // Chunks filled less than this percentage are rewritten when compacting, as MVStore.compactFile does
+    private static final int TARGET_FILL_RATE = 95;
+
+    // Steps in a row that may not raise the chunk fill rate before rewriting is considered done
+    private static final int MAX_STALLED_STEPS = 2;
+
+    private final Nitrite db;
+    private final ObjectRepository<BackupInventory> repository;
+    private final NitriteCollection collection;
+    private final NitriteBlobStore blobStore;
+
+    // Store under the database, null if it can't be reached and compaction falls back to Nitrite's own
+    private final MVStore mvStore;
+
+    // Highest chunk fill rate and steps since it was last raised in the running compaction, only used by its thread
+    private int bestFillRate = -1;
+    private int stalledSteps;
+
+    /**
+     * Creates a new NitriteBackupStore.
+     *
+     * @param db The database to store the backups in.
+     */
+    public NitriteBackupStore(Nitrite db) {
+        this.db = db;
+        this.repository = db.getRepository(BackupInventory.class);
+        this.collection = repository.getDocumentCollection();
+        this.blobStore = new NitriteBlobStore(db);
+        this.mvStore = getMVStore(db);
+
+        migrateTimestampIndex();
+    }
+
+    /**
+     * Opens or creates a Nitrite database file with the given storage engine settings.
+     *
+     * @param file     The database file.
+     * @param settings The storage engine settings.
+     * @return The backup store.
+     */
+    public static NitriteBackupStore open(File file, StorageSettings settings) {
+        // Compression and the autocommit buffer are fixed when the store is opened
+        NitriteBuilder builder = Nitrite.builder()
+                .filePath(file.getAbsolutePath())
+                .autoCommitBufferSize(settings.getAutoCommitBufferKilobytes());
+        if (settings.getCompression() == StorageSettings.Compression.LZF) {
+            builder.compressed();
+        }
+        NitriteBackupStore store = new NitriteBackupStore(builder.openOrCreate());
+
+        // Nitrite doesn't expose the cache size and commit interval, set them on the MVStore
+        if (store.mvStore != null) {
+            store.mvStore.setCacheSize(settings.getCacheSizeMegabytes());
+            store.mvStore.setAutoCommitDelay((int) Math.min(Integer.MAX_VALUE, settings.getCommitIntervalMillis()));
+            LOGGER.info("Storage engine: cache-size=" + store.mvStore.getCacheSize() + "MB, compression=" + settings.getCompression().getName()
+                    + ", autocommit-buffer=" + store.mvStore.getAutoCommitMemory() / 1024 + "KB, commit-interval="
+                    + (store.mvStore.getAutoCommitDelay() == 0 ? "on commit" : store.mvStore.getAutoCommitDelay() + "ms"));
+        } else {
+            LOGGER.warning("Storage engine: cache-size and commit-interval can't be applied, using the defaults.");
+        }
+        return store;
+    }
+
+    /**
+     * Gets the MVStore under a Nitrite database. Nitrite 3.4 doesn't expose it, and its own compaction only moves
+     * whole chunks, so the space of deleted documents inside live chunks is never reclaimed while the server runs.
+     *
+     * @param db The database.
+     * @return The MVStore, or null if it can't be reached.
+     */
+    private static MVStore getMVStore(Nitrite db) {
+        try {
+            Field storeField = Nitrite.class.getDeclaredField("store");
+            storeField.setAccessible(true);
+            Object store = storeField.get(db);
+
+            Field mvStoreField = store.getClass().getDeclaredField("mvStore");
+            mvStoreField.setAccessible(true);
+            return (MVStore) mvStoreField.get(store);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to access the MVStore of the database, compaction will only move chunks.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the unique timestamp index of databases created by older versions with a non-unique one.
+     * Indexes declared on the class are only created if missing, so the old index would otherwise stay
+     * and reject backups taken in the same millisecond.
+     */
+    private void migrateTimestampIndex() {
+        for (Index index : collection.listIndices()) {
+            if (!index.getField().equals("timestamp") || index.getIndexType() != IndexType.Unique) {
+                continue;
+            }
+
+            // Log index migration
+            LOGGER.info("Rebuilding the timestamp index as non-unique...");
+
+            collection.dropIndex("timestamp");
+            collection.createIndex("timestamp", IndexOptions.indexOptions(IndexType.NonUnique));
+            db.commit();
+            return;
+        }
+    }
+
+    @Override
+    public void insert(List<BackupInventory> backupInventories) {
+        if (backupInventories.isEmpty()) {
+            return;
+        }
+
+        // Object repositories refuse ids that are already set, so insert the documents with their ids directly
+        Document[] documents = new Document[backupInventories.size()];
+        for (int i = 0; i < documents.length; i++) {
+            BackupInventory backupInventory = backupInventories.get(i);
+            if (backupInventory.getIdField() == null) {
+                backupInventory.setIdField(NitriteId.newId());
+            }
+
+            Document document = backupInventory.write(null);
+            document.put(Constants.DOC_ID, backupInventory.getIdField().getIdValue());
+            document.put("idField", backupInventory.getIdField().getIdValue());
+            documents[i] = document;
+        }
+        collection.insert(documents[0], Arrays.copyOfRange(documents, 1, documents.length));
+    }
+
+    @Override
+    public boolean contains(NitriteId id) {
+        return id != null && collection.getById(id) != null;
+    }
+
+    @Override
+    public BackupInventory getById(NitriteId id) {
+        return repository.getById(id);
+    }
+
+    @Override
+    public List<BackupMetadata> findByPlayer(UUID playerId, long from, long to) {
+        List<BackupMetadata> backups = new ArrayList<>();
+        for (BackupMetadata backupMetadata : repository.find(ObjectFilters.and(
+                ObjectFilters.eq("playerId", playerId),
+                ObjectFilters.gte("timestamp", from),
+                ObjectFilters.lte("timestamp", to))).project(BackupMetadata.class)) {
+            backups.add(backupMetadata);
+        }
+
+        backups.sort(BackupMetadata.NEWEST_FIRST);
+        return backups;
+    }
+
+    @Override
+    public void forEachMetadata(Consumer<BackupMetadata> consumer) {
+        for (BackupMetadata backupMetadata : repository.find().project(BackupMetadata.class)) {
+            consumer.accept(backupMetadata);
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<BackupInventory> consumer) {
+        for (BackupInventory backupInventory : repository.find()) {
+            consumer.accept(backupInventory);
+        }
+    }
+
+    @Override
+    public void update(BackupInventory backupInventory) {
+        Document document = collection.getById(backupInventory.getIdField());
+        if (document == null) {
+            return;
+        }
+
+        // Collection updates merge fields, rewrite() nulls the ones the backup no longer uses
+        backupInventory.rewrite(document);
+        collection.update(document);
+    }
+
+    @Override
+    public int delete(Collection<NitriteId> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        Object[] idValues = new Object[ids.size()];
+        int i = 0;
+        for (NitriteId id : ids) {
+            idValues[i++] = id.getIdValue();
+        }
+        return repository.remove(ObjectFilters.in("idField", idValues)).getAffectedCount();
+    }
+
+    @Override
+    public int deleteAll(UUID playerId) {
+        return repository.remove(ObjectFilters.eq("playerId", playerId)).getAffectedCount();
+    }
+
+    @Override
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    @Override
+    public long getSize() {
+        String filePath = db.getContext().getFilePath();
+        return filePath == null ? -1 : new File(filePath).length();
+    }
+
+    @Override
+    public boolean compact(long maxBytes, boolean full) {
+        // In-memory databases have nothing to reclaim
+        if (db.getContext().getFilePath() == null) {
+            return false;
+        }
+
+        // Without the MVStore, move the live chunks to the start of the file in one go
+        if (mvStore == null) {
+            db.compact();
+            return false;
+        }
+
+        // Rewrite the live pages of up to maxBytes of sparse chunks, or of all of them in a full compaction.
+        // Rewriting can go on forever in a small store, so stop once steps no longer raise the chunk fill rate.
+        boolean more;
+        do {
+            more = mvStore.compact(TARGET_FILL_RATE, full ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, maxBytes));
+            mvStore.commit();
+            int fillRate = mvStore.getChunksFillRate();
+            if (fillRate > bestFillRate) {
+                bestFillRate = fillRate;
+                stalledSteps = 0;
+            } else {
+                stalledSteps++;
+            }
+        } while (full && more && stalledSteps < MAX_STALLED_STEPS);
+        if (more && stalledSteps < MAX_STALLED_STEPS) {
+            return true;
+        }
+        bestFillRate = -1;
+        stalledSteps = 0;
+
+        // Once rewriting is done, move the live chunks into the freed space and truncate the file, as
+        // MVStore.compactFile does. Moving rewrites every chunk after the first gap, so it only runs once per compaction.
+        mvStore.sync();
+        mvStore.compactMoveChunks();
+        return false;
+    }
+
+    @Override
+    public void commit() {
+        db.commit();
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.synsenetwork.inventorybackup.storage.nitrite;
+
+import com.synsenetwork.inventorybackup.storage.BlobStore;
+import com.synsenetwork.inventorybackup.utils.HashUtils;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.IndexOptions;
+import org.dizitart.no2.IndexType;
+import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteCollection;
+import org.dizitart.no2.filters.Filters;
+
+import java.util.Map;
+
+/**
+ * A {@link BlobStore} keeping blobs in a Nitrite collection with a unique index on the hash.
+ */
+public class NitriteBlobStore implements BlobStore {
+    // Name of the collection holding the blobs
+    private static final String COLLECTION_NAME = "blobs";
+
+    private final NitriteCollection collection;
+
+    /**
+     * Creates a new NitriteBlobStore.
+     *
+     * @param db The database to store the blobs in.
+     */
+    public NitriteBlobStore(Nitrite db) {
+        this.collection = db.getCollection(COLLECTION_NAME);
+
+        // Blobs are looked up by hash
+        if (!collection.hasIndex("hash")) {
+            collection.createIndex("hash", IndexOptions.indexOptions(IndexType.Unique));
+        }
+    }
+
+    @Override
+    public synchronized String put(byte[] data) {
+        String hash = HashUtils.sha256(data);
+
+        Document document = find(hash);
+        if (document == null) {
+            // Store new blob
+            collection.insert(Document.createDocument("hash", hash).put("data", data).put("refs", 1));
+        } else {
+            // Add reference to existing blob
+            document.put("refs", document.get("refs", Integer.class) + 1);
+            collection.update(document);
+        }
+
+        return hash;
+    }
+
+    @Override
+    public byte[] get(String hash) {
+        Document document = find(hash);
+        return document == null ? null : document.get("data", byte[].class);
+    }
+
+    @Override
+    public synchronized void release(String hash) {
+        Document document = find(hash);
+        if (document == null) {
+            return;
+        }
+
+        int refs = document.get("refs", Integer.class) - 1;
+        if (refs <= 0) {
+            collection.remove(document);
+        } else {
+            document.put("refs", refs);
+            collection.update(document);
+        }
+    }
+
+    @Override
+    public synchronized int collectGarbage(Map<String, Integer> references) {
+        int deleted = 0;
+        for (Document document : collection.find()) {
+            Integer refs = references.get(document.get("hash", String.class));
+            if (refs == null || refs <= 0) {
+                collection.remove(document);
+                deleted++;
+            } else if (!refs.equals(document.get("refs", Integer.class))) {
+                document.put("refs", refs);
+                collection.update(document);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public long size() {
+        return collection.size();
+    }
+
+    /**
+     * Finds the document of a blob.
+     *
+     * @param hash The hash of the blob.
+     * @return The document, or null if it doesn't exist.
+     */
+    private Document find(String hash) {
+        return collection.find(Filters.eq("hash", hash)).firstOrDefault();
+    }
+}
@@ -0,0 +1,181 @@
+package com.synsenetwork.inventorybackup.tracking;
+
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.storage.BackupSpooledException;
+import org.bukkit.inventory.ItemStack;
+import org.dizitart.no2.NitriteId;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Remembers the last backup taken of every online player, so a backup identical to it can be skipped before the
+ * inventory is copied. A fingerprint of the item stacks rules out most changes cheaply, and a matching fingerprint
+ * is confirmed by comparing the item stacks, so a fingerprint collision never skips a changed inventory.
+ * A backup is only treated as unchanged while the previous one is still stored.
+ */
+public class ChangeTracker {
+    // The last backup per player, removed again if the write fails
+    private final Map<UUID, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Predicate<NitriteId> stored;
+
+    /**
+     * Creates a new ChangeTracker.
+     *
+     * @param stored Checks whether a backup is still stored, must not block.
+     */
+    public ChangeTracker(Predicate<NitriteId> stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Checks whether a player's inventory is identical to their last backup, and that backup is still stored.
+     *
+     * @param playerId      The UUID of the player.
+     * @param fingerprint   The fingerprint of the inventory, see {@link #fingerprint(int, ItemStack[]...)}.
+     * @param experience    The total experience of the player.
+     * @param armorContents The armor contents of the player.
+     * @param extraContents The extra contents of the player.
+     * @param contents      The contents of the player.
+     * @return True if the backup can be skipped.
+     */
+    public boolean isUnchanged(UUID playerId, long fingerprint, int experience, ItemStack[] armorContents, ItemStack[] extraContents, ItemStack[] contents) {
+        Snapshot snapshot = snapshots.get(playerId);
+        if (snapshot == null || snapshot.fingerprint != fingerprint || snapshot.experience != experience) {
+            return false;
+        }
+
+        // Rule out a fingerprint collision
+        if (!Arrays.equals(snapshot.armorContents, armorContents)
+                || !Arrays.equals(snapshot.extraContents, extraContents)
+                || !Arrays.equals(snapshot.contents, contents)) {
+            return false;
+        }
+
+        // A backup still being written has no id yet, it is forgotten if the write fails
+        NitriteId id = snapshot.id;
+        if (id != null && !stored.test(id)) {
+            snapshots.remove(playerId, snapshot);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tracks a backup submitted to the writer as the last backup of its player.
+     *
+     * @param backupInventory The backup, its item stacks must not be changed afterwards.
+     * @param future          The future of the write.
+     */
+    public void track(BackupInventory backupInventory, CompletableFuture<NitriteId> future) {
+        track(backupInventory, fingerprint(backupInventory.getTotalExperience(),
+                backupInventory.getArmorContents(), backupInventory.getExtraContents(), backupInventory.getContents()), future);
+    }
+
+    /**
+     * Tracks a backup submitted to the writer as the last backup of its player.
+     *
+     * @param backupInventory The backup, its item stacks must not be changed afterwards.
+     * @param fingerprint     The fingerprint of the backup, see {@link #fingerprint(int, ItemStack[]...)}.
+     * @param future          The future of the write.
+     */
+    public void track(BackupInventory backupInventory, long fingerprint, CompletableFuture<NitriteId> future) {
+        UUID playerId = backupInventory.getPlayerId();
+        Snapshot snapshot = new Snapshot(fingerprint, backupInventory);
+        snapshots.put(playerId, snapshot);
+
+        future.whenComplete((id, throwable) -> {
+            if (throwable == null) {
+                snapshot.id = id;
+            } else if (!(throwable instanceof BackupSpooledException)) {
+                // Take the backup again next time, a spooled backup is still written later
+                snapshots.remove(playerId, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Forgets the last backup of a player, e.g. when they leave.
+     *
+     * @param playerId The UUID of the player.
+     */
+    public void forget(UUID playerId) {
+        snapshots.remove(playerId);
+    }
+
+    /**
+     * Gets the number of players whose last backup is tracked.
+     *
+     * @return The number of tracked players.
+     */
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Checks whether an inventory has no items and no experience. Slots count as empty like they do
+     * when the item stacks are encoded, so any kind of air and stacks without items are ignored.
+     *
+     * @param experience The total experience of the player.
+     * @param arrays     The armor contents, extra contents and contents.
+     * @return True if a backup of the inventory would restore nothing.
+     */
+    public static boolean isEmpty(int experience, ItemStack[]... arrays) {
+        if (experience > 0) {
+            return false;
+        }
+        for (ItemStack[] itemStacks : arrays) {
+            for (ItemStack itemStack : itemStacks) {
+                if (!ItemStackArrayCodec.isEmpty(itemStack)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes a fingerprint of a player's inventory and experience.
+     *
+     * @param experience The total experience of the player.
+     * @param arrays     The armor contents, extra contents and contents.
+     * @return The fingerprint.
+     */
+    public static long fingerprint(int experience, ItemStack[]... arrays) {
+        long hash = experience;
+        for (ItemStack[] itemStacks : arrays) {
+            hash = hash * 0x9E3779B97F4A7C15L + itemStacks.length;
+            for (ItemStack itemStack : itemStacks) {
+                hash = hash * 0x9E3779B97F4A7C15L + (itemStack == null ? 0 : itemStack.hashCode());
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * The last backup of a player.
+     */
+    private static final class Snapshot {
+        private final long fingerprint;
+        private final int experience;
+        private final ItemStack[] armorContents;
+        private final ItemStack[] extraContents;
+        private final ItemStack[] contents;
+
+        // Set once the backup is committed
+        private volatile NitriteId id;
+
+        private Snapshot(long fingerprint, BackupInventory backupInventory) {
+            this.fingerprint = fingerprint;
+            this.experience = backupInventory.getTotalExperience();
+            this.armorContents = backupInventory.getArmorContents();
+            this.extraContents = backupInventory.getExtraContents();
+            this.contents = backupInventory.getContents();
+        }
+    }
+}
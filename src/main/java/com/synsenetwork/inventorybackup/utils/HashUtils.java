@@ -0,0 +1,36 @@
+package com.synsenetwork.inventorybackup.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A utility class for hashing content.
+ */
+public final class HashUtils {
+    // Hex digits used to format hashes
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Hashes content with SHA-256.
+     *
+     * @param data The content to hash.
+     * @return The hash as a hex string.
+     */
+    public static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    // Private constructor to prevent instantiation of the utility class.
+    private HashUtils() {
+    }
+}
@@ -0,0 +1,24 @@
+package com.synsenetwork.inventorybackup.utils;
+
+import java.util.Locale;
+
+/**
+ * A utility class for working with sizes in bytes.
+ */
+public final class SizeUtils {
+    /**
+     * Formats a size in bytes with a unit fitting its magnitude.
+     *
+     * @param bytes The size in bytes, or -1 if unknown.
+     * @return The formatted size.
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < 0) {
+            return "unknown";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024D);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024D * 1024D));
+    }
+}
@@ -4,6 +4,7 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A utility class for working with timestamps.
@@ -31,4 +32,71 @@ public class TimeUtils {
 
         return localDateTime.format(formatter);
     }
+
+    /**
+     * Parses a duration such as "30s", "15m", "12h", "7d" or "2w" to milliseconds.
+     * A plain number is read as milliseconds.
+     * @param duration The duration to parse.
+     * @return The duration in milliseconds.
+     * @throws IllegalArgumentException If the duration is not valid.
+     */
+    public static long parseDuration(String duration) {
+        // Normalize input
+        String value = duration.trim().toLowerCase();
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Empty duration.");
+        }
+
+        // Split number and unit
+        char unit = value.charAt(value.length() - 1);
+        String number = Character.isDigit(unit) ? value : value.substring(0, value.length() - 1).trim();
+
+        try {
+            long amount = Long.parseLong(number);
+            switch (unit) {
+                case 's':
+                    return TimeUnit.SECONDS.toMillis(amount);
+                case 'm':
+                    return TimeUnit.MINUTES.toMillis(amount);
+                case 'h':
+                    return TimeUnit.HOURS.toMillis(amount);
+                case 'd':
+                    return TimeUnit.DAYS.toMillis(amount);
+                case 'w':
+                    return TimeUnit.DAYS.toMillis(amount * 7);
+                default:
+                    if (Character.isDigit(unit)) {
+                        return amount;
+                    }
+                    throw new IllegalArgumentException("Unknown duration unit '" + unit + "' in " + duration + ".");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration " + duration + ".", e);
+        }
+    }
+
+    /**
+     * Formats a duration in milliseconds to a short string such as "2d 3h".
+     * @param millis The duration in milliseconds.
+     * @return The formatted duration.
+     */
+    public static String formatDuration(long millis) {
+        // Split into units
+        long days = TimeUnit.MILLISECONDS.toDays(millis);
+        long hours = TimeUnit.MILLISECONDS.toHours(millis) % 24;
+        long minutes = TimeUnit.MILLISECONDS.toMinutes(millis) % 60;
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis) % 60;
+
+        // Format the two largest units
+        if (days > 0) {
+            return days + "d " + hours + "h";
+        }
+        if (hours > 0) {
+            return hours + "h " + minutes + "m";
+        }
+        if (minutes > 0) {
+            return minutes + "m " + seconds + "s";
+        }
+        return seconds + "s";
+    }
 }
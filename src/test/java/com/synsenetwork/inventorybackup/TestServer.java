@@ -0,0 +1,141 @@
+package com.synsenetwork.inventorybackup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.Server;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for a running server in unit tests, so item stacks can be created, compared and serialized without one.
+ * <p>
+ * Every server interface is a proxy returning defaults, like the stub server of the benchmarks. Item stacks are
+ * serialized as their material and amount, and have no item meta.
+ */
+public final class TestServer {
+    // Data version reported to item stack serialization, the one of 1.20.1
+    private static final int DATA_VERSION = 3465;
+
+    // Proxies of the interfaces returned by the server, created on first use
+    private static final Map<Class<?>, Object> PROXIES = new ConcurrentHashMap<>();
+
+    /**
+     * Installs the test server, unless a server is installed already.
+     */
+    public static synchronized void install() {
+        if (Bukkit.getServer() == null) {
+            Bukkit.setServer(proxy(Server.class));
+        }
+    }
+
+    /**
+     * Creates a proxy of a server interface.
+     *
+     * @param type The interface.
+     * @param <T>  The type of the interface.
+     * @return The proxy.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type) {
+        return (T) PROXIES.computeIfAbsent(type, key -> Proxy.newProxyInstance(TestServer.class.getClassLoader(), new Class<?>[]{key}, (proxy, method, args) -> switch (method.getName()) {
+            case "getLogger" -> Logger.getLogger("TestServer");
+            case "getName", "getVersion", "getBukkitVersion" -> "TestServer";
+            case "getDataVersion" -> DATA_VERSION;
+            case "getMaterial" -> Material.matchMaterial((String) args[0]);
+            case "serializeItem" -> serializeItem((ItemStack) args[0]);
+            case "deserializeItem" -> deserializeItem((byte[]) args[0]);
+            default -> {
+                // Item meta comparison, the test server never creates item meta
+                if (method.getName().equals("equals") && method.getParameterCount() == 2) {
+                    yield Objects.equals(args[0], args[1]);
+                }
+                yield defaultValue(method, proxy, args);
+            }
+        }));
+    }
+
+    /**
+     * Gets the value returned by a stubbed method without special handling.
+     * Server interfaces get a stub of their own, so chained calls keep working.
+     *
+     * @param method The method.
+     * @param proxy  The proxy the method was called on.
+     * @param args   The arguments of the call.
+     * @return The value.
+     */
+    private static Object defaultValue(Method method, Object proxy, Object[] args) {
+        Class<?> returnType = method.getReturnType();
+        switch (method.getName()) {
+            case "equals":
+                if (method.getParameterCount() == 1) {
+                    return proxy == args[0];
+                }
+                break;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return returnType == String.class ? proxy.getClass().getInterfaces()[0].getSimpleName() : null;
+            default:
+                break;
+        }
+
+        if (returnType.isPrimitive() && returnType != void.class) {
+            // The element of a new primitive array is the zero value of its type
+            return Array.get(Array.newInstance(returnType, 1), 0);
+        }
+        if (returnType.isInterface() && returnType.getName().startsWith("org.bukkit")) {
+            return proxy(returnType);
+        }
+        return null;
+    }
+
+    /**
+     * Serializes an item stack as its material and amount.
+     *
+     * @param itemStack The item stack.
+     * @return The serialized item stack.
+     */
+    private static byte[] serializeItem(ItemStack itemStack) {
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(32);
+            DataOutputStream dataOutput = new DataOutputStream(outputStream);
+            dataOutput.writeUTF(itemStack.getType().name());
+            dataOutput.writeByte(itemStack.getAmount());
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deserializes an item stack serialized by {@link #serializeItem(ItemStack)}.
+     *
+     * @param bytes The serialized item stack.
+     * @return The item stack.
+     */
+    private static ItemStack deserializeItem(byte[] bytes) {
+        try {
+            DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(bytes));
+            return new ItemStack(Material.valueOf(dataInput.readUTF()), dataInput.readByte());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Private constructor to prevent instantiation of the utility class.
+    private TestServer() {
+    }
+}
@@ -0,0 +1,130 @@
+package com.synsenetwork.inventorybackup.codec;
+
+import com.synsenetwork.inventorybackup.TestServer;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ItemStackArrayCodecTest {
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @Test
+    void roundTripsItemStacks() {
+        ItemStack[] itemStacks = new ItemStack[41];
+        itemStacks[0] = new ItemStack(Material.DIAMOND_SWORD);
+        itemStacks[8] = new ItemStack(Material.COBBLESTONE, 64);
+        itemStacks[40] = new ItemStack(Material.SHIELD);
+
+        assertArrayEquals(itemStacks, ItemStackArrayCodec.decode(ItemStackArrayCodec.encode(itemStacks)));
+    }
+
+    @Test
+    void decodesEmptySlotsAsNull() {
+        ItemStack[] itemStacks = {new ItemStack(Material.AIR), new ItemStack(Material.STONE, 0), new ItemStack(Material.STONE, 2)};
+
+        ItemStack[] decoded = ItemStackArrayCodec.decode(ItemStackArrayCodec.encode(itemStacks));
+
+        assertArrayEquals(new ItemStack[]{null, null, new ItemStack(Material.STONE, 2)}, decoded);
+    }
+
+    @Test
+    void storesEmptySlotsAsOneBit() {
+        // Version, length and a bitmap of 6 bytes for 41 slots
+        assertEquals(8, ItemStackArrayCodec.encode(new ItemStack[41]).length);
+        assertEquals(0, ItemStackArrayCodec.decode(ItemStackArrayCodec.encode(new ItemStack[0])).length);
+    }
+
+    @Test
+    void passesNullThrough() {
+        assertNull(ItemStackArrayCodec.encode(null));
+        assertNull(ItemStackArrayCodec.decode(null));
+    }
+
+    @Test
+    void rejectsUnknownVersionsAndTruncatedData() {
+        byte[] encoded = ItemStackArrayCodec.encode(new ItemStack[]{new ItemStack(Material.STONE, 3)});
+
+        byte[] unknownVersion = encoded.clone();
+        unknownVersion[0] = 99;
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decode(unknownVersion));
+
+        byte[] truncated = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decode(truncated));
+    }
+
+    @Test
+    void rejectsCorruptLengths() {
+        // A varint of -1, and a length far longer than the data
+        byte[] negative = {ItemStackArrayCodec.VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        byte[] implausible = {ItemStackArrayCodec.DELTA_VERSION, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F};
+
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decode(negative));
+        negative[0] = ItemStackArrayCodec.DELTA_VERSION;
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decodeDelta(null, negative));
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decodeDelta(null, implausible));
+    }
+
+    @Test
+    void appliesDeltasToTheirBase() {
+        ItemStack[] base = {new ItemStack(Material.STONE, 1), new ItemStack(Material.BREAD, 5), null, new ItemStack(Material.TORCH, 8)};
+        ItemStack[] itemStacks = {new ItemStack(Material.STONE, 1), new ItemStack(Material.BREAD, 4), new ItemStack(Material.ARROW, 3), null, new ItemStack(Material.SHIELD)};
+
+        byte[] delta = ItemStackArrayCodec.encodeDelta(base, itemStacks);
+
+        assertArrayEquals(itemStacks, ItemStackArrayCodec.decodeDelta(base, delta));
+    }
+
+    @Test
+    void appliesDeltasToShrunkenArrays() {
+        ItemStack[] base = {new ItemStack(Material.STONE, 1), new ItemStack(Material.BREAD, 5), new ItemStack(Material.TORCH, 8)};
+        ItemStack[] itemStacks = {new ItemStack(Material.STONE, 1)};
+
+        assertArrayEquals(itemStacks, ItemStackArrayCodec.decodeDelta(base, ItemStackArrayCodec.encodeDelta(base, itemStacks)));
+    }
+
+    @Test
+    void storesUnchangedSlotsAsOneBit() {
+        ItemStack[] itemStacks = new ItemStack[41];
+        itemStacks[0] = new ItemStack(Material.DIAMOND_SWORD);
+        itemStacks[40] = new ItemStack(Material.SHIELD);
+
+        // Version, length and a bitmap of 6 bytes for 41 slots
+        assertEquals(8, ItemStackArrayCodec.encodeDelta(itemStacks, itemStacks.clone()).length);
+    }
+
+    @Test
+    void decodesDeltasWithoutABaseAsEmptySlots() {
+        ItemStack[] itemStacks = {null, new ItemStack(Material.BREAD, 2)};
+
+        assertArrayEquals(itemStacks, ItemStackArrayCodec.decodeDelta(null, ItemStackArrayCodec.encodeDelta(null, itemStacks)));
+    }
+
+    @Test
+    void copiesChangedSlotsFromTheKeyframe() {
+        ItemStack[] base = {new ItemStack(Material.STONE, 1), null, new ItemStack(Material.TORCH, 8)};
+        ItemStack[] itemStacks = {new ItemStack(Material.STONE, 1), new ItemStack(Material.ARROW, 3), null, new ItemStack(Material.SHIELD)};
+
+        byte[] delta = ItemStackArrayCodec.encodeDelta(base, itemStacks, ItemStackArrayCodec.encode(itemStacks));
+
+        assertArrayEquals(ItemStackArrayCodec.encodeDelta(base, itemStacks), delta);
+        assertArrayEquals(itemStacks, ItemStackArrayCodec.decodeDelta(base, delta));
+    }
+
+    @Test
+    void rejectsMixingUpKeyframesAndDeltas() {
+        ItemStack[] itemStacks = {new ItemStack(Material.STONE, 3)};
+
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decode(ItemStackArrayCodec.encodeDelta(null, itemStacks)));
+        assertThrows(IllegalArgumentException.class, () -> ItemStackArrayCodec.decodeDelta(null, ItemStackArrayCodec.encode(itemStacks)));
+    }
+}
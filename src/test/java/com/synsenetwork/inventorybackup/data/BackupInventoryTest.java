@@ -0,0 +1,157 @@
+package com.synsenetwork.inventorybackup.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.synsenetwork.inventorybackup.TestServer;
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.gson.ItemStackArrayTypeAdapter;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.dizitart.no2.Document;
+import org.dizitart.no2.NitriteId;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupInventoryTest {
+    private static final UUID PLAYER_ID = UUID.fromString("4b0c6a5e-0f5e-4f0e-9a52-2b7d6c1e8f10");
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @Test
+    void readsLegacyBase64Documents() {
+        ItemStack[] armorContents = {null, null, new ItemStack(Material.DIAMOND_CHESTPLATE), null};
+        ItemStack[] extraContents = {new ItemStack(Material.SHIELD)};
+        ItemStack[] contents = {new ItemStack(Material.BREAD, 12), null, new ItemStack(Material.TORCH, 64)};
+
+        // Documents written before the binary format held every array as Base64 JSON
+        Gson gson = new GsonBuilder().registerTypeAdapter(ItemStack[].class, new ItemStackArrayTypeAdapter()).create();
+        Document document = document(1L, 1000L, 25);
+        document.put("armorContents", gson.toJson(armorContents, ItemStack[].class));
+        document.put("extraContents", gson.toJson(extraContents, ItemStack[].class));
+        document.put("contents", gson.toJson(contents, ItemStack[].class));
+
+        BackupInventory backupInventory = BackupInventory.fromDocument(document);
+
+        assertTrue(backupInventory.isMigrationNeeded(-1));
+        assertEquals(PLAYER_ID, backupInventory.getPlayerId());
+        assertEquals(1000L, backupInventory.getTimestamp());
+        assertEquals(25, backupInventory.getTotalExperience());
+        assertArrayEquals(armorContents, backupInventory.getArmorContents());
+        assertArrayEquals(extraContents, backupInventory.getExtraContents());
+        assertArrayEquals(contents, backupInventory.getContents());
+    }
+
+    @Test
+    void migratesLegacyDocumentsToTheBinaryFormat() {
+        ItemStack[] contents = {new ItemStack(Material.ARROW, 32), null};
+        Gson gson = new GsonBuilder().registerTypeAdapter(ItemStack[].class, new ItemStackArrayTypeAdapter()).create();
+        Document document = document(2L, 2000L, 0);
+        document.put("armorContents", gson.toJson(new ItemStack[4], ItemStack[].class));
+        document.put("extraContents", gson.toJson(new ItemStack[1], ItemStack[].class));
+        document.put("contents", gson.toJson(contents, ItemStack[].class));
+
+        // Rewrite the document as the migration does
+        BackupInventory.fromDocument(document).rewrite(document);
+        BackupInventory migrated = BackupInventory.fromDocument(document);
+
+        assertTrue(document.get("contents") instanceof byte[]);
+        assertFalse(migrated.isMigrationNeeded(-1));
+        assertArrayEquals(contents, migrated.getContents());
+        assertArrayEquals(new ItemStack[4], migrated.getArmorContents());
+    }
+
+    @Test
+    void roundTripsThroughDocuments() {
+        ItemStack[] contents = {new ItemStack(Material.GOLDEN_APPLE, 3), null, new ItemStack(Material.ENDER_PEARL, 16)};
+        BackupInventory backupInventory = keyframe(3000L, contents);
+
+        Document document = backupInventory.write(null);
+        document.put("idField", 3L);
+        BackupInventory read = BackupInventory.fromDocument(document);
+
+        assertEquals(3000L, read.getTimestamp());
+        assertArrayEquals(contents, read.getContents());
+        assertArrayEquals(new ItemStack[4], read.getArmorContents());
+    }
+
+    @Test
+    void readsDeltaChainsThroughTheirBase() {
+        Map<NitriteId, BackupInventory> stored = new HashMap<>();
+        BackupInventory keyframe = keyframe(4000L, new ItemStack[]{new ItemStack(Material.STONE, 64), new ItemStack(Material.BREAD, 10), null});
+        keyframe.setIdField(NitriteId.createId(4L));
+        stored.put(keyframe.getIdField(), keyframe);
+
+        // Each backup is a delta of the one before it
+        BackupInventory previous = keyframe;
+        ItemStack[] contents = null;
+        for (long id = 5L; id <= 7L; id++) {
+            contents = new ItemStack[]{new ItemStack(Material.STONE, 64), new ItemStack(Material.BREAD, (int) id), new ItemStack(Material.ARROW, (int) id)};
+            BackupInventory delta = keyframe(id * 1000L, contents);
+            delta.setBase(previous);
+
+            Document document = delta.write(null);
+            document.put("idField", id);
+            BackupInventory read = BackupInventory.fromDocument(document);
+            read.setBaseLoader(stored::get);
+            stored.put(read.getIdField(), read);
+            previous = read;
+        }
+
+        assertEquals(NitriteId.createId(6L), previous.getBaseId());
+        assertArrayEquals(contents, previous.getContents());
+        assertArrayEquals(new ItemStack[4], previous.getArmorContents());
+    }
+
+    @Test
+    void failsToReadDeltasWithoutTheirBase() {
+        BackupInventory base = keyframe(8000L, new ItemStack[]{new ItemStack(Material.STONE, 1)});
+        base.setIdField(NitriteId.createId(8L));
+        BackupInventory delta = keyframe(9000L, new ItemStack[]{new ItemStack(Material.STONE, 2)});
+        delta.setBase(base);
+
+        Document document = delta.write(null);
+        document.put("idField", 9L);
+        BackupInventory read = BackupInventory.fromDocument(document);
+        read.setBaseLoader(id -> null);
+
+        assertThrows(IllegalStateException.class, read::decode);
+    }
+
+    /**
+     * Create a keyframe backup of the given contents, with empty armor and extra contents
+     */
+    static BackupInventory keyframe(long timestamp, ItemStack[] contents) {
+        BackupInventory backupInventory = BackupInventory.fromEncoded(PLAYER_ID, timestamp, new byte[][]{
+                ItemStackArrayCodec.encode(new ItemStack[4]),
+                ItemStackArrayCodec.encode(new ItemStack[1]),
+                ItemStackArrayCodec.encode(contents)
+        }, 0);
+        backupInventory.decode();
+        return backupInventory;
+    }
+
+    /**
+     * Create a stored document without item stacks
+     */
+    private static Document document(long id, long timestamp, int totalExperience) {
+        Document document = new Document();
+        document.put("idField", id);
+        document.put("playerId", PLAYER_ID.toString());
+        document.put("timestamp", timestamp);
+        document.put("totalExperience", totalExperience);
+        return document;
+    }
+}
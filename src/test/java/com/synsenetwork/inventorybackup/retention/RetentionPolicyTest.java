@@ -0,0 +1,82 @@
+package com.synsenetwork.inventorybackup.retention;
+
+import com.synsenetwork.inventorybackup.data.BackupMetadata;
+import org.dizitart.no2.NitriteId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetentionPolicyTest {
+    private static final UUID PLAYER_ID = UUID.fromString("4b0c6a5e-0f5e-4f0e-9a52-2b7d6c1e8f10");
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    // Aligned on a day, so tier buckets start exactly at the ages below
+    private static final long NOW = 1000 * DAY;
+
+    @Test
+    void emptyPolicyDeletesNothing() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 0, List.of());
+        List<BackupMetadata> backups = backups(0, MINUTE, HOUR, DAY, 365 * DAY);
+
+        assertTrue(policy.isEmpty());
+        assertTrue(policy.select(backups, NOW).isEmpty());
+    }
+
+    @Test
+    void minBackupsAreKeptPastEveryLimit() {
+        RetentionPolicy policy = new RetentionPolicy(2, 1, DAY, List.of(new RetentionPolicy.Tier(0, 365 * DAY)));
+        List<BackupMetadata> backups = backups(10 * DAY, 11 * DAY, 12 * DAY);
+
+        // Both newest backups are older than max-age, over max-backups and share a tier bucket
+        assertFalse(policy.isEmpty());
+        assertEquals(backups.subList(2, 3), policy.select(backups, NOW));
+    }
+
+    @Test
+    void deletesBackupsOverTheCountAndAgeLimits() {
+        List<BackupMetadata> backups = backups(0, HOUR, 2 * HOUR, 3 * DAY);
+
+        assertEquals(backups.subList(2, 4), new RetentionPolicy(0, 2, 0, List.of()).select(backups, NOW));
+        assertEquals(backups.subList(3, 4), new RetentionPolicy(0, 0, DAY, List.of()).select(backups, NOW));
+    }
+
+    @Test
+    void thinsBackupsFromTheTierBoundary() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 0, List.of(new RetentionPolicy.Tier(DAY, HOUR)));
+
+        // Just younger than the tier, exactly at its boundary, and two in the hour bucket before it
+        List<BackupMetadata> backups = backups(DAY - 2 * MINUTE, DAY - MINUTE, DAY, DAY + 10 * MINUTE, DAY + 20 * MINUTE);
+
+        // Only the older of the two backups sharing a bucket is deleted
+        assertEquals(backups.subList(4, 5), policy.select(backups, NOW));
+    }
+
+    @Test
+    void appliesTheOldestTierABackupFallsIn() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 0, List.of(new RetentionPolicy.Tier(7 * DAY, DAY), new RetentionPolicy.Tier(DAY, HOUR)));
+
+        // Two backups an hour apart are kept in the first tier, but share a bucket in the second
+        List<BackupMetadata> backups = backups(2 * DAY + HOUR, 2 * DAY + 2 * HOUR, 8 * DAY + HOUR, 8 * DAY + 2 * HOUR);
+
+        assertEquals(backups.subList(3, 4), policy.select(backups, NOW));
+    }
+
+    /**
+     * Create backups of the given ages, which have to be passed from newest to oldest
+     */
+    private static List<BackupMetadata> backups(long... ages) {
+        List<BackupMetadata> backups = new ArrayList<>();
+        for (int i = 0; i < ages.length; i++) {
+            backups.add(new BackupMetadata(NitriteId.createId(ages.length - (long) i), PLAYER_ID, NOW - ages[i], null));
+        }
+        return backups;
+    }
+}
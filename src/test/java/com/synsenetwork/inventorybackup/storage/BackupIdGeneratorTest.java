@@ -0,0 +1,76 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import org.dizitart.no2.NitriteId;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupIdGeneratorTest {
+    @Test
+    void generatesStrictlyIncreasingIds() {
+        BackupIdGenerator idGenerator = new BackupIdGenerator();
+
+        // Far more ids than fit in one millisecond, so the sequence has to borrow from the next one
+        long previous = idGenerator.next().getIdValue();
+        for (int i = 0; i < 100_000; i++) {
+            long id = idGenerator.next().getIdValue();
+            assertTrue(id > previous, id + " follows " + previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    void generatesIdsAboveObservedIds() {
+        BackupIdGenerator idGenerator = new BackupIdGenerator(5);
+        long observed = (System.currentTimeMillis() + 60_000) << 12;
+
+        idGenerator.observe(NitriteId.createId(observed));
+        idGenerator.observe(NitriteId.createId(1L));
+        idGenerator.observe(null);
+
+        long id = idGenerator.next().getIdValue();
+        assertTrue(id > observed, id + " follows " + observed);
+        assertEquals(5, id & BackupIdGenerator.MAX_SERVER_ID);
+    }
+
+    @Test
+    void storesTheServerIdInTheLowBits() {
+        BackupIdGenerator idGenerator = new BackupIdGenerator(BackupIdGenerator.MAX_SERVER_ID);
+        // An id of another server, as read from the shared database
+        idGenerator.observe(NitriteId.createId(((System.currentTimeMillis() + 60_000) << 12) | 7));
+
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(BackupIdGenerator.MAX_SERVER_ID, idGenerator.next().getIdValue() & BackupIdGenerator.MAX_SERVER_ID);
+        }
+    }
+
+    @Test
+    void neverCollidesBetweenServers() {
+        BackupIdGenerator first = new BackupIdGenerator(1);
+        BackupIdGenerator second = new BackupIdGenerator(2);
+
+        // Both servers generate ids in the same milliseconds and see each other's ids
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            NitriteId firstId = first.next();
+            NitriteId secondId = second.next();
+            assertTrue(ids.add(firstId.getIdValue()));
+            assertTrue(ids.add(secondId.getIdValue()));
+            if (i % 100 == 0) {
+                first.observe(secondId);
+                second.observe(firstId);
+            }
+        }
+    }
+
+    @Test
+    void rejectsServerIdsOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new BackupIdGenerator(-1));
+        assertThrows(IllegalArgumentException.class, () -> new BackupIdGenerator(BackupIdGenerator.MAX_SERVER_ID + 1));
+    }
+}
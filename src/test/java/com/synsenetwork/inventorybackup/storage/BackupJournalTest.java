@@ -0,0 +1,187 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.TestServer;
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.dizitart.no2.NitriteId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupJournalTest {
+    // Size of the journal file, enough for a few backups
+    private static final int SIZE = 64 * 1024;
+
+    private File file;
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @BeforeEach
+    void createFile() throws IOException {
+        file = Files.createTempFile("journal", ".dat").toFile();
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    void recoversOutstandingBackups() throws IOException {
+        BackupJournal journal = open();
+        int committed = journal.append(backup(1));
+        journal.append(backup(2));
+        journal.append(backup(3));
+        journal.release(committed, false);
+        journal.close();
+
+        // Released backups stay in the file until nothing is outstanding, so all three are recovered
+        assertEquals(3, reopen());
+    }
+
+    @Test
+    void truncatesOnceNothingIsOutstanding() throws IOException {
+        BackupJournal journal = open();
+        int first = journal.append(backup(1));
+        int second = journal.append(backup(2));
+        journal.release(first, false);
+        journal.release(second, false);
+        journal.append(backup(3));
+        journal.close();
+
+        assertEquals(1, reopen());
+    }
+
+    @Test
+    void dropsATornEntry() throws IOException {
+        BackupJournal journal = open();
+        journal.append(backup(1));
+        journal.append(backup(2));
+        int torn = journal.append(backup(3));
+        journal.close();
+
+        // Flip a byte of the last record, as if a crash interrupted the append
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(torn + 8 + 20);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(torn + 8 + 20);
+            randomAccessFile.write(value ^ 0xFF);
+        }
+
+        assertEquals(2, reopen());
+    }
+
+    @Test
+    void dropsATruncatedEntry() throws IOException {
+        BackupJournal journal = open();
+        journal.append(backup(1));
+        int truncated = journal.append(backup(2));
+        journal.close();
+
+        // A length running past the end of the file, as if the entry was cut off
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(truncated);
+            randomAccessFile.writeInt(SIZE);
+        }
+
+        assertEquals(1, reopen());
+    }
+
+    @Test
+    void keepsFailedBackupsForTheNextStart() throws IOException {
+        BackupJournal journal = open();
+        int committed = journal.append(backup(1));
+        int failed = journal.append(backup(2));
+        journal.release(committed, false);
+        journal.release(failed, true);
+
+        // The failed backup is no longer outstanding, so the journal is truncated down to it
+        assertEquals(1, journal.getOutstandingCount());
+        int next = journal.append(backup(3));
+        journal.release(next, false);
+        journal.close();
+
+        assertEquals(1, reopen());
+    }
+
+    @Test
+    void releasesBackupsTheWriterFailsToWrite() throws Exception {
+        BackupJournal journal = open();
+        BackupWriter writer = new BackupWriter(16, 16, 0, new BackupMetrics(), null);
+
+        // A writer that was never started fails its backups on shutdown, and there is no spool
+        CompletableFuture<NitriteId> future = journal.submit(backup(1), writer);
+        journal.shutdown();
+        writer.shutdown(0);
+
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof StorageException);
+        assertEquals(1, journal.getOutstandingCount());
+        journal.close();
+
+        assertEquals(1, reopen());
+    }
+
+    @Test
+    void encodesItemStacksForTheWriter() throws IOException {
+        BackupJournal journal = open();
+        BackupInventory backupInventory = backup(1);
+        journal.append(backupInventory);
+        journal.close();
+
+        // The writer reuses the item stacks the journal encoded
+        byte[][] encoded = backupInventory.encodeItemStacks();
+        assertEquals(ItemStackArrayCodec.VERSION, encoded[2][0]);
+    }
+
+    /**
+     * Open the journal file
+     */
+    private BackupJournal open() throws IOException {
+        return BackupJournal.open(file, SIZE, false, new BackupMetrics());
+    }
+
+    /**
+     * Open the journal file again and count the backups recovered from it
+     */
+    private int reopen() throws IOException {
+        BackupJournal journal = open();
+        try {
+            return journal.getOutstandingCount();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Create a backup with a few item stacks
+     */
+    private static BackupInventory backup(int amount) {
+        BackupInventory backupInventory = BackupInventory.fromEncoded(UUID.randomUUID(), amount, new byte[][]{
+                ItemStackArrayCodec.encode(new ItemStack[4]),
+                ItemStackArrayCodec.encode(new ItemStack[1]),
+                ItemStackArrayCodec.encode(new ItemStack[]{new ItemStack(Material.BREAD, amount), null, new ItemStack(Material.TORCH, 64)})
+        }, 0);
+        backupInventory.decode();
+        return backupInventory;
+    }
+}
@@ -0,0 +1,153 @@
+package com.synsenetwork.inventorybackup.storage;
+
+import com.synsenetwork.inventorybackup.TestServer;
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.storage.jdbc.JdbcBackupStore;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupSpoolTest {
+    // Player owning every backup of a test
+    private static final UUID PLAYER_ID = UUID.randomUUID();
+
+    private Path directory;
+    private BackupSpool spool;
+    private JdbcBackupStore store;
+
+    @BeforeAll
+    static void installServer() {
+        TestServer.install();
+    }
+
+    @BeforeEach
+    void createSpool() throws IOException {
+        directory = Files.createTempDirectory("spool");
+        spool = new BackupSpool(directory.resolve("spool.dat").toFile(), 2);
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void writesSpooledBackups() throws IOException, SQLException {
+        assertTrue(spool.isEmpty());
+        for (int timestamp = 1; timestamp <= 5; timestamp++) {
+            spool.append(backup(timestamp));
+        }
+        assertFalse(spool.isEmpty());
+
+        store = openStore();
+        BackupRepository repository = openRepository(store);
+        assertEquals(5, spool.replay(repository));
+        assertTrue(spool.isEmpty());
+        assertEquals(5, repository.count(PLAYER_ID));
+
+        // Nothing is left for the next replay
+        assertEquals(0, spool.replay(repository));
+    }
+
+    @Test
+    void keepsBackupsWhileTheDatabaseIsUnreachable() throws IOException, SQLException {
+        for (int timestamp = 1; timestamp <= 3; timestamp++) {
+            spool.append(backup(timestamp));
+        }
+
+        // Every statement fails on the closed store
+        JdbcBackupStore closed = openStore();
+        BackupRepository unreachable = openRepository(closed);
+        closed.close();
+        assertEquals(0, spool.replay(unreachable));
+        assertFalse(spool.isEmpty());
+
+        store = openStore();
+        BackupRepository repository = openRepository(store);
+        assertEquals(3, spool.replay(repository));
+        assertTrue(spool.isEmpty());
+        assertEquals(3, repository.count(PLAYER_ID));
+    }
+
+    @Test
+    void quarantinesABackupThatFailsOnItsOwn() throws IOException, SQLException {
+        for (int timestamp = 1; timestamp <= 4; timestamp++) {
+            spool.append(backup(timestamp));
+        }
+
+        // The database is reachable, but rejects one of the backups
+        store = openStore();
+        BackupRepository repository = new BackupRepository(store, -1, 0, 16, new BackupMetrics()) {
+            @Override
+            public void insert(List<BackupInventory> backupInventories) {
+                for (BackupInventory backupInventory : backupInventories) {
+                    if (backupInventory.getTimestamp() == 2) {
+                        throw new StorageException("Failed to insert backup inventories.", null);
+                    }
+                }
+                super.insert(backupInventories);
+            }
+        };
+
+        assertEquals(3, spool.replay(repository));
+        assertTrue(spool.isEmpty());
+        assertEquals(3, repository.count(PLAYER_ID));
+        assertTrue(directory.resolve("spool.dat.quarantine").toFile().length() > 0);
+    }
+
+    /**
+     * Open the SQLite store in the test directory
+     */
+    private JdbcBackupStore openStore() throws SQLException {
+        File file = directory.resolve("backups.sqlite").toFile();
+        return JdbcBackupStore.openSqlite(file, new StorageSettings(1, StorageSettings.Compression.NONE, 256, 0));
+    }
+
+    /**
+     * Open a repository on a store and index its backups
+     */
+    private static BackupRepository openRepository(BackupStore store) {
+        BackupRepository repository = new BackupRepository(store, -1, 0, 16, new BackupMetrics());
+        repository.loadIndex();
+        return repository;
+    }
+
+    /**
+     * Create a backup with a few item stacks, taken at a timestamp
+     */
+    private static BackupInventory backup(int timestamp) {
+        BackupInventory backupInventory = BackupInventory.fromEncoded(PLAYER_ID, timestamp, new byte[][]{
+                ItemStackArrayCodec.encode(new ItemStack[4]),
+                ItemStackArrayCodec.encode(new ItemStack[1]),
+                ItemStackArrayCodec.encode(new ItemStack[]{new ItemStack(Material.BREAD, timestamp), null, new ItemStack(Material.TORCH, 64)})
+        }, 0);
+        backupInventory.decode();
+        return backupInventory;
+    }
+}
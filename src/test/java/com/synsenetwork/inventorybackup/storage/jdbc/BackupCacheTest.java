@@ -0,0 +1,75 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+import org.dizitart.no2.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class BackupCacheTest {
+    @Test
+    void returnsCachedRows() {
+        BackupCache cache = new BackupCache(4);
+        Document document = row();
+        cache.put(UUID.randomUUID(), 1, document);
+
+        assertSame(document, cache.get(1));
+        assertNull(cache.get(2));
+    }
+
+    @Test
+    void keepsTheNewestRowsOfAPlayer() {
+        BackupCache cache = new BackupCache(4);
+        UUID playerId = UUID.randomUUID();
+        for (long id = 1; id <= 5; id++) {
+            cache.put(playerId, id, row());
+        }
+
+        assertNull(cache.get(1));
+        for (long id = 2; id <= 5; id++) {
+            assertNotNull(cache.get(id));
+        }
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedPlayer() {
+        BackupCache cache = new BackupCache(2);
+        Document first = row();
+        cache.put(UUID.randomUUID(), 1, first);
+        cache.put(UUID.randomUUID(), 2, row());
+
+        // Reading the first player's row makes the second one the least recently used
+        cache.get(1);
+        cache.put(UUID.randomUUID(), 3, row());
+
+        assertSame(first, cache.get(1));
+        assertNull(cache.get(2));
+    }
+
+    @Test
+    void dropsRowsAndPlayers() {
+        BackupCache cache = new BackupCache(4);
+        UUID playerId = UUID.randomUUID();
+        Document kept = row();
+        cache.put(playerId, 1, row());
+        cache.put(playerId, 2, row());
+        cache.put(UUID.randomUUID(), 3, kept);
+
+        cache.remove(1);
+        assertNull(cache.get(1));
+
+        cache.removePlayer(playerId);
+        assertNull(cache.get(2));
+        assertSame(kept, cache.get(3));
+    }
+
+    /**
+     * Create an empty row
+     */
+    private static Document row() {
+        return new Document();
+    }
+}
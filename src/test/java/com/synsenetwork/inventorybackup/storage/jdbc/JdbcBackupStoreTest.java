@@ -0,0 +1,247 @@
+package com.synsenetwork.inventorybackup.storage.jdbc;
+
+import com.synsenetwork.inventorybackup.TestServer;
+import com.synsenetwork.inventorybackup.codec.ItemStackArrayCodec;
+import com.synsenetwork.inventorybackup.data.BackupInventory;
+import com.synsenetwork.inventorybackup.metrics.BackupMetrics;
+import com.synsenetwork.inventorybackup.storage.BackupIdGenerator;
+import com.synsenetwork.inventorybackup.storage.BackupRepository;
+import com.synsenetwork.inventorybackup.storage.BackupWriter;
+import com.synsenetwork.inventorybackup.storage.BlobStore;
+import com.synsenetwork.inventorybackup.storage.StorageException;
+import com.synsenetwork.inventorybackup.storage.StorageSettings;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.dizitart.no2.NitriteId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JdbcBackupStoreTest {
+    // Player owning every backup of a test
+    private static final UUID PLAYER_ID = UUID.randomUUID();
+
+    private Path directory;
+    private JdbcBackupStore store;
+
+    @BeforeAll
+    static void installServer() throws ClassNotFoundException {
+        TestServer.install();
+        Class.forName("org.sqlite.JDBC");
+    }
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("jdbc");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void insertsAndReadsBackups() throws SQLException {
+        store = openLocal();
+        BackupRepository repository = new BackupRepository(store, -1, 0, 16, new BackupMetrics());
+        repository.insert(List.of(backup(1), backup(2)));
+
+        BackupInventory latest = repository.getLatest(PLAYER_ID);
+        latest.decode();
+        assertEquals(2, latest.getTimestamp());
+        assertEquals(new ItemStack(Material.BREAD, 2), latest.getContents()[0]);
+        assertEquals(2, store.findByPlayer(PLAYER_ID, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(1, store.findByPlayer(PLAYER_ID, 1, 1).size());
+    }
+
+    @Test
+    void failsWritesUntilARolledBackTransactionEnds() throws SQLException {
+        store = openRemote();
+        store.insert(List.of(backup(1, 1)));
+        store.commit();
+
+        // A duplicate id aborts the transaction on a remote database
+        assertThrows(StorageException.class, () -> store.insert(List.of(backup(2, 1))));
+        assertThrows(StorageException.class, () -> store.insert(List.of(backup(3, 3))));
+        assertThrows(StorageException.class, store::commit);
+
+        // The next transaction starts over
+        store.insert(List.of(backup(3, 3)));
+        store.commit();
+        assertTrue(store.contains(NitriteId.createId(3L)));
+        assertEquals(2, store.findByPlayer(PLAYER_ID, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void retriesTheBackupsOfAFailedBatch() throws Exception {
+        store = openRemote();
+        BackupMetrics metrics = new BackupMetrics();
+        BackupRepository repository = new BackupRepository(store, 0, 0, 16, metrics, new BackupIdGenerator(1));
+        BackupInventory first = backup(1);
+        repository.insert(List.of(first));
+
+        // The database rejects one backup, which makes the batch fail, the writer then writes its backups one by one
+        store.write("Failed to create the trigger.", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TRIGGER reject BEFORE INSERT ON backups WHEN NEW.timestamp = 3 BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+            }
+            return null;
+        });
+        store.commit();
+        BackupWriter writer = new BackupWriter(16, 8, 0, metrics, null);
+        List<CompletableFuture<NitriteId>> futures = new ArrayList<>();
+        futures.add(writer.submit(backup(2)));
+        futures.add(writer.submit(backup(3)));
+        futures.add(writer.submit(backup(4)));
+        writer.start(repository);
+        assertTrue(writer.shutdown(5000));
+
+        assertNotNull(futures.get(0).get());
+        assertTrue(futures.get(1).isCompletedExceptionally());
+        assertNotNull(futures.get(2).get());
+        assertEquals(3, repository.count(PLAYER_ID));
+
+        // The blobs of the rejected backup were released, so every stored backup holds exactly one reference
+        String armorRef = repository.getById(first.getIdField()).getRefs()[0];
+        assertEquals(3, refs(armorRef));
+    }
+
+    @Test
+    void countsBlobReferences() throws SQLException {
+        store = openLocal();
+        BlobStore blobStore = store.getBlobStore();
+        byte[] data = {1, 2, 3};
+
+        String hash = blobStore.put(data);
+        assertEquals(hash, blobStore.put(data));
+        store.commit();
+        assertEquals(2, refs(hash));
+        assertEquals(1, blobStore.size());
+
+        // The blob is deleted with its last reference
+        blobStore.release(hash);
+        store.commit();
+        assertArrayEquals(data, blobStore.get(hash));
+        blobStore.release(hash);
+        store.commit();
+        assertNull(blobStore.get(hash));
+        assertEquals(0, blobStore.size());
+    }
+
+    @Test
+    void recountsBlobReferences() throws SQLException {
+        store = openLocal();
+        BackupRepository repository = new BackupRepository(store, 0, 0, 16, new BackupMetrics());
+        BackupInventory first = backup(1);
+        repository.insert(List.of(first, backup(2)));
+
+        // Leave an orphaned blob and a wrong count behind, as a crash between two commits would
+        String orphan = store.getBlobStore().put(new byte[]{4, 5, 6});
+        String armorRef = first.getRefs()[0];
+        store.write("Failed to change the reference count.", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("UPDATE blobs SET refs = 10 WHERE hash = ?")) {
+                statement.setString(1, armorRef);
+                statement.executeUpdate();
+            }
+            return null;
+        });
+        store.commit();
+
+        assertEquals(1, repository.collectGarbage());
+        assertNull(store.getBlobStore().get(orphan));
+        assertEquals(2, refs(armorRef));
+    }
+
+    @Test
+    void reportsTheDialectSharing() throws SQLException {
+        store = openLocal();
+        assertFalse(store.isShared());
+        store.close();
+
+        store = openRemote();
+        assertTrue(store.isShared());
+    }
+
+    /**
+     * Open a store on an SQLite file in the test directory
+     */
+    private JdbcBackupStore openLocal() throws SQLException {
+        return JdbcBackupStore.openSqlite(directory.resolve("local.sqlite").toFile(), new StorageSettings(1, StorageSettings.Compression.NONE, 256, 0));
+    }
+
+    /**
+     * Open a store with the PostgreSQL dialect on an SQLite file, so failed statements abort the transaction
+     */
+    private JdbcBackupStore openRemote() throws SQLException {
+        File file = directory.resolve("remote.sqlite").toFile();
+        return new JdbcBackupStore(SqlDialect.POSTGRESQL, () -> DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath()), null, 16);
+    }
+
+    /**
+     * Read the stored reference count of a blob, or 0 if it doesn't exist
+     */
+    private int refs(String hash) {
+        return store.read("Failed to read the reference count.", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT refs FROM blobs WHERE hash = ?")) {
+                statement.setString(1, hash);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getInt(1) : 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Create a backup with a few item stacks, taken at a timestamp
+     */
+    private static BackupInventory backup(int timestamp) {
+        BackupInventory backupInventory = BackupInventory.fromEncoded(PLAYER_ID, timestamp, new byte[][]{
+                ItemStackArrayCodec.encode(new ItemStack[4]),
+                ItemStackArrayCodec.encode(new ItemStack[1]),
+                ItemStackArrayCodec.encode(new ItemStack[]{new ItemStack(Material.BREAD, timestamp), null, new ItemStack(Material.TORCH, 64)})
+        }, 0);
+        backupInventory.decode();
+        return backupInventory;
+    }
+
+    /**
+     * Create a backup with an assigned id
+     */
+    private static BackupInventory backup(int timestamp, long id) {
+        BackupInventory backupInventory = backup(timestamp);
+        backupInventory.setIdField(NitriteId.createId(id));
+        return backupInventory;
+    }
+}